@@ -15,8 +15,13 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -29,7 +34,14 @@ public class CustomProtocolChat {
         CHAT_MESSAGE(3),
         USER_LIST(4),
         SYSTEM_MESSAGE(5),
-        HEARTBEAT(6);
+        HEARTBEAT(6),
+        JOIN(7),
+        LEAVE(8),
+        ROOM_MESSAGE(9),
+        USER_JOINED(10),
+        USER_LEFT(11),
+        ROSTER_SYNC(12),
+        HISTORY(13);
         
         private final int code;
         
@@ -41,6 +53,11 @@ public class CustomProtocolChat {
             return code;
         }
         
+        // I messaggi di stanza portano nel frame anche il nome della stanza
+        public boolean isRoomScoped() {
+            return this == JOIN || this == LEAVE || this == ROOM_MESSAGE;
+        }
+        
         public static MessageType fromCode(int code) {
             for (MessageType type : values()) {
                 if (type.code == code) {
@@ -52,21 +69,36 @@ public class CustomProtocolChat {
     }
     
     public static class Message {
+        // Tipo + tre stringhe UTF (max 65535 byte ciascuna) + timestamp
+        public static final int MAX_FRAME_SIZE = 4 + 3 * (2 + 65535) + 8;
+        
         private final MessageType type;
         private final String sender;
+        private final String room;
         private final String content;
         private final LocalDateTime timestamp;
         
         public Message(MessageType type, String sender, String content) {
+            this(type, sender, null, content, LocalDateTime.now());
+        }
+        
+        public Message(MessageType type, String sender, String room, String content) {
+            this(type, sender, room, content, LocalDateTime.now());
+        }
+        
+        private Message(MessageType type, String sender, String room, String content, 
+                        LocalDateTime timestamp) {
             this.type = type;
             this.sender = sender;
+            this.room = room;
             this.content = content;
-            this.timestamp = LocalDateTime.now();
+            this.timestamp = timestamp;
         }
         
         // Getters
         public MessageType getType() { return type; }
         public String getSender() { return sender; }
+        public String getRoom() { return room; }
         public String getContent() { return content; }
         public LocalDateTime getTimestamp() { return timestamp; }
         
@@ -74,46 +106,1000 @@ public class CustomProtocolChat {
         public void writeTo(DataOutputStream out) throws IOException {
             out.writeInt(type.getCode());
             out.writeUTF(sender != null ? sender : "");
+            if (type.isRoomScoped()) {
+                out.writeUTF(room != null ? room : "");
+            }
             out.writeUTF(content != null ? content : "");
             out.writeLong(timestamp.toEpochSecond(java.time.ZoneOffset.UTC));
         }
         
+        // Serializza una sola volta: il frame può essere inviato a molti client
+        public Frame encode() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+            try {
+                writeTo(new DataOutputStream(buffer));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Impossibile su stream in memoria
+            }
+            return new Frame(type, buffer.toByteArray());
+        }
+        
         public static Message readFrom(DataInputStream in) throws IOException {
             int typeCode = in.readInt();
             MessageType type = MessageType.fromCode(typeCode);
             String sender = in.readUTF();
+            String room = type.isRoomScoped() ? in.readUTF() : "";
             String content = in.readUTF();
-            // timestamp viene impostato automaticamente
-            return new Message(type, sender.isEmpty() ? null : sender, content.isEmpty() ? null : content);
+            // Il timestamp va sempre consumato, altrimenti lo stream si desincronizza
+            LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.readLong(), 0, 
+                                                                  java.time.ZoneOffset.UTC);
+            return new Message(type, sender.isEmpty() ? null : sender, room.isEmpty() ? null : room,
+                             content.isEmpty() ? null : content, timestamp);
+        }
+        
+        /**
+         * Lunghezza del frame completo all'inizio del buffer (posizione corrente),
+         * oppure -1 se i byte arrivati non bastano ancora. Non consuma il buffer.
+         */
+        public static int frameLength(ByteBuffer buffer) {
+            int start = buffer.position();
+            int available = buffer.remaining();
+            if (available < 4) return -1;
+            
+            MessageType type = MessageType.fromCode(buffer.getInt(start));
+            int length = 4;
+            int strings = type.isRoomScoped() ? 3 : 2;
+            for (int i = 0; i < strings; i++) {
+                if (available < length + 2) return -1;
+                length += 2 + (buffer.getShort(start + length) & 0xFFFF);
+            }
+            length += 8; // timestamp
+            return available >= length ? length : -1;
+        }
+        
+        public static Message decode(byte[] data, int offset, int length) throws IOException {
+            return readFrom(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
         }
         
         @Override
         public String toString() {
             String timeStr = timestamp.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+            if (room != null) {
+                return String.format("[%s] #%s %s: %s", timeStr, room, sender, content);
+            }
             return String.format("[%s] %s: %s", timeStr, sender, content);
         }
     }
     
+    /**
+     * Messaggio già serializzato, pronto per essere scritto sul socket
+     */
+    public static final class Frame {
+        private final MessageType type;
+        private final byte[] bytes;
+        
+        public Frame(MessageType type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+        
+        public MessageType getType() { return type; }
+        public byte[] getBytes() { return bytes; }
+    }
+    
+    /**
+     * Comportamento del server quando un client non riesce a smaltire
+     * la propria coda in uscita (slow consumer)
+     */
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST,        // Scarta il messaggio più vecchio in coda
+        DROP_NEWEST,        // Scarta il messaggio appena arrivato
+        DISCONNECT,         // Disconnette il client oltre la high watermark
+        COLLAPSE_USER_LIST  // Tiene solo l'ultima USER_LIST, poi scarta il più vecchio
+    }
+    
+    /**
+     * Configurazione delle code in uscita, letta dalle system property:
+     *   -Dchat.queue.capacity=1024
+     *   -Dchat.queue.highWatermark=1024
+     *   -Dchat.queue.policy=DROP_OLDEST
+     */
+    public static class QueueConfig {
+        private final int capacity;
+        private final int highWatermark;
+        private final SlowConsumerPolicy policy;
+        
+        public QueueConfig(int capacity, int highWatermark, SlowConsumerPolicy policy) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacità coda non valida: " + capacity);
+            }
+            this.capacity = capacity;
+            this.highWatermark = Math.min(Math.max(1, highWatermark), capacity);
+            this.policy = policy;
+        }
+        
+        public static QueueConfig fromSystemProperties() {
+            int capacity = Integer.getInteger("chat.queue.capacity", 1024);
+            int highWatermark = Integer.getInteger("chat.queue.highWatermark", capacity);
+            SlowConsumerPolicy policy = SlowConsumerPolicy.valueOf(
+                System.getProperty("chat.queue.policy", "DROP_OLDEST").toUpperCase());
+            return new QueueConfig(capacity, highWatermark, policy);
+        }
+        
+        public int getCapacity() { return capacity; }
+        public int getHighWatermark() { return highWatermark; }
+        public SlowConsumerPolicy getPolicy() { return policy; }
+        
+        @Override
+        public String toString() {
+            return policy + " (capacità " + capacity + ", high watermark " + highWatermark + ")";
+        }
+    }
+    
+    /**
+     * Coda in uscita limitata di una singola connessione.
+     * Chi produce (broadcast) non si blocca mai: se la coda è piena
+     * si applica la SlowConsumerPolicy configurata.
+     */
+    public static class OutboundQueue {
+        
+        public enum OfferResult { QUEUED, DROPPED, OVERFLOW }
+        
+        private final QueueConfig config;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private final AtomicLong droppedFrames = new AtomicLong(0);
+        private final AtomicLong sentFrames = new AtomicLong(0);
+        private volatile int depth = 0;
+        private volatile int maxDepth = 0;
+        
+        public OutboundQueue(QueueConfig config) {
+            this.config = config;
+        }
+        
+        public synchronized OfferResult offer(Frame frame) {
+            if (config.getPolicy() == SlowConsumerPolicy.COLLAPSE_USER_LIST
+                    && frame.getType() == MessageType.USER_LIST) {
+                // Una nuova lista utenti rende obsolete quelle ancora in coda
+                int before = frames.size();
+                frames.removeIf(f -> f.getType() == MessageType.USER_LIST);
+                droppedFrames.addAndGet(before - frames.size());
+            }
+            
+            switch (config.getPolicy()) {
+                case DISCONNECT:
+                    if (frames.size() >= config.getHighWatermark()) {
+                        return OfferResult.OVERFLOW;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (frames.size() >= config.getCapacity()) {
+                        droppedFrames.incrementAndGet();
+                        return OfferResult.DROPPED;
+                    }
+                    break;
+                case DROP_OLDEST:
+                case COLLAPSE_USER_LIST:
+                    while (frames.size() >= config.getCapacity()) {
+                        frames.pollFirst();
+                        droppedFrames.incrementAndGet();
+                    }
+                    break;
+            }
+            
+            frames.addLast(frame);
+            updateDepth();
+            return OfferResult.QUEUED;
+        }
+        
+        public synchronized Frame poll() {
+            Frame frame = frames.pollFirst();
+            if (frame != null) {
+                sentFrames.incrementAndGet();
+                updateDepth();
+            }
+            return frame;
+        }
+        
+        public synchronized boolean isEmpty() {
+            return frames.isEmpty();
+        }
+        
+        private void updateDepth() {
+            depth = frames.size();
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+        
+        // Statistiche (lette senza lock dagli operatori)
+        public int getDepth() { return depth; }
+        public int getMaxDepth() { return maxDepth; }
+        public long getDroppedFrames() { return droppedFrames.get(); }
+        public long getSentFrames() { return sentFrames.get(); }
+    }
+    
+    /**
+     * Fotografia delle statistiche di coda di un client
+     */
+    public static class QueueStats {
+        private final String username;
+        private final int depth;
+        private final int maxDepth;
+        private final long dropped;
+        private final long sent;
+        
+        public QueueStats(String username, OutboundQueue queue) {
+            this.username = username;
+            this.depth = queue.getDepth();
+            this.maxDepth = queue.getMaxDepth();
+            this.dropped = queue.getDroppedFrames();
+            this.sent = queue.getSentFrames();
+        }
+        
+        public String getUsername() { return username; }
+        public int getDepth() { return depth; }
+        public int getMaxDepth() { return maxDepth; }
+        public long getDropped() { return dropped; }
+        public long getSent() { return sent; }
+        
+        @Override
+        public String toString() {
+            return String.format("%-15s coda=%d (max %d) scartati=%d inviati=%d",
+                               username, depth, maxDepth, dropped, sent);
+        }
+    }
+    
+    /**
+     * Indice stanza -> iscritti, suddiviso in shard.
+     * 
+     * - Ogni shard ha il proprio lock, usato solo da JOIN/LEAVE
+     * - Gli iscritti di una stanza sono un array copy-on-write: la
+     *   pubblicazione legge un riferimento volatile e itera senza lock
+     * - Pubblicare in una stanza non tocca né gli altri shard né le altre stanze
+     */
+    public static class RoomIndex<S> {
+        
+        private static final Object[] EMPTY = new Object[0];
+        
+        private static final class Room {
+            volatile Object[] subscribers = EMPTY;
+        }
+        
+        private static final class Shard {
+            final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+        }
+        
+        private final Shard[] shards;
+        private final int mask;
+        
+        public RoomIndex(int shardCount) {
+            int size = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+            this.shards = new Shard[size];
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                shards[i] = new Shard();
+            }
+        }
+        
+        private Shard shardFor(String room) {
+            int h = room.hashCode();
+            return shards[(h ^ (h >>> 16)) & mask];
+        }
+        
+        public boolean subscribe(String room, S subscriber) {
+            Shard shard = shardFor(room);
+            synchronized (shard) {
+                Room r = shard.rooms.computeIfAbsent(room, k -> new Room());
+                Object[] current = r.subscribers;
+                for (Object s : current) {
+                    if (s == subscriber) return false;
+                }
+                Object[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = subscriber;
+                r.subscribers = updated;
+                return true;
+            }
+        }
+        
+        public boolean unsubscribe(String room, S subscriber) {
+            Shard shard = shardFor(room);
+            synchronized (shard) {
+                Room r = shard.rooms.get(room);
+                if (r == null) return false;
+                
+                Object[] current = r.subscribers;
+                int index = -1;
+                for (int i = 0; i < current.length; i++) {
+                    if (current[i] == subscriber) {
+                        index = i;
+                        break;
+                    }
+                }
+                if (index < 0) return false;
+                
+                if (current.length == 1) {
+                    // Stanza vuota: viene eliminata
+                    r.subscribers = EMPTY;
+                    shard.rooms.remove(room);
+                } else {
+                    Object[] updated = new Object[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, index);
+                    System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                    r.subscribers = updated;
+                }
+                return true;
+            }
+        }
+        
+        /**
+         * Consegna a tutti gli iscritti della stanza, senza lock.
+         * Ritorna il numero di destinatari.
+         */
+        @SuppressWarnings("unchecked")
+        public int publish(String room, java.util.function.Consumer<? super S> delivery) {
+            Room r = shardFor(room).rooms.get(room);
+            if (r == null) return 0;
+            
+            Object[] snapshot = r.subscribers;
+            for (Object subscriber : snapshot) {
+                delivery.accept((S) subscriber);
+            }
+            return snapshot.length;
+        }
+        
+        public int size(String room) {
+            Room r = shardFor(room).rooms.get(room);
+            return r == null ? 0 : r.subscribers.length;
+        }
+        
+        public int roomCount() {
+            int count = 0;
+            for (Shard shard : shards) {
+                count += shard.rooms.size();
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Roster versionato degli utenti connessi (lato server).
+     * 
+     * Formato dei contenuti:
+     *   USER_LIST   "versione|utente1,utente2,..."  (snapshot completo)
+     *   USER_JOINED "versione|utente1,utente2,..."  (delta)
+     *   USER_LEFT   "versione|utente1,utente2,..."  (delta)
+     * 
+     * Join e leave vengono accumulati e applicati insieme da commit():
+     * un join seguito da un leave nella stessa finestra si annullano.
+     */
+    public static class Roster {
+        private final Set<String> members = new LinkedHashSet<>();
+        private final Map<String, Boolean> pending = new LinkedHashMap<>(); // true = join
+        private long version = 0;
+        
+        public synchronized void join(String username) {
+            if (pending.get(username) == Boolean.FALSE && members.contains(username)) {
+                pending.remove(username);
+            } else {
+                pending.put(username, Boolean.TRUE);
+            }
+        }
+        
+        public synchronized void leave(String username) {
+            if (pending.get(username) == Boolean.TRUE && !members.contains(username)) {
+                pending.remove(username);
+            } else {
+                pending.put(username, Boolean.FALSE);
+            }
+        }
+        
+        /**
+         * Applica le modifiche in attesa; ogni delta prodotto incrementa la versione
+         */
+        public synchronized List<Message> commit() {
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            
+            for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+                String username = change.getKey();
+                if (change.getValue()) {
+                    if (members.add(username)) joined.add(username);
+                } else {
+                    if (members.remove(username)) left.add(username);
+                }
+            }
+            pending.clear();
+            
+            List<Message> deltas = new ArrayList<>(2);
+            if (!joined.isEmpty()) {
+                deltas.add(new Message(MessageType.USER_JOINED, "Server", 
+                                     ++version + "|" + String.join(",", joined)));
+            }
+            if (!left.isEmpty()) {
+                deltas.add(new Message(MessageType.USER_LEFT, "Server", 
+                                     ++version + "|" + String.join(",", left)));
+            }
+            return deltas;
+        }
+        
+        public synchronized Message snapshot() {
+            return new Message(MessageType.USER_LIST, "Server", 
+                             version + "|" + String.join(",", members));
+        }
+        
+        public synchronized long getVersion() {
+            return version;
+        }
+        
+        public synchronized int size() {
+            return members.size();
+        }
+        
+        // Estrae la versione da un contenuto "versione|..."
+        public static long parseVersion(String content) {
+            int separator = content.indexOf('|');
+            return Long.parseLong(separator < 0 ? content : content.substring(0, separator));
+        }
+        
+        // Estrae gli utenti da un contenuto "versione|utente1,utente2"
+        public static List<String> parseUsers(String content) {
+            int separator = content.indexOf('|');
+            String users = separator < 0 ? "" : content.substring(separator + 1);
+            return users.isEmpty() ? Collections.emptyList() : Arrays.asList(users.split(","));
+        }
+    }
+    
+    /**
+     * Timer a ruota (hashed timer wheel): i timeout sono distribuiti in
+     * bucket circolari in base alla scadenza. A ogni tick il thread della
+     * ruota esamina un solo bucket, quindi il costo è proporzionale ai
+     * timeout che scadono e non al numero totale di timeout pendenti.
+     * 
+     * Scadenze oltre un giro completo restano nel bucket con un contatore
+     * di giri residui.
+     */
+    public static class HashedWheelTimer {
+        public static final class Timeout {
+            private final Runnable task;
+            private final long deadlineTick;
+            private long remainingRounds;
+            private volatile boolean cancelled = false;
+            
+            private Timeout(Runnable task, long deadlineTick) {
+                this.task = task;
+                this.deadlineTick = deadlineTick;
+            }
+            
+            public void cancel() {
+                cancelled = true;
+            }
+        }
+        
+        private final long tickNanos;
+        private final List<Deque<Timeout>> wheel;
+        private final int mask;
+        private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pending = new AtomicLong(0);
+        private final AtomicLong expired = new AtomicLong(0);
+        private final long startNanos = System.nanoTime();
+        private final Thread worker;
+        private volatile boolean running = true;
+        private long tick = 0; // Confinato al thread della ruota
+        
+        public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+            int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+            this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+            this.mask = size - 1;
+            this.wheel = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                wheel.add(new ArrayDeque<>());
+            }
+            this.worker = new Thread(this::runWheel, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        
+        /**
+         * Pianifica un task; thread-safe. Il task viene eseguito nel thread
+         * della ruota, quindi deve essere breve e non bloccante.
+         */
+        public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+            long deadline = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+            // Arrotonda per eccesso: il task non scatta mai in anticipo
+            Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+            pending.incrementAndGet();
+            incoming.add(timeout);
+            return timeout;
+        }
+        
+        public long getPending() {
+            return pending.get();
+        }
+        
+        public long getExpired() {
+            return expired.get();
+        }
+        
+        public void stop() {
+            running = false;
+            worker.interrupt();
+        }
+        
+        private void runWheel() {
+            while (running) {
+                long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                tick++;
+                transferIncoming();
+                expireBucket(wheel.get((int) (tick & mask)));
+            }
+        }
+        
+        private void transferIncoming() {
+            Timeout timeout;
+            while ((timeout = incoming.poll()) != null) {
+                if (timeout.cancelled) {
+                    pending.decrementAndGet();
+                    continue;
+                }
+                // Scadenze già passate finiscono nel bucket corrente
+                long target = Math.max(timeout.deadlineTick, tick);
+                timeout.remainingRounds = (target - tick) / wheel.size();
+                wheel.get((int) (target & mask)).add(timeout);
+            }
+        }
+        
+        private void expireBucket(Deque<Timeout> bucket) {
+            for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+                Timeout timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                    pending.decrementAndGet();
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                } else {
+                    it.remove();
+                    pending.decrementAndGet();
+                    expired.incrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("💥 Errore nel timer: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Storico persistente dei messaggi: log append-only su segmenti di
+     * dimensione fissa mappati in memoria (MappedByteBuffer).
+     * 
+     * Record: [int lunghezza][long sequenza][frame serializzato]
+     * 
+     * - Le append sono accodate e scritte da un solo thread: il broadcast
+     *   non attende mai il disco (se la coda è piena il record è scartato)
+     * - Un indice sparso (una posizione ogni indexInterval record) permette
+     *   di trovare una sequenza senza scorrere tutto il segmento
+     * - La rilettura copia i byte del frame dal segmento mappato, senza
+     *   deserializzare in oggetti Message
+     * - Quando un segmento è pieno se ne apre uno nuovo; oltre
+     *   retentionSegments i più vecchi vengono cancellati
+     */
+    public static class ChatJournal {
+        private static final int RECORD_HEADER = 4 + 8;
+        
+        private static final class Segment {
+            final long baseSequence;
+            final Path path;
+            final MappedByteBuffer buffer;
+            volatile int writePosition = 0;
+            volatile long lastSequence;
+            private volatile int[] index = new int[64];
+            private volatile int indexCount = 0;
+            
+            Segment(Path path, long baseSequence, int size) throws IOException {
+                this.path = path;
+                this.baseSequence = baseSequence;
+                this.lastSequence = baseSequence - 1;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // La mappatura resta valida anche dopo la chiusura del canale
+                    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                }
+            }
+            
+            // Solo dal thread di scrittura
+            void addIndex(int position) {
+                int[] current = index;
+                if (indexCount == current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[indexCount] = position;
+                index = current;
+                indexCount = indexCount + 1;
+            }
+            
+            // Posizione di un record vicino (precedente) alla sequenza cercata
+            int floorPosition(long sequence, int indexInterval) {
+                int count = indexCount;
+                int[] current = index;
+                if (count == 0) return 0;
+                long slot = Math.min((sequence - baseSequence) / indexInterval, count - 1);
+                return current[(int) Math.max(0, slot)];
+            }
+        }
+        
+        private final Path directory;
+        private final int segmentBytes;
+        private final int retentionSegments;
+        private final int indexInterval;
+        private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+        private final BlockingQueue<Frame> pending;
+        private final AtomicLong droppedAppends = new AtomicLong(0);
+        private final Thread writer;
+        private volatile boolean running = true;
+        private volatile long lastSequence = 0;
+        private Segment active;        // Solo dal thread di scrittura
+        private ByteBuffer activeWriter;
+        
+        public ChatJournal(Path directory, int segmentBytes, int retentionSegments, 
+                           int indexInterval, int queueCapacity) throws IOException {
+            this.directory = directory;
+            // Un segmento deve poter contenere almeno il frame più grande
+            this.segmentBytes = Math.max(segmentBytes, RECORD_HEADER + Message.MAX_FRAME_SIZE + 4);
+            this.retentionSegments = Math.max(1, retentionSegments);
+            this.indexInterval = Math.max(1, indexInterval);
+            this.pending = new ArrayBlockingQueue<>(queueCapacity);
+            
+            Files.createDirectories(directory);
+            recover();
+            
+            this.writer = new Thread(this::runWriter, "ChatJournal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        
+        /**
+         * Journal configurato dalle system property, oppure null se
+         * -Dchat.journal.dir non è impostata
+         */
+        public static ChatJournal fromSystemProperties() throws IOException {
+            String dir = System.getProperty("chat.journal.dir");
+            if (dir == null || dir.trim().isEmpty()) {
+                return null;
+            }
+            return new ChatJournal(Paths.get(dir),
+                Integer.getInteger("chat.journal.segmentBytes", 4 * 1024 * 1024),
+                Integer.getInteger("chat.journal.retentionSegments", 8),
+                Integer.getInteger("chat.journal.indexInterval", 64),
+                Integer.getInteger("chat.journal.queue", 8192));
+        }
+        
+        /**
+         * Accoda un frame per la scrittura. Non blocca mai.
+         */
+        public boolean append(Frame frame) {
+            if (!pending.offer(frame)) {
+                droppedAppends.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        
+        public long getFirstSequence() {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            return first != null ? first.getKey() : 1;
+        }
+        
+        public long getLastSequence() {
+            return lastSequence;
+        }
+        
+        public long getDroppedAppends() {
+            return droppedAppends.get();
+        }
+        
+        public int getSegmentCount() {
+            return segments.size();
+        }
+        
+        /**
+         * Cursore sui record da fromSequence fino all'ultimo scritto al momento
+         * della chiamata. Ogni cursore va usato da un solo thread.
+         */
+        public Cursor cursor(long fromSequence) {
+            return new Cursor(Math.max(fromSequence, getFirstSequence()), lastSequence);
+        }
+        
+        // Cursore sugli ultimi n record
+        public Cursor last(int n) {
+            return cursor(lastSequence - Math.max(0, n) + 1);
+        }
+        
+        public final class Cursor {
+            private final long endSequence;
+            private long nextSequence;
+            private Segment segment;
+            private int position;
+            private long lastReturned = 0;
+            
+            private Cursor(long fromSequence, long endSequence) {
+                this.nextSequence = fromSequence;
+                this.endSequence = endSequence;
+            }
+            
+            public long getLastReturned() {
+                return lastReturned;
+            }
+            
+            /**
+             * Frame successivo (copia dei byte dal segmento mappato),
+             * oppure null a fine storico
+             */
+            public Frame next() {
+                while (nextSequence <= endSequence) {
+                    if (segment == null || nextSequence > segment.lastSequence) {
+                        if (!locate()) return null;
+                        continue;
+                    }
+                    
+                    MappedByteBuffer buffer = segment.buffer;
+                    int length = buffer.getInt(position);
+                    long sequence = buffer.getLong(position + 4);
+                    int start = position + RECORD_HEADER;
+                    position = start + length;
+                    
+                    if (sequence < nextSequence) continue; // Scansione dal punto dell'indice
+                    
+                    byte[] bytes = new byte[length];
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(start);
+                    view.get(bytes);
+                    
+                    nextSequence = sequence + 1;
+                    lastReturned = sequence;
+                    return new Frame(MessageType.fromCode(buffer.getInt(start)), bytes);
+                }
+                return null;
+            }
+            
+            // Segmento che contiene nextSequence, oppure il successivo a quello esaurito
+            private boolean locate() {
+                Map.Entry<Long, Segment> entry = segment == null
+                    ? segments.floorEntry(nextSequence)
+                    : segments.higherEntry(segment.baseSequence);
+                if (entry == null && segment == null) {
+                    entry = segments.firstEntry(); // Più vecchi cancellati dalla retention
+                }
+                if (entry == null) return false;
+                
+                segment = entry.getValue();
+                nextSequence = Math.max(nextSequence, segment.baseSequence);
+                position = segment.floorPosition(nextSequence, indexInterval);
+                return true;
+            }
+        }
+        
+        public void close() {
+            running = false;
+            try {
+                writer.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Ricostruisce indici e posizioni di scrittura dai segmenti esistenti
+         */
+        private void recover() throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.journal")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files);
+            
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base;
+                try {
+                    base = Long.parseLong(name.substring(0, name.indexOf('.')));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                int size = (int) Math.max(Files.size(file), segmentBytes);
+                Segment segment = new Segment(file, base, size);
+                scan(segment, size);
+                segments.put(base, segment);
+            }
+            
+            if (segments.isEmpty()) {
+                openSegment(1);
+            } else {
+                active = segments.lastEntry().getValue();
+                activeWriter = active.buffer.duplicate();
+                lastSequence = active.lastSequence;
+            }
+        }
+        
+        private void scan(Segment segment, int size) {
+            int position = 0;
+            long expected = segment.baseSequence;
+            while (position + RECORD_HEADER <= size) {
+                int length = segment.buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER + length > size
+                        || segment.buffer.getLong(position + 4) != expected) {
+                    break; // Fine dei dati (o record incompleto dopo un crash)
+                }
+                if ((expected - segment.baseSequence) % indexInterval == 0) {
+                    segment.addIndex(position);
+                }
+                position += RECORD_HEADER + length;
+                segment.lastSequence = expected++;
+            }
+            segment.writePosition = position;
+        }
+        
+        private void openSegment(long baseSequence) throws IOException {
+            Path path = directory.resolve(String.format("%020d.journal", baseSequence));
+            active = new Segment(path, baseSequence, segmentBytes);
+            activeWriter = active.buffer.duplicate();
+            segments.put(baseSequence, active);
+            
+            while (segments.size() > retentionSegments) {
+                Segment oldest = segments.pollFirstEntry().getValue();
+                try {
+                    // Su Linux i lettori ancora attivi continuano a usare la mappatura
+                    Files.deleteIfExists(oldest.path);
+                } catch (IOException e) {
+                    System.err.println("⚠️ Impossibile cancellare " + oldest.path + ": " + e.getMessage());
+                }
+            }
+        }
+        
+        private void runWriter() {
+            while (running || !pending.isEmpty()) {
+                try {
+                    Frame frame = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (frame != null) {
+                        write(frame);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    System.err.println("💥 Errore journal: " + e.getMessage());
+                }
+            }
+            active.buffer.force();
+        }
+        
+        private void write(Frame frame) throws IOException {
+            byte[] bytes = frame.getBytes();
+            int recordSize = RECORD_HEADER + bytes.length;
+            
+            // Lascia sempre spazio per il terminatore (lunghezza 0)
+            if (active.writePosition + recordSize + 4 > active.buffer.capacity()) {
+                active.buffer.force();
+                openSegment(lastSequence + 1);
+            }
+            
+            long sequence = lastSequence + 1;
+            int position = active.writePosition;
+            activeWriter.position(position + 4);
+            activeWriter.putLong(sequence);
+            activeWriter.put(bytes);
+            // La lunghezza per ultima: un record scritto a metà non viene recuperato
+            activeWriter.putInt(position, bytes.length);
+            
+            if ((sequence - active.baseSequence) % indexInterval == 0) {
+                active.addIndex(position);
+            }
+            active.writePosition = position + recordSize;
+            active.lastSequence = sequence;
+            lastSequence = sequence; // Pubblica il record ai lettori
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s (sequenze %d-%d, %d segmenti)",
+                               directory, getFirstSequence(), lastSequence, segments.size());
+        }
+    }
+    
     /**
      * Server Chat
+     * 
+     * Due trasporti selezionabili all'avvio con -Dchat.transport:
+     *   blocking (default) - un thread per client con stream bloccanti
+     *   nio                - Selector con pochi thread di I/O (-Dchat.io.threads)
+     * La logica del protocollo è condivisa e indipendente dal trasporto.
      */
     public static class ChatServer {
         private final int port;
-        private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+        private final QueueConfig queueConfig;
+        private final String transport;
+        private final Map<String, Connection> clients = new ConcurrentHashMap<>();
+        private final RoomIndex<Connection> rooms = 
+            new RoomIndex<>(Integer.getInteger("chat.rooms.shards", 64));
         private final ExecutorService threadPool = Executors.newCachedThreadPool();
+        private final AtomicLong slowConsumerDisconnects = new AtomicLong(0);
+        
+        // Roster: join/leave coalescenti in una finestra, snapshot solo a chi serve
+        private final Roster roster = new Roster();
+        private final Set<Connection> pendingSnapshots = ConcurrentHashMap.newKeySet();
+        private final long rosterCoalesceMillis = Long.getLong("chat.roster.coalesceMs", 50);
+        private final AtomicBoolean rosterFlushScheduled = new AtomicBoolean(false);
+        private final ScheduledExecutorService rosterScheduler = 
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "RosterFlush");
+                t.setDaemon(true);
+                return t;
+            });
         private volatile boolean running = false;
+        private NioTransport nioTransport;
+        private volatile ChatJournal journal;
+        private final int maxReplay = Integer.getInteger("chat.journal.maxReplay", 1000);
+        
+        // Liveness: ping solo alle connessioni inattive, scadenza dopo N ping senza risposta
+        private final long heartbeatIntervalMillis = Long.getLong("chat.heartbeat.intervalMs", 15000);
+        private final int heartbeatMaxMissed = Integer.getInteger("chat.heartbeat.maxMissed", 3);
+        private final HashedWheelTimer heartbeatWheel = heartbeatIntervalMillis > 0 ?
+            new HashedWheelTimer("HeartbeatWheel", Math.max(10, heartbeatIntervalMillis / 50),
+                                 TimeUnit.MILLISECONDS, 512) : null;
+        private final Frame pingFrame = new Message(MessageType.HEARTBEAT, "Server", "ping").encode();
+        private final AtomicLong expiredConnections = new AtomicLong(0);
         
         public ChatServer(int port) {
+            this(port, QueueConfig.fromSystemProperties());
+        }
+        
+        public ChatServer(int port, QueueConfig queueConfig) {
+            this(port, queueConfig, System.getProperty("chat.transport", "blocking").toLowerCase());
+        }
+        
+        public ChatServer(int port, QueueConfig queueConfig, String transport) {
+            if (!"blocking".equals(transport) && !"nio".equals(transport)) {
+                throw new IllegalArgumentException("Trasporto non valido: " + transport);
+            }
             this.port = port;
+            this.queueConfig = queueConfig;
+            this.transport = transport;
         }
         
         public void start() throws IOException {
+            journal = ChatJournal.fromSystemProperties();
+            
             System.out.println("💬 Chat Server Custom Protocol");
             System.out.println("   Porta: " + port);
+            System.out.println("   Trasporto: " + transport);
+            System.out.println("   Coda in uscita: " + queueConfig);
+            System.out.println("   Heartbeat: " + (heartbeatWheel == null ? "disattivato" :
+                             heartbeatIntervalMillis + " ms, scadenza dopo " + 
+                             heartbeatMaxMissed + " ping senza risposta"));
+            System.out.println("   Storico: " + (journal == null ? "disattivato" : journal.toString()));
             System.out.println("🛑 Premi Ctrl+C per fermare");
             System.out.println("=" .repeat(50));
             
             Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+            startQueueStatsThread();
+            
+            if ("nio".equals(transport)) {
+                int ioThreads = Integer.getInteger("chat.io.threads", 
+                                                   Runtime.getRuntime().availableProcessors());
+                nioTransport = new NioTransport(ioThreads);
+                running = true;
+                nioTransport.run(port);
+                return;
+            }
             
             try (ServerSocket serverSocket = new ServerSocket(port)) {
                 serverSocket.setReuseAddress(true);
@@ -125,59 +1111,413 @@ public class CustomProtocolChat {
                     Socket clientSocket = serverSocket.accept();
                     System.out.println("🔗 Nuova connessione: " + clientSocket.getRemoteSocketAddress());
                     
-                    ClientHandler handler = new ClientHandler(clientSocket, this);
+                    ClientHandler handler = new ClientHandler(clientSocket);
                     threadPool.execute(handler);
                 }
             }
         }
         
-        public void addClient(String username, ClientHandler handler) {
-            clients.put(username, handler);
-            System.out.println("👤 Utente connesso: " + username + " (totale: " + clients.size() + ")");
+        /**
+         * Punto di ingresso comune ai due trasporti: ogni messaggio decodificato
+         * passa da qui. Non blocca mai (gli invii sono solo accodamenti).
+         */
+        void onMessage(Connection connection, Message message) {
+            connection.lastActivity = System.nanoTime();
+            
+            if (connection.username == null) {
+                handleConnect(connection, message);
+                return;
+            }
+            
+            switch (message.getType()) {
+                case DISCONNECT:
+                    connection.close();
+                    break;
+                    
+                case CHAT_MESSAGE:
+                    // Ribroadcast con sender corretto
+                    Message chatMessage = new Message(MessageType.CHAT_MESSAGE, 
+                                                    connection.username, message.getContent());
+                    Frame chatFrame = chatMessage.encode();
+                    if (journal != null) {
+                        journal.append(chatFrame); // Non blocca il broadcast
+                    }
+                    broadcastFrame(chatFrame);
+                    System.out.println("💬 " + connection.username + ": " + message.getContent());
+                    break;
+                    
+                case ROSTER_SYNC:
+                    try {
+                        syncRoster(connection, Roster.parseVersion(
+                            message.getContent() != null ? message.getContent() : "-1"));
+                    } catch (NumberFormatException e) {
+                        syncRoster(connection, -1);
+                    }
+                    break;
+                    
+                case JOIN:
+                case LEAVE:
+                case ROOM_MESSAGE:
+                    handleRoomMessage(connection, message);
+                    break;
+                    
+                case HISTORY:
+                    replayHistory(connection, message.getContent());
+                    break;
+                    
+                default:
+                    // HEARTBEAT: basta l'aggiornamento di lastActivity
+                    break;
+            }
+        }
+        
+        private void handleConnect(Connection connection, Message message) {
+            if (message.getType() != MessageType.CONNECT) {
+                connection.close();
+                return;
+            }
+            
+            String username = message.getContent();
+            if (username == null || username.trim().isEmpty()) {
+                connection.sendAndClose(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
+                                                  "Username non valido"));
+                return;
+            }
+            
+            if (clients.putIfAbsent(username, connection) != null) {
+                connection.sendAndClose(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
+                                                  "Username già in uso"));
+                return;
+            }
             
-            // Notifica altri utenti
-            broadcastMessage(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
-                           username + " si è unito alla chat"));
+            connection.username = username;
+            addClient(username, connection);
+        }
+        
+        private void handleRoomMessage(Connection connection, Message message) {
+            String room = message.getRoom();
+            if (room == null || room.trim().isEmpty()) {
+                return;
+            }
             
-            // Invia lista utenti al nuovo client
-            sendUserList(handler);
+            switch (message.getType()) {
+                case JOIN:
+                    joinRoom(connection, room);
+                    break;
+                    
+                case LEAVE:
+                    leaveRoom(connection, room);
+                    break;
+                    
+                default:
+                    if (!connection.joinedRooms.contains(room)) {
+                        connection.enqueue(new Message(MessageType.SYSTEM_MESSAGE, "Server",
+                                         "Non sei iscritto alla stanza #" + room).encode());
+                        break;
+                    }
+                    publishToRoom(room, new Message(MessageType.ROOM_MESSAGE,
+                                connection.username, room, message.getContent()));
+                    break;
+            }
+        }
+        
+        // Chiamato dal trasporto quando la connessione è aperta
+        void onOpened(Connection connection) {
+            if (heartbeatWheel != null) {
+                scheduleLivenessCheck(connection, heartbeatIntervalMillis);
+            }
         }
         
-        public void removeClient(String username) {
-            ClientHandler removed = clients.remove(username);
-            if (removed != null) {
+        private void scheduleLivenessCheck(Connection connection, long delayMillis) {
+            heartbeatWheel.newTimeout(() -> checkLiveness(connection), delayMillis, TimeUnit.MILLISECONDS);
+        }
+        
+        /**
+         * Eseguito nel thread della ruota, una volta per intervallo per connessione.
+         * Una connessione attiva viene solo ripianificata alla scadenza del suo
+         * periodo di inattività; una inattiva riceve un ping e, dopo troppi ping
+         * senza risposta, viene chiusa (tipicamente una connessione half-open).
+         */
+        private void checkLiveness(Connection connection) {
+            if (!connection.isOpen()) return;
+            
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connection.lastActivity);
+            if (idleMillis < heartbeatIntervalMillis) {
+                connection.missedHeartbeats = 0;
+                scheduleLivenessCheck(connection, heartbeatIntervalMillis - idleMillis);
+                return;
+            }
+            
+            // Ha risposto all'ultimo ping ma è di nuovo inattiva
+            if (connection.lastActivity - connection.lastPingNanos > 0) {
+                connection.missedHeartbeats = 0;
+            }
+            
+            if (connection.missedHeartbeats >= heartbeatMaxMissed) {
+                expiredConnections.incrementAndGet();
+                System.err.println("💔 Connessione scaduta: " + 
+                                 (connection.username != null ? connection.username : "(anonima)") +
+                                 " (inattiva da " + idleMillis / 1000 + " s)");
+                connection.close();
+                return;
+            }
+            
+            connection.missedHeartbeats++;
+            connection.lastPingNanos = System.nanoTime();
+            connection.enqueue(pingFrame);
+            scheduleLivenessCheck(connection, heartbeatIntervalMillis);
+        }
+        
+        public long getExpiredConnections() {
+            return expiredConnections.get();
+        }
+        
+        // Chiamato dal trasporto quando la connessione è chiusa
+        void onClosed(Connection connection) {
+            if (connection.username != null) {
+                removeClient(connection.username, connection);
+            }
+        }
+        
+        private void addClient(String username, Connection connection) {
+            System.out.println("👤 Utente connesso: " + username + " (totale: " + clients.size() + ")");
+            
+            // Il nuovo client riceve uno snapshot, gli altri solo il delta
+            roster.join(username);
+            pendingSnapshots.add(connection);
+            requestRosterFlush();
+        }
+        
+        private void removeClient(String username, Connection connection) {
+            if (clients.remove(username, connection)) {
+                for (String room : connection.joinedRooms) {
+                    rooms.unsubscribe(room, connection);
+                }
+                
                 System.out.println("👤 Utente disconnesso: " + username + " (totale: " + clients.size() + ")");
                 
-                // Notifica altri utenti
-                broadcastMessage(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
-                               username + " ha lasciato la chat"));
+                pendingSnapshots.remove(connection);
+                roster.leave(username);
+                requestRosterFlush();
             }
         }
         
         public void broadcastMessage(Message message) {
-            List<String> disconnected = new ArrayList<>();
+            // Serializzazione unica, poi solo accodamento: nessun client lento
+            // può bloccare il broadcast verso gli altri
+            broadcastFrame(message.encode());
+        }
+        
+        private void broadcastFrame(Frame frame) {
+            for (Connection connection : clients.values()) {
+                connection.enqueue(frame);
+            }
+        }
+        
+        private void joinRoom(Connection connection, String room) {
+            if (rooms.subscribe(room, connection)) {
+                connection.joinedRooms.add(room);
+                publishToRoom(room, new Message(MessageType.ROOM_MESSAGE, "Server", room,
+                             connection.username + " è entrato nella stanza (" + rooms.size(room) + " utenti)"));
+            }
+        }
+        
+        private void leaveRoom(Connection connection, String room) {
+            if (rooms.unsubscribe(room, connection)) {
+                connection.joinedRooms.remove(room);
+                publishToRoom(room, new Message(MessageType.ROOM_MESSAGE, "Server", room,
+                             connection.username + " ha lasciato la stanza"));
+            }
+        }
+        
+        /**
+         * Consegna solo agli iscritti della stanza: il frame è serializzato
+         * una volta e l'iterazione avviene sullo snapshot copy-on-write
+         */
+        public int publishToRoom(String room, Message message) {
+            Frame frame = message.encode();
+            return rooms.publish(room, connection -> connection.enqueue(frame));
+        }
+        
+        /**
+         * Richiesta di storico: "last:N" oppure "since:X" (sequenza).
+         * I frame sono copiati dai segmenti così come sono stati scritti e
+         * accodati solo quando la coda del client è sotto metà capacità,
+         * così la rilettura non fa scartare i messaggi in tempo reale.
+         * Alla fine arriva un HISTORY "prima|ultima|quanti".
+         */
+        private void replayHistory(Connection connection, String request) {
+            ChatJournal current = journal;
+            if (current == null) {
+                connection.enqueue(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
+                                 "Storico non disponibile").encode());
+                return;
+            }
             
-            for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-                try {
-                    entry.getValue().sendMessage(message);
-                } catch (IOException e) {
-                    disconnected.add(entry.getKey());
+            ChatJournal.Cursor cursor;
+            int limit = maxReplay;
+            try {
+                if (request != null && request.startsWith("since:")) {
+                    cursor = current.cursor(Long.parseLong(request.substring(6).trim()));
+                } else {
+                    String count = request != null && request.startsWith("last:") ? 
+                                   request.substring(5).trim() : "50";
+                    limit = Math.min(maxReplay, Integer.parseInt(count));
+                    cursor = current.last(limit);
                 }
+            } catch (NumberFormatException e) {
+                connection.enqueue(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
+                                 "Richiesta storico non valida: " + request).encode());
+                return;
             }
             
-            // Rimuove client disconnessi
-            for (String username : disconnected) {
-                removeClient(username);
+            final int maxFrames = limit;
+            try {
+                threadPool.execute(() -> streamHistory(connection, cursor, maxFrames));
+            } catch (RejectedExecutionException e) {
+                // Server in arresto
             }
         }
         
-        public void sendUserList(ClientHandler handler) {
-            String userListContent = String.join(",", clients.keySet());
-            Message userListMessage = new Message(MessageType.USER_LIST, "Server", userListContent);
+        private void streamHistory(Connection connection, ChatJournal.Cursor cursor, int maxFrames) {
+            int resumeDepth = Math.max(1, queueConfig.getCapacity() / 2);
+            long first = -1;
+            int sent = 0;
+            
             try {
-                handler.sendMessage(userListMessage);
-            } catch (IOException e) {
-                // Gestito dal chiamante
+                Frame frame;
+                while (sent < maxFrames && (frame = cursor.next()) != null) {
+                    while (connection.outbound.getDepth() >= resumeDepth) {
+                        if (!connection.isOpen()) return;
+                        Thread.sleep(2);
+                    }
+                    if (first < 0) first = cursor.getLastReturned();
+                    connection.enqueue(frame);
+                    sent++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            connection.enqueue(new Message(MessageType.HISTORY, "Server",
+                first + "|" + cursor.getLastReturned() + "|" + sent).encode());
+        }
+        
+        /**
+         * Un client segnala la versione di roster che possiede: lo snapshot
+         * viene inviato solo se è rimasto indietro
+         */
+        private void syncRoster(Connection connection, long clientVersion) {
+            if (clientVersion != roster.getVersion()) {
+                pendingSnapshots.add(connection);
+                requestRosterFlush();
+            }
+        }
+        
+        private void requestRosterFlush() {
+            if (rosterCoalesceMillis <= 0) {
+                flushRoster();
+            } else if (rosterFlushScheduled.compareAndSet(false, true)) {
+                try {
+                    rosterScheduler.schedule(() -> {
+                        rosterFlushScheduled.set(false);
+                        flushRoster();
+                    }, rosterCoalesceMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Server in arresto
+                }
+            }
+        }
+        
+        /**
+         * Applica i join/leave della finestra: un delta per tutti i client già
+         * allineati, un unico snapshot (serializzato una volta) per i nuovi
+         */
+        private void flushRoster() {
+            synchronized (roster) {
+                List<Message> deltas = roster.commit();
+                
+                Set<Connection> needSnapshot = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Iterator<Connection> it = pendingSnapshots.iterator(); it.hasNext(); ) {
+                    needSnapshot.add(it.next());
+                    it.remove();
+                }
+                
+                if (!needSnapshot.isEmpty()) {
+                    Frame snapshot = roster.snapshot().encode();
+                    for (Connection connection : needSnapshot) {
+                        connection.enqueue(snapshot);
+                    }
+                }
+                
+                if (!deltas.isEmpty()) {
+                    List<Frame> frames = new ArrayList<>(deltas.size());
+                    for (Message delta : deltas) {
+                        frames.add(delta.encode());
+                    }
+                    for (Connection connection : clients.values()) {
+                        if (!needSnapshot.contains(connection)) {
+                            for (Frame frame : frames) {
+                                connection.enqueue(frame);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Statistiche delle code in uscita, dalla più profonda:
+         * i primi della lista sono i client più lenti
+         */
+        public List<QueueStats> getQueueStats() {
+            List<QueueStats> stats = new ArrayList<>();
+            for (Map.Entry<String, Connection> entry : clients.entrySet()) {
+                stats.add(new QueueStats(entry.getKey(), entry.getValue().outbound));
+            }
+            stats.sort(Comparator.comparingInt(QueueStats::getDepth).reversed()
+                       .thenComparing(Comparator.comparingLong(QueueStats::getDropped).reversed()));
+            return stats;
+        }
+        
+        public long getSlowConsumerDisconnects() {
+            return slowConsumerDisconnects.get();
+        }
+        
+        private void startQueueStatsThread() {
+            long intervalSeconds = Long.getLong("chat.queue.statsInterval", 30);
+            if (intervalSeconds <= 0) return;
+            
+            Thread statsThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSeconds * 1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    printLaggards();
+                }
+            }, "QueueStatsThread");
+            statsThread.setDaemon(true);
+            statsThread.start();
+        }
+        
+        private void printLaggards() {
+            List<QueueStats> laggards = new ArrayList<>();
+            for (QueueStats stats : getQueueStats()) {
+                if (stats.getDepth() > 0 || stats.getDropped() > 0) {
+                    laggards.add(stats);
+                }
+            }
+            
+            if (laggards.isEmpty()) return;
+            
+            System.out.println("📊 Code in uscita (" + laggards.size() + " client in ritardo, " +
+                             slowConsumerDisconnects.get() + " disconnessi per lentezza, " +
+                             expiredConnections.get() + " scaduti per heartbeat)");
+            for (QueueStats stats : laggards.subList(0, Math.min(10, laggards.size()))) {
+                System.out.println("   " + stats);
             }
         }
         
@@ -189,84 +1529,457 @@ public class CustomProtocolChat {
                                                 "Server in arresto...");
             broadcastMessage(shutdownMessage);
             
+            rosterScheduler.shutdown();
+            if (journal != null) {
+                journal.close();
+            }
+            if (heartbeatWheel != null) {
+                heartbeatWheel.stop();
+            }
             threadPool.shutdown();
+            if (nioTransport != null) {
+                nioTransport.stop();
+            }
             System.out.println("✅ Chat server arrestato");
         }
         
-        private class ClientHandler implements Runnable {
+        /**
+         * Connessione lato server, indipendente dal trasporto: coda in uscita
+         * limitata, stanze sottoscritte e username
+         */
+        abstract class Connection {
+            final OutboundQueue outbound = new OutboundQueue(queueConfig);
+            final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+            volatile String username;
+            volatile long lastActivity = System.nanoTime();
+            int missedHeartbeats = 0; // Solo dal thread della ruota
+            long lastPingNanos;       // Solo dal thread della ruota
+            
+            /**
+             * Accoda un frame senza mai bloccare il chiamante
+             */
+            void enqueue(Frame frame) {
+                switch (outbound.offer(frame)) {
+                    case QUEUED:
+                        onFrameQueued();
+                        break;
+                    case DROPPED:
+                        break;
+                    case OVERFLOW:
+                        slowConsumerDisconnects.incrementAndGet();
+                        System.err.println("🐌 Client lento disconnesso: " + username + 
+                                         " (coda oltre " + queueConfig.getHighWatermark() + ")");
+                        close();
+                        break;
+                }
+            }
+            
+            // Il trasporto deve avviare (o ha già in corso) lo svuotamento della coda
+            abstract void onFrameQueued();
+            
+            abstract boolean isOpen();
+            
+            // Invia un ultimo messaggio e poi chiude (es. username rifiutato)
+            abstract void sendAndClose(Message message);
+            
+            abstract void close();
+        }
+        
+        /**
+         * Trasporto bloccante: un thread per client in lettura, la scrittura
+         * avviene in un task del pool che svuota la coda
+         */
+        private class ClientHandler extends Connection implements Runnable {
             private final Socket socket;
-            private final ChatServer server;
+            private final AtomicBoolean draining = new AtomicBoolean(false);
             private DataInputStream input;
             private DataOutputStream output;
-            private String username;
             
-            public ClientHandler(Socket socket, ChatServer server) {
+            public ClientHandler(Socket socket) {
                 this.socket = socket;
-                this.server = server;
             }
             
-            @Override
-            public void run() {
+            @Override
+            public void run() {
+                try {
+                    input = new DataInputStream(socket.getInputStream());
+                    output = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                    onOpened(this);
+                    
+                    // Loop messaggi (il primo deve essere CONNECT)
+                    while (!socket.isClosed()) {
+                        onMessage(this, Message.readFrom(input));
+                    }
+                    
+                } catch (EOFException e) {
+                    // Connessione chiusa normalmente
+                } catch (IOException | IllegalArgumentException e) {
+                    if (!socket.isClosed()) {
+                        System.err.println("💥 Errore client " + username + ": " + e.getMessage());
+                    }
+                } finally {
+                    onClosed(this);
+                    close();
+                }
+            }
+            
+            /**
+             * Invio sincrono: il client non è registrato, nessun broadcast
+             * può raggiungerlo
+             */
+            @Override
+            void sendAndClose(Message message) {
+                try {
+                    synchronized (output) {
+                        message.writeTo(output);
+                        output.flush();
+                    }
+                } catch (IOException e) {
+                    // Chiusura comunque
+                }
+                close();
+            }
+            
+            @Override
+            void onFrameQueued() {
+                if (draining.compareAndSet(false, true)) {
+                    try {
+                        threadPool.execute(this::drain);
+                    } catch (RejectedExecutionException e) {
+                        draining.set(false); // Server in arresto
+                    }
+                }
+            }
+            
+            private void drain() {
+                try {
+                    synchronized (output) {
+                        Frame frame;
+                        while ((frame = outbound.poll()) != null) {
+                            output.write(frame.getBytes());
+                        }
+                        // Un solo flush per tutti i frame accumulati
+                        output.flush();
+                    }
+                } catch (IOException e) {
+                    close();
+                    return;
+                } finally {
+                    draining.set(false);
+                }
+                
+                // Frame arrivati dopo l'ultimo poll ma prima del reset del flag
+                if (!outbound.isEmpty() && !socket.isClosed()) {
+                    onFrameQueued();
+                }
+            }
+            
+            @Override
+            boolean isOpen() {
+                return !socket.isClosed();
+            }
+            
+            @Override
+            void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignora
+                }
+            }
+        }
+        
+        /**
+         * Trasporto non bloccante: un Selector per ciascuno dei pochi thread
+         * di I/O. Il primo loop accetta anche le connessioni e le distribuisce
+         * round-robin. Letture e scritture parziali sono gestite con buffer
+         * per connessione; i frame sono decodificati in modo incrementale.
+         */
+        private class NioTransport {
+            private final IoLoop[] loops;
+            private final AtomicInteger nextLoop = new AtomicInteger(0);
+            private ServerSocketChannel serverChannel;
+            
+            NioTransport(int ioThreads) {
+                this.loops = new IoLoop[Math.max(1, ioThreads)];
+            }
+            
+            void run(int port) throws IOException {
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new IoLoop("ChatIO-" + i);
+                }
+                
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                serverChannel.bind(new InetSocketAddress(port), 1024);
+                serverChannel.configureBlocking(false);
+                loops[0].execute(() -> {
+                    try {
+                        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                    } catch (ClosedChannelException e) {
+                        // Server già fermato
+                    }
+                });
+                
+                System.out.println("✅ Server NIO avviato (" + loops.length + 
+                                 " thread di I/O), in attesa di connessioni...\n");
+                
+                for (int i = 1; i < loops.length; i++) {
+                    Thread thread = new Thread(loops[i], loops[i].name);
+                    thread.start();
+                }
+                loops[0].run(); // Il thread chiamante diventa il primo loop
+            }
+            
+            void stop() {
+                for (IoLoop loop : loops) {
+                    if (loop != null) {
+                        loop.stop();
+                    }
+                }
                 try {
-                    input = new DataInputStream(socket.getInputStream());
-                    output = new DataOutputStream(socket.getOutputStream());
+                    if (serverChannel != null) serverChannel.close();
+                } catch (IOException e) {
+                    // Ignora
+                }
+            }
+            
+            private void accept() throws IOException {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
                     
-                    // Attende messaggio di connessione
-                    Message connectMessage = Message.readFrom(input);
-                    if (connectMessage.getType() == MessageType.CONNECT) {
-                        username = connectMessage.getContent();
-                        
-                        if (username == null || username.trim().isEmpty()) {
-                            sendMessage(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
-                                      "Username non valido"));
-                            return;
+                    IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    NioConnection connection = new NioConnection(channel, loop);
+                    loop.execute(connection::register);
+                }
+            }
+            
+            private class IoLoop implements Runnable {
+                private final String name;
+                private final Selector selector;
+                private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+                private volatile boolean active = true;
+                
+                IoLoop(String name) throws IOException {
+                    this.name = name;
+                    this.selector = Selector.open();
+                }
+                
+                // Esegue un task nel thread del loop (l'unico che tocca i canali)
+                void execute(Runnable task) {
+                    tasks.add(task);
+                    selector.wakeup();
+                }
+                
+                void stop() {
+                    active = false;
+                    selector.wakeup();
+                }
+                
+                @Override
+                public void run() {
+                    while (active) {
+                        try {
+                            selector.select();
+                            
+                            Runnable task;
+                            while ((task = tasks.poll()) != null) {
+                                task.run();
+                            }
+                            
+                            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                            while (keys.hasNext()) {
+                                SelectionKey key = keys.next();
+                                keys.remove();
+                                handleKey(key);
+                            }
+                        } catch (IOException e) {
+                            System.err.println("💥 Errore loop " + name + ": " + e.getMessage());
                         }
-                        
-                        if (clients.containsKey(username)) {
-                            sendMessage(new Message(MessageType.SYSTEM_MESSAGE, "Server", 
-                                      "Username già in uso"));
+                    }
+                    
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof NioConnection) {
+                            ((NioConnection) key.attachment()).closeNow();
+                        }
+                    }
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        // Ignora
+                    }
+                }
+                
+                private void handleKey(SelectionKey key) throws IOException {
+                    if (!key.isValid()) return;
+                    
+                    if (key.isAcceptable()) {
+                        accept();
+                        return;
+                    }
+                    
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flushWrites();
+                    }
+                }
+            }
+            
+            private class NioConnection extends Connection {
+                private static final int MAX_BATCH = 64;
+                
+                private final SocketChannel channel;
+                private final IoLoop loop;
+                private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+                private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BATCH];
+                private int batchStart = 0;
+                private int batchEnd = 0;
+                private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+                private SelectionKey key;
+                private volatile boolean closeAfterFlush = false;
+                private boolean closed = false;
+                
+                NioConnection(SocketChannel channel, IoLoop loop) {
+                    this.channel = channel;
+                    this.loop = loop;
+                }
+                
+                void register() {
+                    try {
+                        key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                        System.out.println("🔗 Nuova connessione: " + channel.getRemoteAddress());
+                        onOpened(this);
+                    } catch (IOException e) {
+                        closeNow();
+                    }
+                }
+                
+                void onReadable() {
+                    try {
+                        int read = channel.read(readBuffer);
+                        if (read < 0) {
+                            closeNow();
                             return;
                         }
                         
-                        server.addClient(username, this);
+                        readBuffer.flip();
+                        int length;
+                        while (!closed && (length = Message.frameLength(readBuffer)) > 0) {
+                            Message message = Message.decode(readBuffer.array(), 
+                                                           readBuffer.position(), length);
+                            readBuffer.position(readBuffer.position() + length);
+                            onMessage(this, message);
+                        }
+                        readBuffer.compact();
                         
-                        // Loop messaggi
-                        Message message;
-                        while ((message = Message.readFrom(input)) != null) {
-                            if (message.getType() == MessageType.DISCONNECT) {
-                                break;
+                        // Frame più grande del buffer: lo si ingrandisce
+                        if (!readBuffer.hasRemaining()) {
+                            if (readBuffer.capacity() >= Message.MAX_FRAME_SIZE) {
+                                throw new IOException("Frame troppo grande");
+                            }
+                            ByteBuffer larger = ByteBuffer.allocate(
+                                Math.min(readBuffer.capacity() * 2, Message.MAX_FRAME_SIZE));
+                            readBuffer.flip();
+                            larger.put(readBuffer);
+                            readBuffer = larger;
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        if (!closed) {
+                            System.err.println("💥 Errore client " + username + ": " + e.getMessage());
+                        }
+                        closeNow();
+                    }
+                }
+                
+                @Override
+                void onFrameQueued() {
+                    // Un solo wakeup del selector per raffica di frame
+                    if (writeScheduled.compareAndSet(false, true)) {
+                        loop.execute(this::flushWrites);
+                    }
+                }
+                
+                /**
+                 * Scrive quanti più frame possibile con una gathering write;
+                 * se il socket è pieno attende OP_WRITE
+                 */
+                void flushWrites() {
+                    if (closed) return;
+                    
+                    try {
+                        while (true) {
+                            if (batchStart == batchEnd) {
+                                batchStart = 0;
+                                batchEnd = 0;
+                                Frame frame;
+                                while (batchEnd < MAX_BATCH && (frame = outbound.poll()) != null) {
+                                    writeBatch[batchEnd++] = ByteBuffer.wrap(frame.getBytes());
+                                }
+                                if (batchEnd == 0) break;
+                            }
+                            
+                            channel.write(writeBatch, batchStart, batchEnd - batchStart);
+                            while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                                writeBatch[batchStart++] = null;
                             }
                             
-                            if (message.getType() == MessageType.CHAT_MESSAGE) {
-                                // Ribroadcast con sender corretto
-                                Message chatMessage = new Message(MessageType.CHAT_MESSAGE, 
-                                                                username, message.getContent());
-                                server.broadcastMessage(chatMessage);
-                                System.out.println("💬 " + username + ": " + message.getContent());
+                            if (batchStart < batchEnd) {
+                                // Scrittura parziale: si riprende quando il socket è scrivibile
+                                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                                return;
                             }
                         }
+                        
+                        key.interestOps(SelectionKey.OP_READ);
+                        if (closeAfterFlush) {
+                            closeNow();
+                            return;
+                        }
+                    } catch (IOException e) {
+                        closeNow();
+                        return;
                     }
                     
-                } catch (EOFException e) {
-                    // Connessione chiusa normalmente
-                } catch (IOException e) {
-                    System.err.println("💥 Errore client " + username + ": " + e.getMessage());
-                } finally {
-                    if (username != null) {
-                        server.removeClient(username);
+                    writeScheduled.set(false);
+                    // Frame accodati tra l'ultimo poll e il reset del flag
+                    if (!outbound.isEmpty()) {
+                        onFrameQueued();
                     }
+                }
+                
+                @Override
+                void sendAndClose(Message message) {
+                    closeAfterFlush = true;
+                    enqueue(message.encode());
+                }
+                
+                @Override
+                boolean isOpen() {
+                    return channel.isOpen();
+                }
+                
+                @Override
+                void close() {
+                    loop.execute(this::closeNow);
+                }
+                
+                void closeNow() {
+                    if (closed) return;
+                    closed = true;
+                    
+                    if (key != null) key.cancel();
                     try {
-                        socket.close();
+                        channel.close();
                     } catch (IOException e) {
                         // Ignora
                     }
-                }
-            }
-            
-            public void sendMessage(Message message) throws IOException {
-                synchronized (output) {
-                    message.writeTo(output);
-                    output.flush();
+                    onClosed(this);
                 }
             }
         }
@@ -274,6 +1987,12 @@ public class CustomProtocolChat {
     
     /**
      * Client Chat
+     * 
+     * Con -Dchat.client.batchMicros > 0 gli invii passano da una pipeline:
+     * send() accoda e ritorna subito, un thread dedicato scrive i messaggi
+     * e fa flush solo quando il lotto raggiunge chat.client.batchBytes o è
+     * trascorso il tempo massimo. Il socket usa TCP_NODELAY perché
+     * l'aggregazione la fa già il client: Nagle aggiungerebbe solo ritardo.
      */
     public static class ChatClient {
         private final String serverHost;
@@ -284,6 +2003,23 @@ public class CustomProtocolChat {
         private DataOutputStream output;
         private volatile boolean connected = false;
         
+        // Copia locale del roster, aggiornata tramite delta versionati
+        private final Set<String> roster = new TreeSet<>();
+        private long rosterVersion = -1; // -1 = snapshot non ancora ricevuto
+        private boolean rosterSyncRequested = false;
+        
+        // Pipeline di invio (facoltativa)
+        private final long batchMicros = Long.getLong("chat.client.batchMicros", 0);
+        private final int batchBytes = Integer.getInteger("chat.client.batchBytes", 16 * 1024);
+        private BlockingQueue<Frame> sendQueue;
+        private Thread senderThread;
+        private final AtomicLong sentFrames = new AtomicLong(0);
+        private final AtomicLong flushes = new AtomicLong(0);
+        
+        // Modalità bot: niente stampa dei messaggi, solo conteggio degli echi
+        private volatile boolean quiet = false;
+        private final AtomicLong echoes = new AtomicLong(0);
+        
         public ChatClient(String serverHost, int serverPort, String username) {
             this.serverHost = serverHost;
             this.serverPort = serverPort;
@@ -292,8 +2028,10 @@ public class CustomProtocolChat {
         
         public void connect() throws IOException {
             socket = new Socket(serverHost, serverPort);
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // Bufferizzato: ogni messaggio diventa una sola write sul socket
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 
+                                                                   Math.max(8192, batchBytes)));
             
             // Invia messaggio di connessione
             Message connectMessage = new Message(MessageType.CONNECT, username, username);
@@ -302,6 +2040,14 @@ public class CustomProtocolChat {
             
             connected = true;
             
+            if (batchMicros > 0) {
+                socket.setTcpNoDelay(true);
+                sendQueue = new ArrayBlockingQueue<>(Integer.getInteger("chat.client.queue", 8192));
+                senderThread = new Thread(this::runSender, "ClientSender");
+                senderThread.setDaemon(true);
+                senderThread.start();
+            }
+            
             // Avvia thread per ricezione messaggi
             Thread readerThread = new Thread(this::readMessages);
             readerThread.setDaemon(true);
@@ -315,26 +2061,178 @@ public class CustomProtocolChat {
         public void sendMessage(String content) throws IOException {
             if (!connected) return;
             
-            Message message = new Message(MessageType.CHAT_MESSAGE, username, content);
+            send(new Message(MessageType.CHAT_MESSAGE, username, content));
+        }
+        
+        public void joinRoom(String room) throws IOException {
+            send(new Message(MessageType.JOIN, username, room, ""));
+        }
+        
+        public void leaveRoom(String room) throws IOException {
+            send(new Message(MessageType.LEAVE, username, room, ""));
+        }
+        
+        public void sendRoomMessage(String room, String content) throws IOException {
+            send(new Message(MessageType.ROOM_MESSAGE, username, room, content));
+        }
+        
+        // "last:N" oppure "since:X"
+        public void requestHistory(String request) throws IOException {
+            send(new Message(MessageType.HISTORY, username, request));
+        }
+        
+        private void send(Message message) throws IOException {
+            if (!connected) return;
+            
+            if (sendQueue != null) {
+                // Pipeline: nessuna attesa del socket né dell'eco del server
+                enqueueFrame(message.encode());
+                return;
+            }
+            
             synchronized (output) {
                 message.writeTo(output);
                 output.flush();
             }
         }
         
+        private void enqueueFrame(Frame frame) throws IOException {
+            try {
+                // Blocca solo se la coda è piena, ricontrollando a intervalli che
+                // il thread di invio non sia terminato per un errore
+                while (!sendQueue.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                    if (!senderThread.isAlive()) {
+                        throw new IOException("Connessione chiusa");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Invio interrotto");
+            }
+        }
+        
+        /**
+         * Thread di invio: scrive i frame nel buffer e fa flush quando il lotto
+         * supera batchBytes o quando scadono batchMicros dal primo frame
+         */
+        private void runSender() {
+            try {
+                while (true) {
+                    Frame frame = sendQueue.take();
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(batchMicros);
+                    int batchedBytes = 0;
+                    int batchedFrames = 0;
+                    
+                    while (frame != null) {
+                        output.write(frame.getBytes());
+                        batchedBytes += frame.getBytes().length;
+                        batchedFrames++;
+                        
+                        if (frame.getType() == MessageType.DISCONNECT) {
+                            output.flush();
+                            flushes.incrementAndGet();
+                            sentFrames.addAndGet(batchedFrames);
+                            return;
+                        }
+                        if (batchedBytes >= batchBytes) break;
+                        
+                        long remaining = deadline - System.nanoTime();
+                        frame = remaining > 0 ? sendQueue.poll(remaining, TimeUnit.NANOSECONDS) 
+                                              : sendQueue.poll();
+                    }
+                    
+                    output.flush();
+                    flushes.incrementAndGet();
+                    sentFrames.addAndGet(batchedFrames);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (connected) {
+                    System.err.println("💥 Errore invio: " + e.getMessage());
+                    connected = false;
+                }
+                // Nessuno svuoterà più la coda: i frame in attesa vengono scartati
+                // e la chiusura del socket sblocca anche il thread di ricezione
+                sendQueue.clear();
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    // Ignora
+                }
+            }
+        }
+        
         public void disconnect() throws IOException {
-            if (!connected) return;
-            
+            boolean wasConnected = connected;
             connected = false;
             
-            Message disconnectMessage = new Message(MessageType.DISCONNECT, username, "");
-            disconnectMessage.writeTo(output);
-            output.flush();
-            
-            socket.close();
+            try {
+                if (wasConnected) {
+                    Message disconnectMessage = new Message(MessageType.DISCONNECT, username, "");
+                    if (sendQueue != null) {
+                        // Il thread di invio svuota la coda e termina dopo il DISCONNECT
+                        enqueueFrame(disconnectMessage.encode());
+                        try {
+                            senderThread.join(5000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    } else {
+                        synchronized (output) {
+                            disconnectMessage.writeTo(output);
+                            output.flush();
+                        }
+                    }
+                }
+            } finally {
+                // Chiuso anche dopo un errore di invio o di ricezione
+                if (socket != null) {
+                    socket.close();
+                }
+            }
             System.out.println("👋 Disconnesso dal server");
         }
         
+        /**
+         * Generatore di traffico: invia count messaggi senza attendere gli
+         * echi, poi aspetta che tornino tutti e riporta throughput e flush
+         */
+        public void runBot(int count, int payloadBytes) throws IOException, InterruptedException {
+            quiet = true;
+            String payload = "x".repeat(Math.max(0, payloadBytes));
+            long echoesBefore = echoes.get();
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < count && connected; i++) {
+                sendMessage(i + " " + payload);
+            }
+            long sent = System.nanoTime();
+            
+            long deadline = sent + TimeUnit.SECONDS.toNanos(30);
+            while (echoes.get() - echoesBefore < count && connected && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            long done = System.nanoTime();
+            
+            double sendSeconds = (sent - start) / 1e9;
+            double totalSeconds = (done - start) / 1e9;
+            long received = echoes.get() - echoesBefore;
+            System.out.println("🤖 Bot: " + count + " messaggi da " + payloadBytes + " byte" +
+                             (sendQueue != null ? " (pipeline " + batchMicros + " µs / " + batchBytes + " byte)" 
+                                                : " (flush a ogni messaggio)"));
+            System.out.printf("   Invio:     %.3f s (%,.0f msg/s)%n", sendSeconds, count / sendSeconds);
+            System.out.printf("   Echi:      %,d/%d in %.3f s (%,.0f msg/s)%n", 
+                            received, count, totalSeconds, received / totalSeconds);
+            if (sendQueue != null) {
+                long flushCount = Math.max(1, flushes.get());
+                System.out.printf("   Flush:     %,d (%.1f messaggi per flush)%n", 
+                                flushCount, sentFrames.get() / (double) flushCount);
+            } else {
+                System.out.printf("   Flush:     %,d (uno per messaggio)%n", count);
+            }
+        }
+        
         private void readMessages() {
             try {
                 while (connected) {
@@ -342,7 +2240,9 @@ public class CustomProtocolChat {
                     
                     switch (message.getType()) {
                         case CHAT_MESSAGE:
-                            if (!username.equals(message.getSender())) {
+                            if (username.equals(message.getSender())) {
+                                echoes.incrementAndGet();
+                            } else if (!quiet) {
                                 System.out.println("💬 " + message);
                             }
                             break;
@@ -352,21 +2252,53 @@ public class CustomProtocolChat {
                             break;
                             
                         case USER_LIST:
-                            String[] users = message.getContent().split(",");
-                            System.out.println("👥 Utenti online: " + String.join(", ", users));
+                            roster.clear();
+                            roster.addAll(Roster.parseUsers(message.getContent()));
+                            rosterVersion = Roster.parseVersion(message.getContent());
+                            rosterSyncRequested = false;
+                            System.out.println("👥 Utenti online (" + roster.size() + "): " + 
+                                             String.join(", ", roster));
+                            break;
+                            
+                        case USER_JOINED:
+                        case USER_LEFT:
+                            applyRosterDelta(message);
+                            break;
+                            
+                        case ROOM_MESSAGE:
+                            if (!username.equals(message.getSender())) {
+                                System.out.println("💬 " + message);
+                            }
+                            break;
+                            
+                        case HEARTBEAT:
+                            // Risposta al ping del server: prova che la connessione è viva
+                            send(new Message(MessageType.HEARTBEAT, username, "pong"));
+                            break;
+                            
+                        case HISTORY:
+                            // Fine della rilettura: "prima|ultima|quanti"
+                            String[] range = message.getContent().split("\\|");
+                            System.out.println("📜 Storico: " + range[2] + " messaggi" +
+                                (range[2].equals("0") ? "" : " (#" + range[0] + " - #" + range[1] + 
+                                 ", prosegui con /history since " + (Long.parseLong(range[1]) + 1) + ")"));
                             break;
                             
                         case CONNECT:
                         case DISCONNECT:
-                        case HEARTBEAT:
+                        case JOIN:
+                        case LEAVE:
+                        case ROSTER_SYNC:
                             // Ignorati nel client
                             break;
                     }
                 }
             } catch (EOFException e) {
-                // Server disconnesso
-                System.out.println("🔌 Server disconnesso");
-                connected = false;
+                // Server disconnesso (non dopo una disconnect() locale)
+                if (connected) {
+                    System.out.println("🔌 Server disconnesso");
+                    connected = false;
+                }
             } catch (IOException e) {
                 if (connected) {
                     System.err.println("💥 Errore ricezione: " + e.getMessage());
@@ -375,6 +2307,38 @@ public class CustomProtocolChat {
             }
         }
         
+        /**
+         * Applica un delta solo se è il successivo atteso; se ne manca
+         * qualcuno chiede al server uno snapshot aggiornato
+         */
+        private void applyRosterDelta(Message message) throws IOException {
+            if (rosterVersion < 0) {
+                return; // Lo snapshot in arrivo conterrà già questa modifica
+            }
+            
+            long version = Roster.parseVersion(message.getContent());
+            if (version <= rosterVersion) {
+                return; // Già applicato
+            }
+            if (version != rosterVersion + 1) {
+                if (!rosterSyncRequested) {
+                    rosterSyncRequested = true;
+                    send(new Message(MessageType.ROSTER_SYNC, username, String.valueOf(rosterVersion)));
+                }
+                return;
+            }
+            
+            List<String> users = Roster.parseUsers(message.getContent());
+            if (message.getType() == MessageType.USER_JOINED) {
+                roster.addAll(users);
+                System.out.println("🔔 " + String.join(", ", users) + " si è unito alla chat");
+            } else {
+                roster.removeAll(users);
+                System.out.println("🔔 " + String.join(", ", users) + " ha lasciato la chat");
+            }
+            rosterVersion = version;
+        }
+        
         public void startInteractiveSession() throws IOException {
             try (Scanner scanner = new Scanner(System.in)) {
                 while (connected) {
@@ -384,7 +2348,9 @@ public class CustomProtocolChat {
                         break;
                     }
                     
-                    if (!line.trim().isEmpty()) {
+                    if (line.startsWith("/")) {
+                        handleCommand(line.trim());
+                    } else if (!line.trim().isEmpty()) {
                         sendMessage(line);
                     }
                 }
@@ -392,6 +2358,195 @@ public class CustomProtocolChat {
             
             disconnect();
         }
+        
+        private void handleCommand(String line) throws IOException {
+            String[] parts = line.split("\\s+", 3);
+            
+            switch (parts[0].toLowerCase()) {
+                case "/join":
+                    if (parts.length >= 2) joinRoom(parts[1]);
+                    break;
+                case "/leave":
+                    if (parts.length >= 2) leaveRoom(parts[1]);
+                    break;
+                case "/room":
+                    if (parts.length >= 3) sendRoomMessage(parts[1], parts[2]);
+                    break;
+                case "/history":
+                    if (parts.length >= 3 && parts[1].equalsIgnoreCase("since")) {
+                        requestHistory("since:" + parts[2]);
+                    } else {
+                        requestHistory("last:" + (parts.length >= 2 ? parts[1] : "50"));
+                    }
+                    break;
+                default:
+                    System.out.println("Comandi: /join <stanza>, /leave <stanza>, /room <stanza> <testo>, " +
+                                     "/history [N | since <seq>], quit");
+            }
+        }
+    }
+    
+    /**
+     * Test di carico delle stanze: connessioni simulate in memoria (nessun socket),
+     * consegna tramite la stessa OutboundQueue usata dal server.
+     * Misura la latenza di consegna per dimensione della stanza.
+     */
+    public static class RoomLoadTest {
+        private final int roomCount;
+        private final int connectionCount;
+        private final int messagesPerRoom;
+        
+        private static final class SimulatedConnection {
+            final OutboundQueue queue;
+            
+            SimulatedConnection(QueueConfig config) {
+                this.queue = new OutboundQueue(config);
+            }
+        }
+        
+        // Risultati di una stanza
+        private static final class RoomResult {
+            final int size;
+            final long[] fanoutNanos;
+            long deliveryNanosSum;
+            long deliveries;
+            
+            RoomResult(int size, int messages) {
+                this.size = size;
+                this.fanoutNanos = new long[messages];
+            }
+        }
+        
+        public RoomLoadTest(int roomCount, int connectionCount, int messagesPerRoom) {
+            this.roomCount = roomCount;
+            this.connectionCount = connectionCount;
+            this.messagesPerRoom = messagesPerRoom;
+        }
+        
+        public void run() throws InterruptedException {
+            System.out.println("🧪 Load test stanze: " + roomCount + " stanze, " + 
+                             connectionCount + " connessioni, " + messagesPerRoom + " messaggi/stanza");
+            
+            RoomIndex<SimulatedConnection> index = new RoomIndex<>(64);
+            QueueConfig config = new QueueConfig(messagesPerRoom, messagesPerRoom, 
+                                                 SlowConsumerPolicy.DROP_OLDEST);
+            
+            // Distribuzione Zipf: poche stanze grandi, molte piccole
+            double[] cumulative = new double[roomCount];
+            double total = 0;
+            for (int r = 0; r < roomCount; r++) {
+                total += 1.0 / (r + 1);
+                cumulative[r] = total;
+            }
+            
+            Random random = new Random(42);
+            long setupStart = System.nanoTime();
+            for (int i = 0; i < connectionCount; i++) {
+                double x = random.nextDouble() * total;
+                int room = Arrays.binarySearch(cumulative, x);
+                room = room >= 0 ? room : -room - 1;
+                index.subscribe(roomName(Math.min(room, roomCount - 1)), 
+                              new SimulatedConnection(config));
+            }
+            System.out.printf("   Iscrizioni completate in %.1f ms (%d stanze attive)%n",
+                            (System.nanoTime() - setupStart) / 1e6, index.roomCount());
+            
+            // Pubblicazione concorrente: ogni task lavora su una stanza diversa
+            RoomResult[] results = new RoomResult[roomCount];
+            ExecutorService publishers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+            long publishStart = System.nanoTime();
+            
+            for (int r = 0; r < roomCount; r++) {
+                final int roomId = r;
+                publishers.execute(() -> results[roomId] = publishRoom(index, roomName(roomId)));
+            }
+            publishers.shutdown();
+            publishers.awaitTermination(10, TimeUnit.MINUTES);
+            
+            long publishNanos = System.nanoTime() - publishStart;
+            long totalDeliveries = 0;
+            for (RoomResult result : results) {
+                totalDeliveries += result.deliveries;
+            }
+            
+            System.out.printf("   Consegne totali: %d in %.1f ms (%.1f M consegne/s)%n",
+                            totalDeliveries, publishNanos / 1e6, 
+                            totalDeliveries / (publishNanos / 1e3));
+            printBuckets(results);
+        }
+        
+        private RoomResult publishRoom(RoomIndex<SimulatedConnection> index, String room) {
+            RoomResult result = new RoomResult(index.size(room), messagesPerRoom);
+            long[] deliverySum = new long[1];
+            
+            for (int m = 0; m < messagesPerRoom; m++) {
+                long start = System.nanoTime();
+                Frame frame = new Message(MessageType.ROOM_MESSAGE, "loadtest", room, 
+                                        "messaggio " + m).encode();
+                int delivered = index.publish(room, connection -> {
+                    connection.queue.offer(frame);
+                    deliverySum[0] += System.nanoTime() - start;
+                });
+                result.fanoutNanos[m] = System.nanoTime() - start;
+                result.deliveries += delivered;
+            }
+            
+            result.deliveryNanosSum = deliverySum[0];
+            return result;
+        }
+        
+        private void printBuckets(RoomResult[] results) {
+            int[] limits = {10, 100, 1000, 10000, Integer.MAX_VALUE};
+            
+            System.out.println();
+            System.out.printf("   %-14s %6s %9s %12s %12s %14s %10s%n", 
+                            "Dimensione", "Stanze", "Media", "p50 fan-out", "p99 fan-out", 
+                            "Consegna media", "ns/dest");
+            
+            int lower = 1;
+            for (int limit : limits) {
+                List<RoomResult> bucket = new ArrayList<>();
+                for (RoomResult result : results) {
+                    if (result.size >= lower && result.size <= limit) {
+                        bucket.add(result);
+                    }
+                }
+                
+                if (!bucket.isEmpty()) {
+                    long sizeSum = 0;
+                    long deliveries = 0;
+                    long deliveryNanos = 0;
+                    List<Long> fanouts = new ArrayList<>();
+                    for (RoomResult result : bucket) {
+                        sizeSum += result.size;
+                        deliveries += result.deliveries;
+                        deliveryNanos += result.deliveryNanosSum;
+                        for (long nanos : result.fanoutNanos) {
+                            fanouts.add(nanos);
+                        }
+                    }
+                    Collections.sort(fanouts);
+                    long fanoutSum = 0;
+                    for (long nanos : fanouts) {
+                        fanoutSum += nanos;
+                    }
+                    
+                    String range = limit == Integer.MAX_VALUE ? ">" + (lower - 1) : lower + "-" + limit;
+                    System.out.printf("   %-14s %6d %9d %9.1f µs %9.1f µs %11.1f µs %10.1f%n",
+                                    range, bucket.size(), sizeSum / bucket.size(),
+                                    fanouts.get(fanouts.size() / 2) / 1e3,
+                                    fanouts.get((int) (fanouts.size() * 0.99)) / 1e3,
+                                    deliveries == 0 ? 0.0 : deliveryNanos / 1e3 / deliveries,
+                                    deliveries == 0 ? 0.0 : (double) fanoutSum / deliveries);
+                }
+                lower = limit + 1;
+            }
+        }
+        
+        private static String roomName(int id) {
+            return "stanza-" + id;
+        }
     }
     
     public static void main(String[] args) {
@@ -400,10 +2555,37 @@ public class CustomProtocolChat {
             System.out.println("Utilizzo:");
             System.out.println("  java CustomProtocolChat server <porta>");
             System.out.println("  java CustomProtocolChat client <host> <porta> <username>");
+            System.out.println("  java CustomProtocolChat loadtest [stanze] [connessioni] [messaggi]");
+            System.out.println("  java CustomProtocolChat bot <host> <porta> <username> [messaggi] [byte]");
             System.out.println();
             System.out.println("Esempi:");
             System.out.println("  java CustomProtocolChat server 8080");
             System.out.println("  java CustomProtocolChat client localhost 8080 Mario");
+            System.out.println("  java CustomProtocolChat loadtest 100 50000 100");
+            System.out.println("  java -Dchat.client.batchMicros=200 CustomProtocolChat bot localhost 8080 bot1 100000 64");
+            System.out.println();
+            System.out.println("Comandi client: /join <stanza>, /leave <stanza>, /room <stanza> <testo>, " +
+                             "/history [N | since <seq>]");
+            System.out.println();
+            System.out.println("Opzioni server (system property):");
+            System.out.println("  -Dchat.transport=blocking         blocking|nio (Selector con pochi thread)");
+            System.out.println("  -Dchat.io.threads=<n. CPU>        Thread di I/O del trasporto nio");
+            System.out.println("  -Dchat.heartbeat.intervalMs=15000 Inattività prima del ping (0 = disattivato)");
+            System.out.println("  -Dchat.heartbeat.maxMissed=3      Ping senza risposta prima della chiusura");
+            System.out.println("  -Dchat.journal.dir=<dir>          Storico persistente su segmenti mappati (default: off)");
+            System.out.println("  -Dchat.journal.segmentBytes=4194304  Dimensione di un segmento");
+            System.out.println("  -Dchat.journal.retentionSegments=8   Segmenti conservati");
+            System.out.println("  -Dchat.journal.maxReplay=1000     Messaggi massimi per richiesta di storico");
+            System.out.println("  -Dchat.queue.capacity=1024        Messaggi massimi in coda per client");
+            System.out.println("  -Dchat.queue.highWatermark=1024   Soglia di disconnessione (policy DISCONNECT)");
+            System.out.println("  -Dchat.queue.policy=DROP_OLDEST   DROP_OLDEST|DROP_NEWEST|DISCONNECT|COLLAPSE_USER_LIST");
+            System.out.println("  -Dchat.queue.statsInterval=30     Secondi tra i report dei client lenti (0 = off)");
+            System.out.println("  -Dchat.roster.coalesceMs=50       Finestra di aggregazione join/leave (0 = immediato)");
+            System.out.println();
+            System.out.println("Opzioni client (system property):");
+            System.out.println("  -Dchat.client.batchMicros=0       Attesa massima di un lotto (0 = flush a ogni messaggio)");
+            System.out.println("  -Dchat.client.batchBytes=16384    Byte che forzano il flush del lotto");
+            System.out.println("  -Dchat.client.queue=8192          Messaggi in attesa nella pipeline di invio");
             return;
         }
         
@@ -447,6 +2629,44 @@ public class CustomProtocolChat {
                 System.err.println("💥 Errore client: " + e.getMessage());
             }
             
+        } else if ("bot".equals(mode)) {
+            if (args.length < 4) {
+                System.err.println("❌ Host, porta e username richiesti per il bot");
+                return;
+            }
+            
+            try {
+                int port = Integer.parseInt(args[2]);
+                int messages = args.length >= 5 ? Integer.parseInt(args[4]) : 100_000;
+                int payload = args.length >= 6 ? Integer.parseInt(args[5]) : 64;
+                
+                ChatClient client = new ChatClient(args[1], port, args[3]);
+                client.connect();
+                client.runBot(messages, payload);
+                client.disconnect();
+                
+            } catch (NumberFormatException e) {
+                System.err.println("❌ Parametri non validi: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("💥 Errore bot: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+        } else if ("loadtest".equals(mode)) {
+            try {
+                int roomCount = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+                int connections = args.length >= 3 ? Integer.parseInt(args[2]) : 50_000;
+                int messages = args.length >= 4 ? Integer.parseInt(args[3]) : 100;
+                
+                new RoomLoadTest(roomCount, connections, messages).run();
+                
+            } catch (NumberFormatException e) {
+                System.err.println("❌ Parametri non validi: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
         } else {
             System.err.println("❌ Modalità non riconosciuta: " + mode);
         }
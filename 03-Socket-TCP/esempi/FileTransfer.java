@@ -14,129 +14,2057 @@
  */
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class FileTransfer {
     
+    /*
+     * Header del trasferimento singolo: nome, dimensione, checksum.
+     * Il checksum è "algoritmo:valore", oppure "algoritmo:-" quando il valore
+     * arriva dopo i dati; senza prefisso è l'MD5 dei client precedenti.
+     */
+    static final String CHECKSUM_TRAILER = "-";
+    
+    // Finestra di mappatura per il calcolo dei checksum
+    static final long HASH_WINDOW = 64L * 1024 * 1024;
+    
+    // Blocchi del Merkle tree nel checksum dell'intero file (crc32c, xxh64)
+    static final long MERKLE_BLOCK = 8L * 1024 * 1024;
+    
+    /*
+     * Protocollo a chunk (trasferimento su più connessioni parallele).
+     * Il primo campo della connessione, normalmente il nome del file,
+     * indica invece l'operazione:
+     *   /MANIFEST  nome, dimensione, dimensione chunk, algoritmo proposto
+     *                                                   -> id, algoritmo scelto, chunk mancanti
+     *   /CHUNKS    id, poi [indice, lunghezza, hash, codifica, lunghezza dati, dati]...
+     *              fino a indice -1                     -> chunk ricevuti, chunk scartati
+     *   /COMMIT    id, numero chunk, lunghezza hash, hash di ogni chunk, radice Merkle
+     *                                                   -> esito, messaggio, chunk da reinviare
+     * 
+     * Lo stato (chunk completati e hash) è salvato accanto al file .part, così
+     * un trasferimento interrotto riprende dai chunk mancanti anche dopo un
+     * riavvio del server o del client.
+     */
+    static final String OP_MANIFEST = "/MANIFEST";
+    static final String OP_CHUNKS = "/CHUNKS";
+    static final String OP_COMMIT = "/COMMIT";
+    static final String OP_BATCH = "/BATCH";
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    
+    // Chunk per file al massimo: limita bitmap e stato che il server alloca
+    // per un manifest (8 TB con i chunk predefiniti da 8 MB)
+    static final int MAX_CHUNKS = 1 << 20;
+    
+    /*
+     * Sincronizzazione di una directory su una sola connessione:
+     *   /BATCH  algoritmo, numero file, [percorso, dimensione, data modifica]...
+     *                                                   -> indici dei file con stessa dimensione e data
+     *           hash di quei file                       -> indici dei file da inviare
+     *           poi [indice, dati, hash]... fino a -1   -> indici dei file falliti
+     */
+    static final int BATCH_BUFFER = 256 * 1024;
+    
+    // File per batch al massimo: il numero arriva dal client prima degli elenchi
+    static final int MAX_BATCH_FILES = 1 << 20;
+    
+    // Codifica dei dati di un chunk: così come sono o compressi con Deflater
+    static final byte ENCODING_STORED = 0;
+    static final byte ENCODING_DEFLATE = 1;
+    
     /**
      * Server per ricezione file
      */
     public static class Server {
+        private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+        // Quantità di dati concessa per volta dallo scheduler del disco
+        private static final long SCHEDULER_SLICE = 1024 * 1024;
+        
         private final int port;
         private final String saveDirectory;
+        private final boolean zeroCopy;
+        
+        // Modalità concorrente: -Dtransfer.maxActive > 1
+        private final int maxActive = Math.max(1, Integer.getInteger("transfer.maxActive", 1));
+        private final int maxPending = Integer.getInteger("transfer.maxPending", 64);
+        private final DiskBandwidthLimiter diskLimiter = 
+            new DiskBandwidthLimiter(Long.getLong("transfer.diskMBps", 0) * 1024 * 1024);
+        
+        // Memoria diretta per i buffer dei chunk in ricezione, condivisa da tutte
+        // le connessioni /CHUNKS (permessi in KB); oltre il limite si attende, poi
+        // la connessione viene rifiutata e il client riprende più tardi
+        private static final long CHUNK_MEMORY_WAIT_SECONDS = 30;
+        private final int chunkMemoryKB = (int) Math.min(Integer.MAX_VALUE, 
+            Math.max(1, Long.getLong("transfer.chunkMemoryMB", 512)) * 1024);
+        private final Semaphore chunkMemory = new Semaphore(chunkMemoryKB, true);
+        
+        // Statistiche: i trasferimenti attivi sono quelli registrati nel campionatore
+        private final TransferSampler sampler = new TransferSampler();
+        private final AtomicLong completedTransfers = new AtomicLong(0);
+        private final AtomicLong failedTransfers = new AtomicLong(0);
+        private final AtomicLong rejectedTransfers = new AtomicLong(0);
+        private final AtomicLong totalBytes = new AtomicLong(0);
+        
+        // Trasferimenti a chunk in corso, per nome file
+        private final Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+        
+        public Server(int port, String saveDirectory) {
+            this(port, saveDirectory, Boolean.getBoolean("transfer.zeroCopy"));
+        }
+        
+        public Server(int port, String saveDirectory, boolean zeroCopy) {
+            this.port = port;
+            this.saveDirectory = saveDirectory;
+            this.zeroCopy = zeroCopy;
+            sampler.addListener(new ConsoleProgress());
+        }
+        
+        public void start() throws IOException {
+            // Crea directory se non existe
+            Files.createDirectories(Paths.get(saveDirectory));
+            
+            System.out.println("📁 File Transfer Server avviato");
+            System.out.println("   Porta: " + port);
+            System.out.println("   Directory: " + new File(saveDirectory).getAbsolutePath());
+            System.out.println("   Ricezione: " + (zeroCopy ? "transferFrom (copia dal canale)" : "stream 8 KB"));
+            System.out.println("   Trasferimenti attivi: " + (maxActive == 1 ? "1 (seriale)" : 
+                             "max " + maxActive + ", max " + maxPending + " in attesa"));
+            System.out.println("   Banda disco: " + (diskLimiter.isLimited() ? 
+                             formatFileSize(diskLimiter.getBytesPerSecond()) + "/s" : "illimitata"));
+            System.out.println("🛑 Premi Ctrl+C per fermare");
+            System.out.println("=" .repeat(50));
+            
+            startStatsThread();
+            
+            // ServerSocketChannel: ogni socket accettato ha anche il suo canale,
+            // necessario a transferFrom
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.bind(new InetSocketAddress(port));
+                
+                if (maxActive == 1) {
+                    while (true) {
+                        serve(serverChannel.accept(), System.nanoTime());
+                    }
+                }
+                
+                // Pool limitato: oltre maxActive i trasferimenti attendono in coda
+                // (FIFO), oltre maxPending vengono rifiutati
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    maxActive, maxActive, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, maxPending)),
+                    new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger(1);
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "Transfer-" + counter.getAndIncrement());
+                        }
+                    });
+                
+                while (true) {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    long acceptedAt = System.nanoTime();
+                    try {
+                        executor.execute(() -> serve(clientChannel, acceptedAt));
+                    } catch (RejectedExecutionException e) {
+                        rejectedTransfers.incrementAndGet();
+                        System.err.println("🚫 Trasferimento rifiutato - troppi in attesa");
+                        clientChannel.close();
+                    }
+                }
+            }
+        }
+        
+        private void serve(SocketChannel clientChannel, long acceptedAt) {
+            try (SocketChannel channel = clientChannel) {
+                Socket clientSocket = channel.socket();
+                System.out.println("\n🔗 Client connesso: " + clientSocket.getRemoteSocketAddress());
+                handleFileTransfer(clientSocket, acceptedAt);
+                
+            } catch (IOException e) {
+                System.err.println("❌ Errore durante il trasferimento: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Un client che invia dati incoerenti non deve fermare il ciclo di accept
+                System.err.println("❌ Errore inatteso durante il trasferimento: " + e);
+            }
+        }
+        
+        public List<TransferMetrics> getActiveTransfers() {
+            return sampler.getActive();
+        }
+        
+        // Metriche aggregate dei trasferimenti in corso, calcolate al momento
+        public LiveStats getLiveStats() {
+            return new LiveStats(sampler.getActive(), completedTransfers.get(), failedTransfers.get(),
+                                 rejectedTransfers.get(), totalBytes.get());
+        }
+        
+        // Il listener riceve i campioni di tutti i trasferimenti del server
+        public void addTransferListener(TransferListener listener) {
+            sampler.addListener(listener);
+        }
+        
+        private void beginTransfer(TransferMetrics metrics) {
+            sampler.start(metrics);
+        }
+        
+        private void endTransfer(TransferMetrics metrics, boolean success) {
+            sampler.finish(metrics, success);
+            totalBytes.addAndGet(metrics.getBytes());
+            (success ? completedTransfers : failedTransfers).incrementAndGet();
+        }
+        
+        private void startStatsThread() {
+            long intervalSeconds = Long.getLong("transfer.statsInterval", 10);
+            if (intervalSeconds <= 0) return;
+            
+            Thread statsThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSeconds * 1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    printStats();
+                }
+            }, "TransferStatsThread");
+            statsThread.setDaemon(true);
+            statsThread.start();
+        }
+        
+        private void printStats() {
+            List<TransferMetrics> active = getActiveTransfers();
+            if (active.isEmpty()) return;
+            
+            System.out.println("\n📊 Trasferimenti: " + new LiveStats(active, completedTransfers.get(), 
+                             failedTransfers.get(), rejectedTransfers.get(), totalBytes.get()));
+            for (TransferMetrics metrics : active) {
+                System.out.println("   " + metrics);
+            }
+        }
+        
+        private void handleFileTransfer(Socket clientSocket, long acceptedAt) throws IOException {
+            // Stream non bufferizzati: dopo l'header i dati si leggono dal canale
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            
+            // Legge metadata file (o l'operazione del protocollo a chunk)
+            String fileName = in.readUTF();
+            switch (fileName) {
+                case OP_MANIFEST:
+                    handleManifest(in, out, acceptedAt);
+                    return;
+                case OP_CHUNKS:
+                    handleChunks(clientSocket.getChannel(), in, out);
+                    return;
+                case OP_COMMIT:
+                    handleCommit(in, out);
+                    return;
+                case OP_BATCH:
+                    handleBatch(clientSocket, acceptedAt);
+                    return;
+                default:
+                    break;
+            }
+            long fileSize = in.readLong();
+            String checksum = in.readUTF();
+            
+            // Algoritmo indicato dal client; senza prefisso è l'MD5
+            Integrity integrity = Integrity.MD5;
+            int separator = checksum.indexOf(':');
+            if (separator >= 0) {
+                integrity = Integrity.fromId(checksum.substring(0, separator));
+                if (integrity == null) {
+                    System.out.println("❌ Algoritmo di integrità non supportato: " + 
+                                     checksum.substring(0, separator));
+                    out.writeBoolean(false);
+                    out.writeUTF("Algoritmo di integrità non supportato: " + checksum.substring(0, separator));
+                    out.flush();
+                    return;
+                }
+                checksum = checksum.substring(separator + 1);
+            }
+            boolean trailer = CHECKSUM_TRAILER.equals(checksum);
+            
+            System.out.println("📄 File: " + fileName);
+            System.out.println("📏 Dimensione: " + formatFileSize(fileSize));
+            System.out.println("🔐 Checksum " + integrity.id + ": " + (trailer ? "(in coda ai dati)" : checksum));
+            
+            // Prepara file di destinazione
+            Path filePath = Paths.get(saveDirectory, fileName);
+            File destFile = filePath.toFile();
+            
+            // Controlla se file esiste
+            if (destFile.exists()) {
+                System.out.println("⚠️ File già esistente, verrà sovrascritto");
+            }
+            
+            TransferMetrics metrics = new TransferMetrics(fileName, fileSize, acceptedAt);
+            beginTransfer(metrics);
+            boolean checksumValid = false;
+            
+            try {
+                System.out.println("📥 Ricezione in corso...");
+                String receivedChecksum = zeroCopy 
+                    ? receiveTransferFrom(clientSocket.getChannel(), filePath, fileSize, metrics, integrity)
+                    : receiveStream(in, destFile, fileSize, metrics, integrity);
+                
+                if (trailer) {
+                    checksum = in.readUTF();
+                }
+                
+                // Verifica checksum
+                checksumValid = checksum.equalsIgnoreCase(receivedChecksum);
+                if (!checksumValid) {
+                    System.out.println("   Atteso: " + checksum);
+                    System.out.println("   Ricevuto: " + receivedChecksum);
+                }
+            } finally {
+                endTransfer(metrics, checksumValid);
+            }
+            
+            System.out.println("✅ Trasferimento completato: " + formatFileSize(fileSize));
+            System.out.println("🔍 Verifica integrità: " + (checksumValid ? "OK" : "FALLITA"));
+            System.out.println("📊 " + metrics);
+            
+            // Risposta al client
+            out.writeBoolean(checksumValid);
+            out.writeUTF(checksumValid ? "File ricevuto correttamente" : "Errore checksum");
+            out.flush();
+            
+            System.out.println("📁 File salvato: " + destFile.getAbsolutePath());
+        }
+        
+        /**
+         * Apre o riprende un trasferimento a chunk: il file viene creato come
+         * .part, dimensionato e rinominato solo al commit. La risposta elenca
+         * i chunk che il client deve ancora inviare.
+         */
+        private void handleManifest(DataInputStream in, DataOutputStream out, long acceptedAt) 
+                throws IOException {
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+            int chunkSize = in.readInt();
+            String proposed = in.readUTF();
+            
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || fileSize < 0) {
+                throw new IOException("Manifest non valido: chunk da " + chunkSize + " byte");
+            }
+            long chunks = ChunkedUpload.chunkCount(fileSize, chunkSize);
+            if (chunks > MAX_CHUNKS) {
+                throw new IOException("Manifest non valido: " + chunks + " chunk, massimo " + MAX_CHUNKS);
+            }
+            
+            // Il nome del client resta dentro la directory di destinazione; la
+            // forma normalizzata è anche l'id del trasferimento
+            Path root = Paths.get(saveDirectory).toAbsolutePath().normalize();
+            Path target = resolveInside(root, fileName);
+            String id = root.relativize(target).toString();
+            
+            // Algoritmo proposto dal client se supportato, altrimenti xxHash64
+            Integrity integrity = Integrity.fromId(proposed);
+            if (integrity == null) {
+                integrity = Integrity.XXH64;
+            }
+            
+            ChunkedUpload upload;
+            synchronized (uploads) {
+                upload = uploads.get(id);
+                if (upload != null && !upload.matches(fileSize, chunkSize, integrity)) {
+                    // Stesso nome ma file diverso: si riparte da zero
+                    uploads.remove(id);
+                    sampler.finish(upload.metrics, false);
+                    upload.discard();
+                    upload = null;
+                }
+                if (upload == null) {
+                    Files.createDirectories(target.getParent());
+                    upload = new ChunkedUpload(target, fileSize, chunkSize,
+                                               integrity, new TransferMetrics(id, fileSize, acceptedAt));
+                    uploads.put(id, upload);
+                    beginTransfer(upload.metrics);
+                }
+            }
+            
+            List<Integer> missing = upload.missingChunks();
+            System.out.println("📄 File a chunk: " + id + " (" + formatFileSize(fileSize) + ", " +
+                             upload.chunkCount + " chunk da " + formatFileSize(chunkSize) + 
+                             ", integrità " + integrity.id + ")");
+            if (missing.size() < upload.chunkCount) {
+                System.out.println("♻️  Ripresa: " + (upload.chunkCount - missing.size()) + 
+                                 " chunk già ricevuti, " + missing.size() + " mancanti");
+            }
+            
+            out.writeUTF(id);
+            out.writeUTF(integrity.id);
+            writeIndexes(out, missing);
+            out.flush();
+        }
+        
+        /**
+         * Riceve chunk su una delle connessioni parallele. La ricezione è una
+         * pipeline a tre stadi: il thread della connessione legge i frame dal
+         * socket, lo stadio di decodifica decomprime e verifica l'hash, lo
+         * stadio di scrittura salva con FileChannel.write posizionale. Pochi
+         * buffer in rotazione limitano la memoria e, quando sono tutti
+         * occupati, fermano la lettura dal socket.
+         */
+        private void handleChunks(SocketChannel channel, DataInputStream in, DataOutputStream out) 
+                throws IOException {
+            String id = in.readUTF();
+            ChunkedUpload upload = uploads.get(id);
+            if (upload == null) {
+                throw new IOException("Trasferimento sconosciuto: " + id);
+            }
+            
+            try (ChunkReceiver receiver = new ChunkReceiver(upload)) {
+                while (true) {
+                    int index = in.readInt();
+                    if (index < 0) break;
+                    
+                    ChunkSlot slot = receiver.nextSlot();
+                    slot.index = index;
+                    slot.length = in.readInt();
+                    in.readFully(slot.expected);
+                    slot.encoding = in.readByte();
+                    int payloadLength = in.readInt();
+                    
+                    if (index >= upload.chunkCount || slot.length != upload.chunkLength(index) ||
+                        payloadLength < 0 || payloadLength > upload.chunkSize ||
+                        (slot.encoding == ENCODING_STORED && payloadLength != slot.length) ||
+                        (slot.encoding != ENCODING_STORED && slot.encoding != ENCODING_DEFLATE)) {
+                        throw new IOException("Chunk non valido: " + index + " (" + slot.length + " byte)");
+                    }
+                    
+                    slot.payload.clear().limit(payloadLength);
+                    long readStart = System.nanoTime();
+                    while (slot.payload.hasRemaining()) {
+                        if (channel.read(slot.payload) < 0) {
+                            throw new IOException("Connessione interrotta durante il chunk " + index);
+                        }
+                    }
+                    upload.metrics.addNetworkTime(System.nanoTime() - readStart);
+                    slot.payload.flip();
+                    upload.metrics.addBytes(slot.length);
+                    upload.metrics.addWireBytes(payloadLength);
+                    
+                    receiver.decode(slot);
+                }
+                
+                receiver.finish();
+                out.writeInt(receiver.received.get());
+                out.writeInt(receiver.rejected.get());
+                out.flush();
+            }
+        }
+        
+        /**
+         * Stadi di decodifica e scrittura di una connessione /CHUNKS, ciascuno
+         * con un proprio thread; l'Inflater è riusato per tutti i chunk
+         */
+        private class ChunkReceiver implements Closeable {
+            private static final int PIPELINE_SLOTS = 3;
+            
+            private final ChunkedUpload upload;
+            private final BlockingQueue<ChunkSlot> free = new ArrayBlockingQueue<>(PIPELINE_SLOTS);
+            private final ExecutorService decodeStage = Executors.newSingleThreadExecutor(r -> 
+                new Thread(r, "ChunkDecode"));
+            private final ExecutorService writeStage = Executors.newSingleThreadExecutor(r -> 
+                new Thread(r, "ChunkWrite"));
+            private final Inflater inflater = new Inflater();
+            private final Hasher hasher;
+            private final AtomicReference<Throwable> failure = new AtomicReference<>();
+            private final int memoryKB;
+            final AtomicInteger received = new AtomicInteger(0);
+            final AtomicInteger rejected = new AtomicInteger(0);
+            
+            ChunkReceiver(ChunkedUpload upload) throws IOException {
+                this.upload = upload;
+                this.hasher = upload.integrity.newHasher();
+                
+                // Caso peggiore: buffer dei dati e di decompressione per ogni slot
+                long bytes = 2L * PIPELINE_SLOTS * upload.chunkSize;
+                this.memoryKB = (int) ((bytes + 1023) / 1024);
+                try {
+                    if (memoryKB > chunkMemoryKB || 
+                        !chunkMemory.tryAcquire(memoryKB, CHUNK_MEMORY_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                        throw new IOException("Memoria per i chunk esaurita: " + formatFileSize(bytes) + 
+                                            " richiesti, limite " + formatFileSize(chunkMemoryKB * 1024L));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Ricezione interrotta");
+                }
+                try {
+                    for (int i = 0; i < PIPELINE_SLOTS; i++) {
+                        free.add(new ChunkSlot(upload.chunkSize, upload.integrity.digestLength));
+                    }
+                } catch (OutOfMemoryError e) {
+                    chunkMemory.release(memoryKB);
+                    throw new IOException("Memoria diretta esaurita: " + e.getMessage());
+                }
+            }
+            
+            // Buffer libero per il prossimo frame; attende se la pipeline è piena
+            ChunkSlot nextSlot() throws IOException {
+                try {
+                    ChunkSlot slot = free.take();
+                    checkFailure();
+                    return slot;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Ricezione interrotta");
+                }
+            }
+            
+            void decode(ChunkSlot slot) {
+                decodeStage.execute(() -> {
+                    boolean handedOff = false;
+                    try {
+                        if (failure.get() != null) return;
+                        if (!decodeAndVerify(slot)) {
+                            rejected.incrementAndGet(); // Verrà segnalato come mancante al commit
+                            return;
+                        }
+                        writeStage.execute(() -> write(slot));
+                        handedOff = true;
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        if (!handedOff) free.add(slot);
+                    }
+                });
+            }
+            
+            private boolean decodeAndVerify(ChunkSlot slot) {
+                slot.output = slot.payload;
+                if (slot.encoding == ENCODING_DEFLATE) {
+                    long cpuStart = cpuTimeNanos();
+                    try {
+                        ByteBuffer data = slot.data().clear().limit(slot.length);
+                        inflater.reset();
+                        inflater.setInput(slot.payload);
+                        while (data.hasRemaining() && !inflater.finished()) {
+                            if (inflater.inflate(data) == 0 && inflater.needsInput()) break;
+                        }
+                        if (data.hasRemaining() || !inflater.finished()) {
+                            return false; // Dati compressi troncati o di lunghezza diversa
+                        }
+                        slot.output = data.flip();
+                    } catch (DataFormatException e) {
+                        return false;
+                    } finally {
+                        upload.metrics.addCodecCpu(cpuTimeNanos() - cpuStart);
+                    }
+                }
+                
+                hasher.update(slot.output);
+                slot.output.rewind();
+                return Arrays.equals(hasher.digest(), slot.expected);
+            }
+            
+            private void write(ChunkSlot slot) {
+                try {
+                    if (failure.get() != null) return;
+                    upload.metrics.addDiskWait(diskLimiter.acquire(slot.length));
+                    if (failure.get() != null) return;
+                    long position = (long) slot.index * upload.chunkSize;
+                    long writeStart = System.nanoTime();
+                    while (slot.output.hasRemaining()) {
+                        position += upload.file.write(slot.output, position);
+                    }
+                    upload.metrics.addDiskTime(System.nanoTime() - writeStart);
+                    upload.complete(slot.index, slot.expected);
+                    received.incrementAndGet();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    free.add(slot);
+                }
+            }
+            
+            // Attende che gli stadi abbiano smaltito tutti i chunk letti: senza
+            // scadenza, il lavoro in sospeso è limitato dagli slot della pipeline
+            void finish() throws IOException {
+                try {
+                    // Lo stadio di decodifica accoda le scritture prima di terminare
+                    awaitStage(decodeStage);
+                    awaitStage(writeStage);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Ricezione interrotta");
+                }
+                checkFailure();
+            }
+            
+            private void awaitStage(ExecutorService stage) throws InterruptedException {
+                stage.shutdown();
+                stage.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            
+            private void checkFailure() throws IOException {
+                Throwable t = failure.get();
+                if (t != null) {
+                    throw t instanceof IOException ? (IOException) t : new IOException(t);
+                }
+            }
+            
+            /**
+             * Nessun interrupt agli stadi: un thread interrotto dentro FileChannel.write
+             * chiuderebbe il file, condiviso con le altre connessioni dello stesso
+             * upload. Gli slot ancora in coda vengono saltati e si attende la
+             * fine della scrittura in corso.
+             */
+            @Override
+            public void close() {
+                failure.compareAndSet(null, new IOException("Ricezione chiusa"));
+                boolean interrupted = false;
+                for (ExecutorService stage : Arrays.asList(decodeStage, writeStage)) {
+                    while (true) {
+                        try {
+                            awaitStage(stage);
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                inflater.end();
+                chunkMemory.release(memoryKB);
+            }
+        }
+        
+        /**
+         * Manifest finale: il client invia l'hash di ogni chunk e la radice del
+         * Merkle tree. Il server rilegge il file assemblato, ne costruisce
+         * l'albero e confronta le radici; se differiscono, scende nei due
+         * alberi per trovare i chunk da reinviare.
+         */
+        private void handleCommit(DataInputStream in, DataOutputStream out) throws IOException {
+            String id = in.readUTF();
+            int count = in.readInt();
+            int digestLength = in.readInt();
+            if (count < 0 || count > MAX_CHUNKS || digestLength <= 0 || digestLength > 64) {
+                throw new IOException("Manifest non valido: " + count + " hash da " + digestLength + " byte");
+            }
+            
+            // Si alloca solo per un trasferimento noto e con il numero di chunk atteso
+            ChunkedUpload upload = uploads.get(id);
+            if (upload == null) {
+                // Hash e radice scartati: la connessione resta allineata
+                long skip = (count + 1L) * digestLength;
+                while (skip > 0) {
+                    int skipped = in.skipBytes((int) Math.min(skip, Integer.MAX_VALUE));
+                    if (skipped <= 0) {
+                        in.readByte();
+                        skipped = 1;
+                    }
+                    skip -= skipped;
+                }
+                out.writeBoolean(false);
+                out.writeUTF("Trasferimento sconosciuto");
+                writeIndexes(out, Collections.emptyList());
+                out.flush();
+                return;
+            }
+            
+            if (count != upload.chunkCount || digestLength != upload.integrity.digestLength) {
+                throw new IOException("Manifest con " + count + " chunk, attesi " + upload.chunkCount);
+            }
+            byte[][] leaves = new byte[count][digestLength];
+            for (byte[] leaf : leaves) {
+                in.readFully(leaf);
+            }
+            byte[] clientRoot = new byte[digestLength];
+            in.readFully(clientRoot);
+            
+            MerkleTree clientTree = new MerkleTree(upload.integrity, leaves);
+            if (!Arrays.equals(clientTree.root(), clientRoot)) {
+                throw new IOException("Radice Merkle non coerente con gli hash dei chunk");
+            }
+            
+            List<Integer> missing = upload.verify(clientTree);
+            boolean success = missing.isEmpty();
+            TransferMetrics metrics = upload.metrics;
+            if (success) {
+                uploads.remove(id);
+                upload.commit();
+                endTransfer(metrics, true);
+            }
+            
+            System.out.println("🔍 Verifica file assemblato " + metrics.getFileName() + ": " + 
+                             (success ? "OK (radice " + upload.integrity.id + " " + bytesToHex(clientRoot) + ")"
+                                      : missing.size() + " chunk mancanti o corrotti"));
+            if (success) {
+                System.out.println("📊 " + metrics);
+                System.out.println("📁 File salvato: " + upload.target.toAbsolutePath());
+            }
+            
+            out.writeBoolean(success);
+            out.writeUTF(success ? "File ricevuto correttamente" : 
+                         "Chunk mancanti o corrotti: " + missing.size());
+            writeIndexes(out, missing);
+            out.flush();
+        }
+        
+        /**
+         * Sincronizzazione di molti file su una sola connessione. Le voci del
+         * manifest si confrontano con la destinazione man mano che arrivano;
+         * solo per i file con stessa dimensione e data si confrontano anche
+         * gli hash, e un file si salta quando coincidono tutti e tre. Il
+         * client invia poi i file richiesti uno dopo l'altro, senza conferme
+         * intermedie: gli esiti arrivano tutti alla fine.
+         */
+        private void handleBatch(Socket socket, long acceptedAt) throws IOException {
+            // Nulla è stato letto in anticipo dallo stream non bufferizzato:
+            // da qui in poi si può leggere con un buffer grande
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), BATCH_BUFFER));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER));
+            
+            String algorithm = in.readUTF();
+            Integrity integrity = Integrity.fromId(algorithm);
+            if (integrity == null) {
+                throw new IOException("Algoritmo di integrità non supportato: " + algorithm);
+            }
+            
+            Path root = Paths.get(saveDirectory).toAbsolutePath().normalize();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_BATCH_FILES) {
+                throw new IOException("Batch non valido: " + count + " file, massimo " + MAX_BATCH_FILES);
+            }
+            // Liste che crescono con le voci lette, non dimensionate dal numero dichiarato
+            List<BatchEntry> entries = new ArrayList<>();
+            List<Path> targets = new ArrayList<>();
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                BatchEntry entry = BatchEntry.read(in);
+                Path target = resolveInside(root, entry.path);
+                entries.add(entry);
+                targets.add(target);
+                if (entry.sameMetadata(target)) {
+                    candidates.add(i);
+                }
+            }
+            writeIndexes(out, candidates);
+            out.flush();
+            
+            // Hash locali dei candidati mentre il client calcola i suoi
+            String[] localHashes = new String[candidates.size()];
+            for (int i = 0; i < localHashes.length; i++) {
+                int index = candidates.get(i);
+                localHashes[i] = checksumFile(integrity, targets.get(index), entries.get(index).size);
+            }
+            BitSet wanted = new BitSet(count);
+            wanted.set(0, count);
+            for (int i = 0; i < localHashes.length; i++) {
+                if (localHashes[i].equalsIgnoreCase(in.readUTF())) {
+                    wanted.clear(candidates.get(i));
+                }
+            }
+            
+            List<Integer> wantedList = new ArrayList<>();
+            long wantedBytes = 0;
+            for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+                wantedList.add(i);
+                wantedBytes += entries.get(i).size;
+            }
+            writeIndexes(out, wantedList);
+            out.flush();
+            System.out.println("📦 Batch: " + count + " file, da ricevere " + wantedList.size() + 
+                             " (" + formatFileSize(wantedBytes) + "), già aggiornati " + 
+                             (count - wantedList.size()));
+            
+            TransferMetrics metrics = new TransferMetrics("batch di " + wantedList.size() + " file", 
+                                                          wantedBytes, acceptedAt);
+            beginTransfer(metrics);
+            List<Integer> failed = new ArrayList<>();
+            Set<Path> directories = new HashSet<>();
+            byte[] buffer = new byte[BATCH_BUFFER];
+            boolean complete = false;
+            
+            try {
+                while (true) {
+                    int index = in.readInt();
+                    if (index < 0) break;
+                    if (index >= count || !wanted.get(index)) {
+                        throw new IOException("File non richiesto nel batch: " + index);
+                    }
+                    wanted.clear(index);
+                    
+                    Path target = targets.get(index);
+                    if (directories.add(target.getParent())) {
+                        Files.createDirectories(target.getParent());
+                    }
+                    if (!receiveBatchFile(in, target, entries.get(index), integrity, buffer, metrics)) {
+                        System.out.println("❌ Checksum errato: " + entries.get(index).path);
+                        failed.add(index);
+                    }
+                }
+                complete = wanted.isEmpty() && failed.isEmpty();
+            } finally {
+                endTransfer(metrics, complete);
+            }
+            
+            wanted.stream().forEach(failed::add);
+            System.out.println("📊 " + metrics + String.format(", %.0f file/s", 
+                             wantedList.size() * 1000.0 / Math.max(1, metrics.getElapsedMillis())));
+            writeIndexes(out, failed);
+            out.flush();
+        }
+        
+        /**
+         * Riceve un file del batch, seguito dal suo hash. Un file già presente
+         * viene scritto in un .part e sostituito solo se l'hash coincide; un
+         * file nuovo si scrive direttamente (con migliaia di file piccoli la
+         * rinomina costa quanto la scrittura) e si elimina se l'hash è errato.
+         * La data di modifica si imposta per ultima: un file interrotto a metà
+         * non risulta aggiornato alla sincronizzazione successiva.
+         */
+        private boolean receiveBatchFile(DataInputStream in, Path target, BatchEntry entry, Integrity integrity,
+                                         byte[] buffer, TransferMetrics metrics) throws IOException {
+            boolean replace = Files.exists(target);
+            Path partial = replace ? target.resolveSibling(target.getFileName() + ".part") : target;
+            TreeChecksum checksum = new TreeChecksum(integrity);
+            
+            try (OutputStream file = Files.newOutputStream(partial)) {
+                long remaining = entry.size;
+                while (remaining > 0) {
+                    long readStart = System.nanoTime();
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    long writeStart = System.nanoTime();
+                    metrics.addNetworkTime(writeStart - readStart);
+                    if (bytesRead == -1) {
+                        throw new IOException("Connessione interrotta durante " + entry.path);
+                    }
+                    file.write(buffer, 0, bytesRead);
+                    metrics.addDiskTime(System.nanoTime() - writeStart);
+                    checksum.update(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                    metrics.addBytes(bytesRead);
+                }
+            }
+            metrics.addDiskWait(diskLimiter.acquire(entry.size));
+            
+            if (!checksum.finish().equalsIgnoreCase(in.readUTF())) {
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            if (replace) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.modified));
+            return true;
+        }
+        
+        private String receiveStream(DataInputStream in, File destFile, long fileSize, 
+                                     TransferMetrics metrics, Integrity integrity) throws IOException {
+            long totalReceived = 0;
+            byte[] buffer = new byte[8192]; // Buffer 8KB
+            TreeChecksum checksum = new TreeChecksum(integrity);
+            
+            try (FileOutputStream fos = new FileOutputStream(destFile);
+                 BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+                
+                long unscheduled = 0;
+                
+                while (totalReceived < fileSize) {
+                    int bytesToRead = (int) Math.min(buffer.length, fileSize - totalReceived);
+                    long readStart = System.nanoTime();
+                    int bytesRead = in.read(buffer, 0, bytesToRead);
+                    long writeStart = System.nanoTime();
+                    metrics.addNetworkTime(writeStart - readStart);
+                    
+                    if (bytesRead == -1) {
+                        throw new IOException("Connessione interrotta durante il trasferimento");
+                    }
+                    
+                    // Il permesso di scrittura si chiede una volta per slice, non per ogni read
+                    unscheduled += bytesRead;
+                    if (unscheduled >= SCHEDULER_SLICE) {
+                        metrics.addDiskWait(diskLimiter.acquire(unscheduled));
+                        unscheduled = 0;
+                    }
+                    
+                    bos.write(buffer, 0, bytesRead);
+                    metrics.addDiskTime(System.nanoTime() - writeStart);
+                    checksum.update(buffer, 0, bytesRead);
+                    totalReceived += bytesRead;
+                    metrics.addBytes(bytesRead);
+                }
+            }
+            
+            return checksum.finish();
+        }
+        
+        /**
+         * Ricezione con FileChannel.transferFrom dal canale del socket verso un
+         * file già dimensionato. Ogni regione scritta viene passata a un thread
+         * di verifica che ne calcola il checksum (dalla page cache, tramite
+         * mappatura) mentre la ricezione prosegue.
+         * 
+         * Non è zero-copy: da un SocketChannel il JDK non ha un percorso diretto
+         * verso il file e copia i dati attraverso un buffer temporaneo da 8 KB,
+         * come il ciclo a stream. Si risparmiano i byte[] nello heap e le
+         * chiamate dal codice Java; il guadagno viene dalla verifica in parallelo.
+         */
+        private String receiveTransferFrom(SocketChannel source, Path filePath, long fileSize,
+                                       TransferMetrics metrics, Integrity integrity) throws IOException {
+            long usable = Files.getFileStore(filePath.toAbsolutePath().getParent()).getUsableSpace();
+            if (usable < fileSize) {
+                throw new IOException("Spazio su disco insufficiente: servono " + formatFileSize(fileSize) +
+                                    ", disponibili " + formatFileSize(usable));
+            }
+            
+            RegionDigest verifier = new RegionDigest(new TreeChecksum(integrity));
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                
+                // Dimensione finale impostata subito: la lunghezza non cambia a ogni
+                // scrittura. Il file resta sparso, i blocchi su disco vengono
+                // allocati solo quando transferFrom li scrive (nessuna preallocazione)
+                try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "rw")) {
+                    raf.setLength(fileSize);
+                }
+                
+                long totalReceived = 0;
+                // Con più trasferimenti o banda limitata si procede a slice più piccole
+                long step = diskLimiter.isLimited() || maxActive > 1 ? SCHEDULER_SLICE : TRANSFER_CHUNK;
+                
+                while (totalReceived < fileSize) {
+                    long count = Math.min(step, fileSize - totalReceived);
+                    metrics.addDiskWait(diskLimiter.acquire(count));
+                    
+                    // transferFrom legge dal socket e copia nella page cache nella
+                    // stessa chiamata: il tempo va alla rete, che è dove resta in attesa
+                    long transferStart = System.nanoTime();
+                    long transferred = file.transferFrom(source, totalReceived, count);
+                    metrics.addNetworkTime(System.nanoTime() - transferStart);
+                    if (transferred <= 0) {
+                        throw new IOException("Connessione interrotta durante il trasferimento");
+                    }
+                    
+                    verifier.submit(file, totalReceived, transferred);
+                    totalReceived += transferred;
+                    metrics.addBytes(transferred);
+                }
+                
+                return verifier.finish();
+            } finally {
+                verifier.close();
+            }
+        }
+    }
+    
+    /**
+     * Voce del manifest di sincronizzazione: percorso relativo (con "/"),
+     * dimensione e data di modifica in millisecondi
+     */
+    static class BatchEntry {
+        final String path;
+        final long size;
+        final long modified;
+        
+        BatchEntry(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+        
+        static BatchEntry read(DataInputStream in) throws IOException {
+            return new BatchEntry(in.readUTF(), in.readLong(), in.readLong());
+        }
+        
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(modified);
+        }
+        
+        // Il file di destinazione ha la stessa dimensione e data di modifica
+        boolean sameMetadata(Path target) throws IOException {
+            if (!Files.isRegularFile(target)) return false;
+            BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+        }
+    }
+    
+    // Percorso relativo del client risolto dentro la directory di destinazione
+    static Path resolveInside(Path root, String relative) throws IOException {
+        Path resolved = root.resolve(relative).normalize();
+        if (!resolved.startsWith(root) || resolved.equals(root)) {
+            throw new IOException("Percorso non valido: " + relative);
+        }
+        return resolved;
+    }
+    
+    // Checksum di un file intero: i file piccoli si leggono in un colpo solo,
+    // senza il costo di una mappatura
+    static String checksumFile(Integrity integrity, Path file, long size) throws IOException {
+        if (size > BATCH_BUFFER) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return checksumHex(integrity, channel, 0, size);
+            }
+        }
+        TreeChecksum checksum = new TreeChecksum(integrity);
+        byte[] bytes = Files.readAllBytes(file);
+        checksum.update(bytes, 0, bytes.length);
+        return checksum.finish();
+    }
+    
+    /**
+     * Buffer di un chunk in transito nella pipeline di ricezione. Il buffer
+     * per i dati decompressi viene allocato solo al primo chunk compresso.
+     */
+    static class ChunkSlot {
+        final ByteBuffer payload;
+        final byte[] expected;
+        private final int chunkSize;
+        private ByteBuffer data;
+        ByteBuffer output;
+        int index;
+        int length;
+        byte encoding;
+        
+        ChunkSlot(int chunkSize, int digestLength) {
+            this.chunkSize = chunkSize;
+            this.payload = ByteBuffer.allocateDirect(chunkSize);
+            this.expected = new byte[digestLength];
+        }
+        
+        ByteBuffer data() {
+            if (data == null) {
+                data = ByteBuffer.allocateDirect(chunkSize);
+            }
+            return data;
+        }
+    }
+    
+    /**
+     * Statistiche di compressione lato client di un trasferimento a chunk
+     */
+    static class CompressionStats {
+        final AtomicLong rawBytes = new AtomicLong(0);
+        final AtomicLong wireBytes = new AtomicLong(0);
+        final AtomicLong cpuNanos = new AtomicLong(0);
+        final AtomicInteger compressedChunks = new AtomicInteger(0);
+        final AtomicInteger storedChunks = new AtomicInteger(0);
+        
+        void add(int raw, int wire, boolean compressed) {
+            rawBytes.addAndGet(raw);
+            wireBytes.addAndGet(wire);
+            (compressed ? compressedChunks : storedChunks).incrementAndGet();
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s -> %s (%.2fx), %d chunk compressi, %d inviati così come sono, CPU deflate %d ms",
+                formatFileSize(rawBytes.get()), formatFileSize(wireBytes.get()),
+                rawBytes.get() / (double) Math.max(1, wireBytes.get()), compressedChunks.get(),
+                storedChunks.get(), TimeUnit.NANOSECONDS.toMillis(cpuNanos.get()));
+        }
+    }
+    
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    // Tempo di CPU del thread corrente (0 se la JVM non lo misura)
+    static long cpuTimeNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+    
+    /**
+     * Stato lato server di un trasferimento a chunk: file parziale aperto,
+     * chunk completati e relativi hash.
+     * 
+     * Lo stato è persistito nel file .part.state accanto al file parziale:
+     *   [dimensione file][dimensione chunk][algoritmo][bitmap chunk completati][hash per chunk]
+     * L'hash di un chunk viene scritto prima del suo bit, quindi un bit
+     * impostato ha sempre il suo hash. Non serve force(): se dopo un crash un
+     * chunk risultasse perso, la verifica finale sul file assemblato lo
+     * segnala e il client lo reinvia.
+     */
+    static class ChunkedUpload {
+        private static final int STATE_HEADER = Long.BYTES + 2 * Integer.BYTES;
+        
+        final Path target;
+        final Path partial;
+        final Path stateFile;
+        final long fileSize;
+        final int chunkSize;
+        final int chunkCount;
+        final Integrity integrity;
+        final FileChannel file;
+        final TransferMetrics metrics;
+        private final FileChannel state;
+        private final BitSet completed;
+        private final byte[][] chunkDigests;
+        
+        ChunkedUpload(Path target, long fileSize, int chunkSize, Integrity integrity, 
+                      TransferMetrics metrics) throws IOException {
+            this.target = target;
+            this.partial = target.resolveSibling(target.getFileName() + ".part");
+            this.stateFile = target.resolveSibling(target.getFileName() + ".part.state");
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            long chunks = chunkCount(fileSize, chunkSize);
+            if (chunks > MAX_CHUNKS) {
+                throw new IOException("Troppi chunk: " + chunks + ", massimo " + MAX_CHUNKS);
+            }
+            this.chunkCount = (int) chunks;
+            this.integrity = integrity;
+            this.metrics = metrics;
+            this.completed = new BitSet(chunkCount);
+            // Hash allocati solo per i chunk completati
+            this.chunkDigests = new byte[chunkCount][];
+            
+            boolean resume = Files.exists(partial) && loadState();
+            if (!resume) {
+                Files.deleteIfExists(stateFile);
+            }
+            
+            this.file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                         StandardOpenOption.WRITE);
+            this.state = FileChannel.open(stateFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                          StandardOpenOption.WRITE);
+            if (!resume) {
+                file.truncate(0);
+                try (RandomAccessFile raf = new RandomAccessFile(partial.toFile(), "rw")) {
+                    raf.setLength(fileSize);
+                }
+                // Intestazione e bitmap vuota; l'ultimo byte porta lo stato a
+                // lunghezza piena senza scrivere gli hash (file sparso)
+                ByteBuffer empty = ByteBuffer.allocate((int) digestOffset(0));
+                empty.putLong(fileSize).putInt(chunkSize).putInt(integrity.code).clear();
+                while (empty.hasRemaining()) {
+                    state.write(empty, empty.position());
+                }
+                if (chunkCount > 0) {
+                    state.write(ByteBuffer.allocate(1), digestOffset(chunkCount) - 1);
+                }
+            }
+        }
+        
+        // Legge lo stato salvato; false se assente o di un altro file
+        private boolean loadState() throws IOException {
+            if (!Files.exists(stateFile)) return false;
+            
+            try (FileChannel channel = FileChannel.open(stateFile, StandardOpenOption.READ)) {
+                if (channel.size() < digestOffset(chunkCount)) {
+                    return false;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) digestOffset(0));
+                readFully(channel, buffer, 0);
+                if (buffer.getLong() != fileSize || buffer.getInt() != chunkSize || 
+                    buffer.getInt() != integrity.code) {
+                    return false;
+                }
+                
+                byte[] bitmap = new byte[bitmapLength()];
+                buffer.get(bitmap);
+                completed.or(BitSet.valueOf(bitmap));
+                completed.clear(chunkCount, bitmap.length * 8);
+                for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+                    ByteBuffer digest = ByteBuffer.allocate(integrity.digestLength);
+                    readFully(channel, digest, digestOffset(i));
+                    chunkDigests[i] = digest.array();
+                }
+                return true;
+            }
+        }
+        
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Stato incompleto");
+                }
+            }
+            buffer.flip();
+        }
+        
+        // Arrotondato per eccesso, senza overflow per dimensioni vicine a Long.MAX_VALUE
+        static long chunkCount(long fileSize, int chunkSize) {
+            return fileSize / chunkSize + (fileSize % chunkSize == 0 ? 0 : 1);
+        }
+        
+        private int bitmapLength() {
+            return (chunkCount + 7) / 8;
+        }
+        
+        private long digestOffset(int index) {
+            return STATE_HEADER + bitmapLength() + (long) index * integrity.digestLength;
+        }
+        
+        boolean matches(long fileSize, int chunkSize, Integrity integrity) {
+            return this.fileSize == fileSize && this.chunkSize == chunkSize && this.integrity == integrity;
+        }
+        
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
+        }
+        
+        synchronized List<Integer> missingChunks() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = completed.nextClearBit(0); i < chunkCount; i = completed.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+        
+        synchronized void complete(int index, byte[] digest) throws IOException {
+            chunkDigests[index] = Arrays.copyOf(digest, integrity.digestLength);
+            state.write(ByteBuffer.wrap(chunkDigests[index]), digestOffset(index));
+            completed.set(index);
+            persistBitmapByte(index);
+        }
+        
+        private void persistBitmapByte(int index) throws IOException {
+            int byteIndex = index / 8;
+            byte value = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                if (completed.get(byteIndex * 8 + bit)) value |= 1 << bit;
+            }
+            state.write(ByteBuffer.wrap(new byte[] {value}), STATE_HEADER + byteIndex);
+        }
+        
+        /**
+         * Rilegge dal file assemblato ogni chunk completato con lo stesso hash
+         * del client e costruisce il Merkle tree del file. Se la radice coincide
+         * con quella del client il file è integro, altrimenti il confronto tra
+         * i due alberi indica i chunk da reinviare, marcati come mancanti.
+         */
+        synchronized List<Integer> verify(MerkleTree clientTree) throws IOException {
+            byte[][] leaves = new byte[chunkCount][];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+            Hasher hasher = integrity.newHasher();
+            byte[] absent = new byte[0];
+            
+            for (int i = 0; i < chunkCount; i++) {
+                leaves[i] = absent;
+                if (!completed.get(i) || !Arrays.equals(chunkDigests[i], clientTree.leaf(i))) continue;
+                
+                buffer.clear().limit(chunkLength(i));
+                long position = (long) i * chunkSize;
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) < 0) break;
+                }
+                buffer.flip();
+                hasher.update(buffer);
+                leaves[i] = hasher.digest();
+            }
+            
+            MerkleTree fileTree = new MerkleTree(integrity, leaves);
+            if (Arrays.equals(fileTree.root(), clientTree.root())) {
+                return Collections.emptyList();
+            }
+            
+            List<Integer> missing = fileTree.diff(clientTree);
+            for (int index : missing) {
+                if (completed.get(index)) {
+                    completed.clear(index);
+                    persistBitmapByte(index);
+                }
+            }
+            return missing;
+        }
+        
+        void commit() throws IOException {
+            file.force(false);
+            file.close();
+            state.close();
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(stateFile);
+        }
+        
+        void discard() throws IOException {
+            file.close();
+            state.close();
+            Files.deleteIfExists(partial);
+            Files.deleteIfExists(stateFile);
+        }
+    }
+    
+    /**
+     * Limite globale di banda in scrittura su disco, condiviso da tutti i
+     * trasferimenti. Le richieste sono servite in ordine di arrivo (lock
+     * equo): ogni trasferimento chiede una slice alla volta, quindi i
+     * trasferimenti attivi avanzano a turno (round-robin) e nessuno monopolizza
+     * la banda. Ogni slice riceve un intervallo di tempo virtuale proporzionale
+     * alla sua dimensione.
+     */
+    static class DiskBandwidthLimiter {
+        private final long bytesPerSecond;
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private long nextFreeNanos = System.nanoTime();
+        
+        DiskBandwidthLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        boolean isLimited() {
+            return bytesPerSecond > 0;
+        }
+        
+        long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+        
+        /**
+         * Attende il permesso di scrivere bytes; restituisce i nanosecondi attesi
+         */
+        long acquire(long bytes) throws InterruptedIOException {
+            if (bytesPerSecond <= 0) return 0;
+            
+            long start = System.nanoTime();
+            lock.lock();
+            try {
+                long slotStart = Math.max(nextFreeNanos, start);
+                nextFreeNanos = slotStart + bytes * 1_000_000_000L / bytesPerSecond;
+                // Si attende tenendo il lock: chi è in coda dietro viene servito dopo
+                long waitNanos = slotStart - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attesa banda disco interrotta");
+            } finally {
+                lock.unlock();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+    
+    /**
+     * Metriche di un singolo trasferimento: aggiornate dal thread che
+     * trasferisce con soli contatori atomici, lette dal campionatore e dal
+     * thread delle statistiche.
+     * 
+     * Il tempo bloccato è diviso tra rete (read/write sul socket) e disco
+     * (read/write sul file, più l'attesa dello scheduler del disco): quando
+     * uno dei due domina, indica il collo di bottiglia del trasferimento.
+     */
+    public static class TransferMetrics {
+        private final String fileName;
+        private final long fileSize;
+        private final long acceptedAt;
+        private final AtomicLong bytes = new AtomicLong(0);
+        private final AtomicLong diskWaitNanos = new AtomicLong(0);
+        private final AtomicLong diskNanos = new AtomicLong(0);
+        private final AtomicLong networkNanos = new AtomicLong(0);
+        private final AtomicLong wireBytes = new AtomicLong(0);
+        private final AtomicLong codecCpuNanos = new AtomicLong(0);
+        private volatile long firstByteAt = 0;
+        private volatile long finishedAt = 0;
+        
+        // Stato del campionamento, aggiornato solo da sample()
+        private long lastSampleAt = 0;
+        private long lastSampleBytes = 0;
+        private volatile double currentBytesPerSecond = 0;
+        private volatile long stallNanos = 0;
+        
+        TransferMetrics(String fileName, long fileSize, long acceptedAt) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.acceptedAt = acceptedAt;
+        }
+        
+        void addBytes(long count) {
+            if (firstByteAt == 0) {
+                firstByteAt = System.nanoTime();
+            }
+            bytes.addAndGet(count);
+        }
+        
+        // Attesa dello scheduler del disco (-Dtransfer.diskMBps)
+        void addDiskWait(long nanos) {
+            diskWaitNanos.addAndGet(nanos);
+        }
+        
+        // Tempo passato in lettura o scrittura del file
+        void addDiskTime(long nanos) {
+            diskNanos.addAndGet(nanos);
+        }
+        
+        // Tempo passato in lettura o scrittura sul socket
+        void addNetworkTime(long nanos) {
+            networkNanos.addAndGet(nanos);
+        }
+        
+        // Byte effettivamente ricevuti dalla rete (compressi o no)
+        void addWireBytes(long count) {
+            wireBytes.addAndGet(count);
+        }
+        
+        void addCodecCpu(long nanos) {
+            codecCpuNanos.addAndGet(nanos);
+        }
+        
+        void finish() {
+            finishedAt = System.nanoTime();
+        }
+        
+        /**
+         * Campione periodico: throughput dall'ultimo campione e, se nel
+         * frattempo non è arrivato nulla dopo il primo byte, tempo di stallo
+         */
+        synchronized void sample(long now) {
+            long current = bytes.get();
+            if (lastSampleAt != 0 && now > lastSampleAt) {
+                long delta = current - lastSampleBytes;
+                currentBytesPerSecond = delta * 1e9 / (now - lastSampleAt);
+                if (delta == 0 && firstByteAt != 0 && finishedAt == 0) {
+                    stallNanos += now - lastSampleAt;
+                }
+            }
+            lastSampleAt = now;
+            lastSampleBytes = current;
+        }
+        
+        public String getFileName() { return fileName; }
+        public long getFileSize() { return fileSize; }
+        public long getBytes() { return bytes.get(); }
+        public boolean isFinished() { return finishedAt != 0; }
+        
+        // Dalla connessione accettata al primo byte di dati (include l'attesa in coda)
+        public long getTimeToFirstByteMillis() {
+            long first = firstByteAt;
+            return first == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(first - acceptedAt);
+        }
+        
+        public long getElapsedMillis() {
+            long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+            return TimeUnit.NANOSECONDS.toMillis(end - acceptedAt);
+        }
+        
+        // Throughput medio dal primo byte
+        public double getBytesPerSecond() {
+            long first = firstByteAt;
+            if (first == 0) return 0;
+            long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+            return bytes.get() * 1e9 / Math.max(1, end - first);
+        }
+        
+        // Throughput nell'ultimo intervallo di campionamento
+        public double getCurrentBytesPerSecond() {
+            return currentBytesPerSecond;
+        }
+        
+        public long getStallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+        }
+        
+        public long getDiskWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(diskWaitNanos.get());
+        }
+        
+        public long getDiskBlockedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(diskNanos.get() + diskWaitNanos.get());
+        }
+        
+        public long getNetworkBlockedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(networkNanos.get());
+        }
+        
+        // "disco" o "rete", a seconda di dove il trasferimento è rimasto più bloccato
+        public String getBottleneck() {
+            long disk = diskNanos.get() + diskWaitNanos.get();
+            long network = networkNanos.get();
+            if (disk == 0 && network == 0) return "n/d";
+            return disk > network ? "disco" : "rete";
+        }
+        
+        // Byte del file per byte ricevuto (1 senza compressione)
+        public double getCompressionRatio() {
+            long wire = wireBytes.get();
+            return wire == 0 ? 1 : bytes.get() / (double) wire;
+        }
+        
+        public long getCodecCpuMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(codecCpuNanos.get());
+        }
+        
+        @Override
+        public String toString() {
+            String summary = String.format("%-24s %s/%s in %.2f s, %s/s, primo byte %d ms", 
+                fileName, formatFileSize(getBytes()), formatFileSize(fileSize), getElapsedMillis() / 1000.0,
+                formatFileSize((long) getBytesPerSecond()), getTimeToFirstByteMillis());
+            if (!isFinished()) {
+                summary += String.format(", ora %s/s", formatFileSize((long) getCurrentBytesPerSecond()));
+            }
+            summary += String.format(", bloccato rete %d ms / disco %d ms (scheduler %d ms), stallo %d ms [%s]",
+                getNetworkBlockedMillis(), getDiskBlockedMillis(), getDiskWaitMillis(), getStallMillis(), 
+                getBottleneck());
+            if (codecCpuNanos.get() > 0) {
+                summary += String.format(", compressione %.2fx, CPU inflate %d ms", 
+                                         getCompressionRatio(), getCodecCpuMillis());
+            }
+            return summary;
+        }
+    }
+    
+    /**
+     * Osservatore dei trasferimenti. progress() è chiamato dal thread del
+     * campionatore a ogni campione, mai dal thread che trasferisce; inizio e
+     * fine sono notificati dal thread del trasferimento.
+     */
+    public interface TransferListener {
+        default void transferStarted(TransferMetrics metrics) {}
+        
+        void progress(TransferMetrics metrics);
+        
+        default void transferFinished(TransferMetrics metrics, boolean success) {}
+    }
+    
+    /**
+     * Campionatore delle metriche: un thread daemon legge periodicamente
+     * (-Dtransfer.sampleMillis) i contatori dei trasferimenti attivi e
+     * notifica i listener. Il percorso dei dati non formatta né stampa nulla.
+     */
+    public static class TransferSampler {
+        private final long intervalMillis;
+        private final Set<TransferMetrics> active = ConcurrentHashMap.newKeySet();
+        private final List<TransferListener> listeners = new CopyOnWriteArrayList<>();
+        private ScheduledExecutorService scheduler;
+        
+        TransferSampler() {
+            this(Math.max(10, Long.getLong("transfer.sampleMillis", 500)));
+        }
+        
+        TransferSampler(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+        
+        public void addListener(TransferListener listener) {
+            listeners.add(listener);
+        }
+        
+        public void removeListener(TransferListener listener) {
+            listeners.remove(listener);
+        }
+        
+        public List<TransferMetrics> getActive() {
+            return new ArrayList<>(active);
+        }
+        
+        void start(TransferMetrics metrics) {
+            metrics.sample(System.nanoTime());
+            active.add(metrics);
+            ensureRunning();
+            for (TransferListener listener : listeners) {
+                listener.transferStarted(metrics);
+            }
+        }
+        
+        void finish(TransferMetrics metrics, boolean success) {
+            metrics.finish();
+            if (!active.remove(metrics)) return;
+            metrics.sample(System.nanoTime());
+            for (TransferListener listener : listeners) {
+                listener.transferFinished(metrics, success);
+            }
+        }
+        
+        private synchronized void ensureRunning() {
+            if (scheduler != null) return;
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "TransferSampler");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleAtFixedRate(this::sampleAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        
+        private void sampleAll() {
+            long now = System.nanoTime();
+            for (TransferMetrics metrics : active) {
+                metrics.sample(now);
+                for (TransferListener listener : listeners) {
+                    try {
+                        listener.progress(metrics);
+                    } catch (RuntimeException e) {
+                        // Un listener difettoso non deve fermare il campionamento
+                        System.err.println("⚠️  Errore nel listener " + listener + ": " + e);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Listener che stampa l'avanzamento ogni 10%, con il throughput del
+     * momento; lo stesso formato di prima, ma dal thread del campionatore
+     */
+    static class ConsoleProgress implements TransferListener {
+        private final Map<TransferMetrics, Long> printed = new ConcurrentHashMap<>();
+        
+        @Override
+        public void progress(TransferMetrics metrics) {
+            if (metrics.getFileSize() <= 0) return;
+            long progress = metrics.getBytes() * 100 / metrics.getFileSize();
+            long last = printed.getOrDefault(metrics, 0L);
+            if (progress >= last + 10) {
+                System.out.println("   Progress: " + progress + "% (" + 
+                                 formatFileSize(metrics.getBytes()) + "/" + 
+                                 formatFileSize(metrics.getFileSize()) + ", " +
+                                 formatFileSize((long) metrics.getCurrentBytesPerSecond()) + "/s)");
+                printed.put(metrics, progress - progress % 10);
+            }
+        }
+        
+        @Override
+        public void transferFinished(TransferMetrics metrics, boolean success) {
+            printed.remove(metrics);
+        }
+    }
+    
+    /**
+     * Istantanea aggregata del server: throughput attuale e tempi bloccati
+     * sommati su tutti i trasferimenti attivi
+     */
+    public static class LiveStats {
+        public final int active;
+        public final long completed;
+        public final long failed;
+        public final long rejected;
+        public final long totalBytes;
+        public final double currentBytesPerSecond;
+        public final long networkBlockedMillis;
+        public final long diskBlockedMillis;
+        public final long stallMillis;
+        public final int diskBound;
+        public final int networkBound;
+        
+        LiveStats(List<TransferMetrics> transfers, long completed, long failed, long rejected, long totalBytes) {
+            double throughput = 0;
+            long network = 0, disk = 0, stall = 0;
+            int byDisk = 0, byNetwork = 0;
+            for (TransferMetrics metrics : transfers) {
+                throughput += metrics.getCurrentBytesPerSecond();
+                network += metrics.getNetworkBlockedMillis();
+                disk += metrics.getDiskBlockedMillis();
+                stall += metrics.getStallMillis();
+                String bottleneck = metrics.getBottleneck();
+                if (bottleneck.equals("disco")) byDisk++;
+                else if (bottleneck.equals("rete")) byNetwork++;
+            }
+            this.active = transfers.size();
+            this.completed = completed;
+            this.failed = failed;
+            this.rejected = rejected;
+            this.totalBytes = totalBytes;
+            this.currentBytesPerSecond = throughput;
+            this.networkBlockedMillis = network;
+            this.diskBlockedMillis = disk;
+            this.stallMillis = stall;
+            this.diskBound = byDisk;
+            this.networkBound = byNetwork;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d attivi a %s/s (completati %d, falliti %d, rifiutati %d, ricevuti %s), " +
+                                 "bloccati rete %d ms / disco %d ms, stallo %d ms, limitati da disco %d, da rete %d",
+                active, formatFileSize((long) currentBytesPerSecond), completed, failed, rejected,
+                formatFileSize(totalBytes), networkBlockedMillis, diskBlockedMillis, stallMillis, 
+                diskBound, networkBound);
+        }
+    }
+    
+    /**
+     * Digest calcolato in un thread separato sulle regioni del file via via
+     * completate, nell'ordine in cui vengono sottomesse
+     */
+    static class RegionDigest implements Closeable {
+        private final TreeChecksum checksum;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ChecksumThread");
+            t.setDaemon(true);
+            return t;
+        });
+        private Future<?> last;
+        
+        RegionDigest(TreeChecksum checksum) {
+            this.checksum = checksum;
+        }
+        
+        void submit(FileChannel channel, long position, long size) {
+            last = executor.submit(() -> {
+                checksumRegion(checksum, channel, position, size);
+                return null;
+            });
+        }
+        
+        // Attende le regioni in sospeso e restituisce il digest esadecimale
+        String finish() throws IOException {
+            try {
+                if (last != null) {
+                    last.get();
+                }
+                return checksum.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Calcolo checksum interrotto");
+            } catch (ExecutionException e) {
+                throw new IOException("Errore calcolo checksum: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Algoritmi di integrità, negoziati nell'header del trasferimento.
+     * CRC32C (accelerato in hardware dalla JVM) e xxHash64 rilevano le
+     * corruzioni accidentali a una frazione del costo dell'MD5, che resta
+     * per i client che non indicano l'algoritmo.
+     */
+    enum Integrity {
+        MD5("md5", 1, 16),
+        CRC32C("crc32c", 2, 4),
+        XXH64("xxh64", 3, 8);
+        
+        final String id;
+        final int code; // Valore stabile nel file di stato dei trasferimenti a chunk
+        final int digestLength;
+        
+        Integrity(String id, int code, int digestLength) {
+            this.id = id;
+            this.code = code;
+            this.digestLength = digestLength;
+        }
+        
+        Hasher newHasher() {
+            switch (this) {
+                case CRC32C: return new Crc32cHasher();
+                case XXH64: return new XXHash64();
+                default: return new MessageDigestHasher("MD5");
+            }
+        }
+        
+        // L'MD5 copre il file in un solo blocco, come nei client precedenti
+        long blockSize() {
+            return this == MD5 ? Long.MAX_VALUE : MERKLE_BLOCK;
+        }
+        
+        static Integrity fromId(String id) {
+            for (Integrity integrity : values()) {
+                if (integrity.id.equalsIgnoreCase(id)) return integrity;
+            }
+            return null;
+        }
+        
+        // Algoritmo scelto con -Dtransfer.checksum (predefinito xxh64)
+        static Integrity configured() {
+            String id = System.getProperty("transfer.checksum", XXH64.id);
+            Integrity integrity = fromId(id);
+            if (integrity == null) {
+                throw new IllegalArgumentException("Algoritmo di integrità sconosciuto: " + id);
+            }
+            return integrity;
+        }
+    }
+    
+    /**
+     * Calcolo incrementale di un hash: digest() restituisce il valore e
+     * riporta lo stato all'inizio, pronto per il blocco successivo
+     */
+    interface Hasher {
+        void update(ByteBuffer buffer);
+        void update(byte[] bytes, int offset, int length);
+        byte[] digest();
+    }
+    
+    static class MessageDigestHasher implements Hasher {
+        private final MessageDigest digest;
+        
+        MessageDigestHasher(String algorithm) {
+            try {
+                this.digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // MD5 è tra gli algoritmi che ogni JVM deve fornire
+                throw new IllegalStateException("Algoritmo " + algorithm + " non disponibile", e);
+            }
+        }
+        
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+        
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            digest.update(bytes, offset, length);
+        }
+        
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+    }
+    
+    static class Crc32cHasher implements Hasher {
+        private final CRC32C crc = new CRC32C();
+        
+        @Override
+        public void update(ByteBuffer buffer) {
+            crc.update(buffer);
+        }
+        
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            crc.update(bytes, offset, length);
+        }
+        
+        @Override
+        public byte[] digest() {
+            int value = (int) crc.getValue();
+            crc.reset();
+            return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+        }
+    }
+    
+    /**
+     * xxHash64 (seed 0) in Java puro: il flusso è elaborato a blocchi di 32
+     * byte da quattro accumulatori indipendenti, letti come long little-endian
+     * direttamente dal buffer (anche mappato) senza copie
+     */
+    static class XXHash64 implements Hasher {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+        
+        // Byte di un blocco non ancora completo tra una update e l'altra
+        private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        private long v1, v2, v3, v4;
+        private long total;
+        
+        XXHash64() {
+            reset();
+        }
+        
+        private void reset() {
+            v1 = P1 + P2;
+            v2 = P2;
+            v3 = 0;
+            v4 = -P1;
+            total = 0;
+            pending.clear();
+        }
+        
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            update(ByteBuffer.wrap(bytes, offset, length));
+        }
+        
+        @Override
+        public void update(ByteBuffer buffer) {
+            ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(buffer.limit());
+            total += in.remaining();
+            
+            if (pending.position() > 0) {
+                while (pending.hasRemaining() && in.hasRemaining()) {
+                    pending.put(in.get());
+                }
+                if (pending.hasRemaining()) return;
+                pending.flip();
+                stripe(pending);
+                pending.clear();
+            }
+            while (in.remaining() >= 32) {
+                stripe(in);
+            }
+            pending.put(in);
+        }
+        
+        private void stripe(ByteBuffer in) {
+            v1 = round(v1, in.getLong());
+            v2 = round(v2, in.getLong());
+            v3 = round(v3, in.getLong());
+            v4 = round(v4, in.getLong());
+        }
+        
+        @Override
+        public byte[] digest() {
+            long h;
+            if (total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + 
+                    Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = merge(h, v1);
+                h = merge(h, v2);
+                h = merge(h, v3);
+                h = merge(h, v4);
+            } else {
+                h = P5;
+            }
+            h += total;
+            
+            pending.flip();
+            while (pending.remaining() >= 8) {
+                h ^= round(0, pending.getLong());
+                h = Long.rotateLeft(h, 27) * P1 + P4;
+            }
+            if (pending.remaining() >= 4) {
+                h ^= (pending.getInt() & 0xFFFFFFFFL) * P1;
+                h = Long.rotateLeft(h, 23) * P2 + P3;
+            }
+            while (pending.hasRemaining()) {
+                h ^= (pending.get() & 0xFF) * P5;
+                h = Long.rotateLeft(h, 11) * P1;
+            }
+            
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            h ^= h >>> 32;
+            
+            reset();
+            return ByteBuffer.allocate(Long.BYTES).putLong(h).array();
+        }
+        
+        private static long round(long acc, long input) {
+            acc += input * P2;
+            return Long.rotateLeft(acc, 31) * P1;
+        }
+        
+        private static long merge(long h, long v) {
+            h ^= round(0, v);
+            return h * P1 + P4;
+        }
+    }
+    
+    /**
+     * Merkle tree sugli hash dei blocchi: ogni nodo è l'hash della
+     * concatenazione dei due figli, un nodo senza fratello sale invariato.
+     * Confrontando due alberi dalla radice si trovano i blocchi diversi
+     * visitando solo i sottoalberi che differiscono.
+     */
+    static class MerkleTree {
+        private final List<byte[][]> levels = new ArrayList<>();
+        
+        MerkleTree(Integrity integrity, byte[][] leaves) {
+            Hasher hasher = integrity.newHasher();
+            // Senza blocchi la radice è l'hash dell'input vuoto
+            byte[][] level = leaves.length > 0 ? leaves : new byte[][] {hasher.digest()};
+            levels.add(level);
+            
+            while (level.length > 1) {
+                byte[][] parents = new byte[(level.length + 1) / 2][];
+                for (int i = 0; i < parents.length; i++) {
+                    if (2 * i + 1 < level.length) {
+                        hasher.update(level[2 * i], 0, level[2 * i].length);
+                        hasher.update(level[2 * i + 1], 0, level[2 * i + 1].length);
+                        parents[i] = hasher.digest();
+                    } else {
+                        parents[i] = level[2 * i];
+                    }
+                }
+                levels.add(parents);
+                level = parents;
+            }
+        }
+        
+        byte[] root() {
+            return levels.get(levels.size() - 1)[0];
+        }
+        
+        byte[] leaf(int index) {
+            return levels.get(0)[index];
+        }
+        
+        // Indici delle foglie diverse tra due alberi con lo stesso numero di foglie
+        List<Integer> diff(MerkleTree other) {
+            List<Integer> different = new ArrayList<>();
+            diff(other, levels.size() - 1, 0, different);
+            return different;
+        }
+        
+        private void diff(MerkleTree other, int depth, int index, List<Integer> different) {
+            if (Arrays.equals(levels.get(depth)[index], other.levels.get(depth)[index])) return;
+            if (depth == 0) {
+                different.add(index);
+                return;
+            }
+            diff(other, depth - 1, 2 * index, different);
+            if (2 * index + 1 < levels.get(depth - 1).length) {
+                diff(other, depth - 1, 2 * index + 1, different);
+            }
+        }
+    }
+    
+    /**
+     * Checksum dell'intero file calcolato in streaming: l'hash di ogni blocco
+     * diventa una foglia del Merkle tree, il risultato è la radice. Con un
+     * solo blocco (sempre per l'MD5) coincide con l'hash del file.
+     */
+    static class TreeChecksum {
+        private final Integrity integrity;
+        private final long blockSize;
+        private final Hasher hasher;
+        private final List<byte[]> leaves = new ArrayList<>();
+        private long inBlock;
         
-        public Server(int port, String saveDirectory) {
-            this.port = port;
-            this.saveDirectory = saveDirectory;
+        TreeChecksum(Integrity integrity) {
+            this.integrity = integrity;
+            this.blockSize = integrity.blockSize();
+            this.hasher = integrity.newHasher();
         }
         
-        public void start() throws IOException {
-            // Crea directory se non existe
-            Files.createDirectories(Paths.get(saveDirectory));
-            
-            System.out.println("📁 File Transfer Server avviato");
-            System.out.println("   Porta: " + port);
-            System.out.println("   Directory: " + new File(saveDirectory).getAbsolutePath());
-            System.out.println("🛑 Premi Ctrl+C per fermare");
-            System.out.println("=" .repeat(50));
-            
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                serverSocket.setReuseAddress(true);
+        void update(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int count = (int) Math.min(buffer.remaining(), blockSize - inBlock);
+                hasher.update(buffer.slice().limit(count));
+                buffer.position(buffer.position() + count);
                 
-                while (true) {
-                    try (Socket clientSocket = serverSocket.accept()) {
-                        System.out.println("\n🔗 Client connesso: " + clientSocket.getRemoteSocketAddress());
-                        handleFileTransfer(clientSocket);
-                        
-                    } catch (IOException e) {
-                        System.err.println("❌ Errore durante il trasferimento: " + e.getMessage());
-                    }
+                inBlock += count;
+                if (inBlock == blockSize) {
+                    leaves.add(hasher.digest());
+                    inBlock = 0;
                 }
             }
         }
         
-        private void handleFileTransfer(Socket clientSocket) throws IOException {
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-            
-            try {
-                // Legge metadata file
-                String fileName = in.readUTF();
-                long fileSize = in.readLong();
-                String checksum = in.readUTF();
-                
-                System.out.println("📄 File: " + fileName);
-                System.out.println("📏 Dimensione: " + formatFileSize(fileSize));
-                System.out.println("🔐 Checksum MD5: " + checksum);
-                
-                // Prepara file di destinazione
-                Path filePath = Paths.get(saveDirectory, fileName);
-                File destFile = filePath.toFile();
-                
-                // Controlla se file esiste
-                if (destFile.exists()) {
-                    System.out.println("⚠️ File già esistente, verrà sovrascritto");
-                }
-                
-                // Riceve file con progress
-                long totalReceived = 0;
-                byte[] buffer = new byte[8192]; // Buffer 8KB
-                MessageDigest md5 = MessageDigest.getInstance("MD5");
-                
-                try (FileOutputStream fos = new FileOutputStream(destFile);
-                     BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-                    
-                    System.out.println("📥 Ricezione in corso...");
-                    long lastProgress = 0;
-                    
-                    while (totalReceived < fileSize) {
-                        int bytesToRead = (int) Math.min(buffer.length, fileSize - totalReceived);
-                        int bytesRead = in.read(buffer, 0, bytesToRead);
-                        
-                        if (bytesRead == -1) {
-                            throw new IOException("Connessione interrotta durante il trasferimento");
-                        }
-                        
-                        bos.write(buffer, 0, bytesRead);
-                        md5.update(buffer, 0, bytesRead);
-                        totalReceived += bytesRead;
-                        
-                        // Progress ogni 10%
-                        long progress = (totalReceived * 100) / fileSize;
-                        if (progress >= lastProgress + 10) {
-                            System.out.println("   Progress: " + progress + "% (" + 
-                                             formatFileSize(totalReceived) + "/" + 
-                                             formatFileSize(fileSize) + ")");
-                            lastProgress = progress;
-                        }
-                    }
-                }
-                
-                // Verifica checksum
-                String receivedChecksum = bytesToHex(md5.digest());
-                boolean checksumValid = checksum.equalsIgnoreCase(receivedChecksum);
-                
-                System.out.println("✅ Trasferimento completato: " + formatFileSize(totalReceived));
-                System.out.println("🔍 Verifica integrità: " + (checksumValid ? "OK" : "FALLITA"));
-                
-                if (!checksumValid) {
-                    System.out.println("   Atteso: " + checksum);
-                    System.out.println("   Ricevuto: " + receivedChecksum);
-                }
-                
-                // Risposta al client
-                out.writeBoolean(checksumValid);
-                out.writeUTF(checksumValid ? "File ricevuto correttamente" : "Errore checksum");
-                out.flush();
-                
-                System.out.println("📁 File salvato: " + destFile.getAbsolutePath());
-                
-            } catch (NoSuchAlgorithmException e) {
-                throw new IOException("Algoritmo MD5 non disponibile", e);
+        void update(byte[] bytes, int offset, int length) {
+            update(ByteBuffer.wrap(bytes, offset, length));
+        }
+        
+        String finish() {
+            if (inBlock > 0 || leaves.isEmpty()) {
+                leaves.add(hasher.digest());
+                inBlock = 0;
             }
+            return bytesToHex(new MerkleTree(integrity, leaves.toArray(new byte[0][])).root());
         }
     }
     
@@ -144,12 +2072,46 @@ public class FileTransfer {
      * Client per invio file
      */
     public static class Client {
+        private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+        
         private final String serverHost;
         private final int serverPort;
+        private final boolean zeroCopy;
+        
+        // Trasferimento a chunk su più connessioni: -Dtransfer.streams > 1,
+        // oppure -Dtransfer.resume / -Dtransfer.compress anche con una sola connessione
+        private final int streams = Math.max(1, Integer.getInteger("transfer.streams", 1));
+        private final boolean compress = Boolean.getBoolean("transfer.compress");
+        private final int compressLevel = Integer.getInteger("transfer.compressLevel", Deflater.BEST_SPEED);
+        private final boolean chunked = Boolean.getBoolean("transfer.resume") || streams > 1 || compress;
+        private final int retries = Math.max(0, Integer.getInteger("transfer.retries", 3));
+        private final int chunkSize = Math.min(MAX_CHUNK_SIZE, 
+                                               Integer.getInteger("transfer.chunkSize", 8 * 1024 * 1024));
+        
+        // Algoritmo di integrità proposto al server
+        private final Integrity integrity = Integrity.configured();
+        
+        // Campione compresso per decidere se comprimere un chunk, e guadagno
+        // minimo richiesto (dimensione compressa / originale)
+        private static final int COMPRESSION_SAMPLE = 64 * 1024;
+        private static final double MIN_COMPRESSION_GAIN = 0.9;
         
         public Client(String serverHost, int serverPort) {
+            this(serverHost, serverPort, Boolean.getBoolean("transfer.zeroCopy"));
+        }
+        
+        // Avanzamento stampato dal campionatore, non dal ciclo di invio
+        private final TransferSampler sampler = new TransferSampler();
+        
+        public Client(String serverHost, int serverPort, boolean zeroCopy) {
             this.serverHost = serverHost;
             this.serverPort = serverPort;
+            this.zeroCopy = zeroCopy;
+            sampler.addListener(new ConsoleProgress());
+        }
+        
+        public void addTransferListener(TransferListener listener) {
+            sampler.addListener(listener);
         }
         
         public boolean sendFile(String filePath) throws IOException {
@@ -167,10 +2129,17 @@ public class FileTransfer {
             System.out.println("📏 Dimensione: " + formatFileSize(file.length()));
             System.out.println("🎯 Destinazione: " + serverHost + ":" + serverPort);
             
-            // Calcola checksum MD5
+            if (chunked) {
+                return sendFileChunked(file);
+            }
+            if (zeroCopy) {
+                return sendFileZeroCopy(file);
+            }
+            
+            // Calcola checksum
             System.out.println("🔐 Calcolo checksum...");
-            String checksum = calculateMD5(file);
-            System.out.println("   MD5: " + checksum);
+            String checksum = calculateChecksum(file);
+            System.out.println("   " + integrity.id + ": " + checksum);
             
             try (Socket socket = new Socket(serverHost, serverPort);
                  DataOutputStream out = new DataOutputStream(socket.getOutputStream());
@@ -181,33 +2150,116 @@ public class FileTransfer {
                 // Invia metadata
                 out.writeUTF(file.getName());
                 out.writeLong(file.length());
-                out.writeUTF(checksum);
+                out.writeUTF(integrity.id + ":" + checksum);
                 out.flush();
                 
                 // Invia file con progress
                 byte[] buffer = new byte[8192];
                 long totalSent = 0;
-                long lastProgress = 0;
+                TransferMetrics metrics = new TransferMetrics(file.getName(), file.length(), System.nanoTime());
+                boolean success = false;
                 
                 System.out.println("📡 Trasferimento in corso...");
-                
-                int bytesRead;
-                while ((bytesRead = bis.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    totalSent += bytesRead;
-                    
-                    // Progress ogni 10%
-                    long progress = (totalSent * 100) / file.length();
-                    if (progress >= lastProgress + 10) {
-                        System.out.println("   Progress: " + progress + "% (" + 
-                                         formatFileSize(totalSent) + "/" + 
-                                         formatFileSize(file.length()) + ")");
-                        lastProgress = progress;
+                sampler.start(metrics);
+                try {
+                    while (true) {
+                        long readStart = System.nanoTime();
+                        int bytesRead = bis.read(buffer);
+                        long writeStart = System.nanoTime();
+                        metrics.addDiskTime(writeStart - readStart);
+                        if (bytesRead == -1) break;
+                        
+                        out.write(buffer, 0, bytesRead);
+                        metrics.addNetworkTime(System.nanoTime() - writeStart);
+                        totalSent += bytesRead;
+                        metrics.addBytes(bytesRead);
                     }
+                    
+                    out.flush();
+                    System.out.println("✅ Trasferimento completato: " + formatFileSize(totalSent));
+                    
+                    // Riceve risposta server
+                    success = in.readBoolean();
+                    String message = in.readUTF();
+                    
+                    System.out.println("📨 Risposta server: " + message);
+                    return success;
+                } finally {
+                    sampler.finish(metrics, success);
+                    System.out.println("📊 " + metrics);
                 }
                 
+            } catch (ConnectException e) {
+                throw new ConnectException("Impossibile connettersi al server " + 
+                                         serverHost + ":" + serverPort);
+            }
+        }
+        
+        /**
+         * Invio zero-copy: FileChannel.transferTo verso il SocketChannel, i dati
+         * passano dalla page cache al socket senza copie nello heap Java.
+         * 
+         * Il checksum non richiede una lettura preliminare del file: un thread
+         * lo calcola sulle regioni mappate in memoria mentre il kernel invia, e
+         * il valore viene spedito in coda ai dati (header con CHECKSUM_TRAILER).
+         */
+        private boolean sendFileZeroCopy(File file) throws IOException {
+            ExecutorService hasher = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "ChecksumThread");
+                t.setDaemon(true);
+                return t;
+            });
+            
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+                 FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(channel.socket().getOutputStream()));
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                long fileSize = fileChannel.size();
+                
+                // Invia metadata
+                out.writeUTF(file.getName());
+                out.writeLong(fileSize);
+                out.writeUTF(integrity.id + ":" + CHECKSUM_TRAILER);
                 out.flush();
+                
+                Future<String> checksum = hasher.submit(() -> checksumHex(integrity, fileChannel, 0, fileSize));
+                
+                System.out.println("📡 Trasferimento zero-copy in corso...");
+                long totalSent = 0;
+                TransferMetrics metrics = new TransferMetrics(file.getName(), fileSize, System.nanoTime());
+                
+                sampler.start(metrics);
+                try {
+                    while (totalSent < fileSize) {
+                        // transferTo resta in attesa sul socket: il tempo va alla rete
+                        long transferStart = System.nanoTime();
+                        long transferred = fileChannel.transferTo(totalSent, 
+                                                                  Math.min(TRANSFER_CHUNK, fileSize - totalSent), channel);
+                        metrics.addNetworkTime(System.nanoTime() - transferStart);
+                        totalSent += transferred;
+                        metrics.addBytes(transferred);
+                    }
+                } finally {
+                    sampler.finish(metrics, totalSent == fileSize);
+                }
+                System.out.println("📊 " + metrics);
+                
+                String value;
+                try {
+                    value = checksum.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Calcolo checksum interrotto");
+                } catch (ExecutionException e) {
+                    throw new IOException("Errore calcolo checksum: " + e.getCause().getMessage(), e.getCause());
+                }
                 System.out.println("✅ Trasferimento completato: " + formatFileSize(totalSent));
+                System.out.println("🔐 " + integrity.id + ": " + value);
+                
+                out.writeUTF(value);
+                out.flush();
                 
                 // Riceve risposta server
                 boolean success = in.readBoolean();
@@ -219,33 +2271,522 @@ public class FileTransfer {
             } catch (ConnectException e) {
                 throw new ConnectException("Impossibile connettersi al server " + 
                                          serverHost + ":" + serverPort);
+            } finally {
+                hasher.shutdownNow();
             }
         }
         
-        private String calculateMD5(File file) throws IOException {
-            try {
-                MessageDigest md5 = MessageDigest.getInstance("MD5");
+        /**
+         * Invio a chunk su più connessioni parallele: ogni connessione prende
+         * il prossimo chunk libero, lo legge con una read posizionale, ne
+         * calcola l'hash e lo invia. Alla fine il manifest con tutti gli hash
+         * e la radice del Merkle tree conferma il trasferimento.
+         * 
+         * Se una connessione cade, il manifest viene ripetuto (fino a
+         * transfer.retries volte) e il server risponde con i soli chunk
+         * mancanti: quelli già ricevuti non vengono reinviati.
+         */
+        private boolean sendFileChunked(File file) throws IOException {
+            long fileSize = file.length();
+            int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            System.out.println("🧩 " + chunkCount + " chunk da " + formatFileSize(chunkSize) + 
+                             " su " + streams + " connessioni");
+            
+            // Hash dei chunk, calcolati una sola volta per tutti i tentativi
+            // (finché il server negozia lo stesso algoritmo)
+            byte[][] digests = new byte[chunkCount][];
+            BitSet hashed = new BitSet(chunkCount);
+            Integrity[] hashedWith = new Integrity[1];
+            CompressionStats compression = new CompressionStats();
+            
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return attemptChunked(file, chunkCount, digests, hashed, hashedWith, compression);
+                } catch (IOException e) {
+                    if (attempt >= retries) {
+                        throw e;
+                    }
+                    System.err.println("⚠️  Trasferimento interrotto: " + e.getMessage());
+                    System.out.println("🔄 Ripresa tra " + (attempt + 1) + " s (tentativo " + 
+                                     (attempt + 1) + "/" + retries + ")");
+                    try {
+                        Thread.sleep(1000L * (attempt + 1));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Trasferimento interrotto");
+                    }
+                }
+            }
+        }
+        
+        private boolean attemptChunked(File file, int chunkCount, byte[][] digests, BitSet hashed,
+                                       Integrity[] hashedWith, CompressionStats compression) 
+                throws IOException {
+            long fileSize = file.length();
+            String transferId;
+            Integrity negotiated;
+            BitSet missing;
+            try (Socket socket = new Socket(serverHost, serverPort);
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                out.writeUTF(OP_MANIFEST);
+                out.writeUTF(file.getName());
+                out.writeLong(fileSize);
+                out.writeInt(chunkSize);
+                out.writeUTF(integrity.id);
+                out.flush();
+                transferId = in.readUTF();
+                String algorithm = in.readUTF();
+                negotiated = Integrity.fromId(algorithm);
+                if (negotiated == null) {
+                    throw new IOException("Algoritmo di integrità non supportato: " + algorithm);
+                }
+                missing = readIndexes(in);
+            } catch (ConnectException e) {
+                throw new ConnectException("Impossibile connettersi al server " + 
+                                         serverHost + ":" + serverPort);
+            }
+            
+            if (negotiated != integrity) {
+                System.out.println("🔐 Il server ha scelto l'algoritmo " + negotiated.id);
+            }
+            if (hashedWith[0] != negotiated) {
+                hashed.clear();
+                hashedWith[0] = negotiated;
+            }
+            
+            long bytesToSend = 0;
+            for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                bytesToSend += Math.min(chunkSize, fileSize - (long) i * chunkSize);
+            }
+            if (missing.cardinality() < chunkCount) {
+                System.out.println("♻️  Ripresa: " + (chunkCount - missing.cardinality()) + 
+                                 " chunk già sul server, da inviare " + formatFileSize(bytesToSend));
+            }
+            
+            AtomicInteger nextChunk = new AtomicInteger(0);
+            TransferMetrics metrics = new TransferMetrics(file.getName(), bytesToSend, System.nanoTime());
+            ExecutorService pool = Executors.newFixedThreadPool(streams);
+            
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (int i = 0; i < streams; i++) {
+                    results.add(pool.submit(() -> 
+                        sendChunks(fileChannel, transferId, chunkCount, nextChunk, missing, 
+                                   negotiated, digests, hashed, metrics, compression)));
+                }
+                
+                System.out.println("📡 Trasferimento in corso...");
+                sampler.start(metrics);
+                int rejected = 0;
+                try {
+                    for (Future<Integer> result : results) {
+                        rejected += result.get();
+                    }
+                } finally {
+                    sampler.finish(metrics, rejected == 0);
+                }
+                
+                System.out.println("✅ Trasferimento completato: " + formatFileSize(metrics.getBytes()) +
+                                 (rejected > 0 ? " (" + rejected + " chunk scartati dal server)" : ""));
+                System.out.println("📊 " + metrics);
+                if (compress) {
+                    System.out.println("🗜️  Compressione: " + compression);
+                }
+                
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Trasferimento interrotto");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                pool.shutdownNow();
+            }
+            
+            // Manifest finale: gli hash di ogni chunk e la radice del Merkle tree
+            byte[] root = new MerkleTree(negotiated, digests).root();
+            System.out.println("🌳 Radice Merkle " + negotiated.id + ": " + bytesToHex(root));
+            
+            try (Socket socket = new Socket(serverHost, serverPort);
+                 DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                out.writeUTF(OP_COMMIT);
+                out.writeUTF(transferId);
+                out.writeInt(chunkCount);
+                out.writeInt(negotiated.digestLength);
+                for (byte[] digest : digests) {
+                    out.write(digest);
+                }
+                out.write(root);
+                out.flush();
+                
+                boolean success = in.readBoolean();
+                String message = in.readUTF();
+                int toResend = readIndexes(in).cardinality();
+                System.out.println("📨 Risposta server: " + message);
+                if (!success && toResend > 0) {
+                    // Il server ha già marcato i chunk come mancanti: la ripresa li reinvia
+                    throw new IOException(toResend + " chunk da reinviare");
+                }
+                return success;
+            }
+        }
+        
+        // Una connessione di dati; restituisce i chunk scartati dal server
+        private int sendChunks(FileChannel fileChannel, String transferId, int chunkCount,
+                               AtomicInteger nextChunk, BitSet missing, Integrity negotiated,
+                               byte[][] digests, BitSet hashed, TransferMetrics metrics, 
+                               CompressionStats compression) throws IOException {
+            Deflater deflater = compress ? new Deflater(compressLevel) : null;
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort))) {
+                DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                out.writeUTF(OP_CHUNKS);
+                out.writeUTF(transferId);
+                out.flush();
+                
+                ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES + negotiated.digestLength + 1);
+                ByteBuffer data = ByteBuffer.allocateDirect(chunkSize);
+                ByteBuffer compressed = compress ? ByteBuffer.allocateDirect(chunkSize) : null;
+                Hasher hasher = negotiated.newHasher();
                 
-                try (FileInputStream fis = new FileInputStream(file);
-                     BufferedInputStream bis = new BufferedInputStream(fis)) {
+                int index;
+                while ((index = nextChunk.getAndIncrement()) < chunkCount) {
+                    boolean send = missing.get(index);
+                    synchronized (hashed) {
+                        if (!send && hashed.get(index)) continue;
+                    }
+                    
+                    // I chunk già sul server si leggono solo per l'hash del manifest
+                    long position = (long) index * chunkSize;
+                    data.clear().limit((int) Math.min(chunkSize, fileChannel.size() - position));
+                    long readStart = System.nanoTime();
+                    while (data.hasRemaining()) {
+                        if (fileChannel.read(data, position + data.position()) < 0) {
+                            throw new EOFException("File troncato durante l'invio");
+                        }
+                    }
+                    metrics.addDiskTime(System.nanoTime() - readStart);
+                    data.flip();
+                    
+                    hasher.update(data);
+                    data.flip();
+                    byte[] digest = hasher.digest();
+                    synchronized (hashed) {
+                        digests[index] = digest;
+                        hashed.set(index);
+                    }
+                    if (!send) continue;
                     
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
+                    ByteBuffer payload = data;
+                    if (compress) {
+                        long cpuStart = cpuTimeNanos();
+                        if (deflate(deflater, data, compressed)) {
+                            payload = compressed;
+                        }
+                        compression.cpuNanos.addAndGet(cpuTimeNanos() - cpuStart);
+                        compression.add(data.remaining(), payload.remaining(), payload == compressed);
+                    }
                     
-                    while ((bytesRead = bis.read(buffer)) != -1) {
-                        md5.update(buffer, 0, bytesRead);
+                    header.clear();
+                    header.putInt(index).putInt(data.remaining()).put(digest)
+                          .put(payload == compressed ? ENCODING_DEFLATE : ENCODING_STORED)
+                          .putInt(payload.remaining()).flip();
+                    ByteBuffer[] frame = {header, payload};
+                    long writeStart = System.nanoTime();
+                    while (payload.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                    metrics.addNetworkTime(System.nanoTime() - writeStart);
+                    metrics.addWireBytes(header.limit() + payload.limit());
+                    metrics.addBytes(data.limit());
+                }
+                
+                out.writeInt(-1);
+                out.flush();
+                in.readInt(); // Chunk ricevuti
+                return in.readInt();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+        
+        /**
+         * Comprime il chunk in compressed; false se non conviene. Prima si
+         * comprime un campione iniziale: i dati già compressi (immagini,
+         * video, archivi) vengono riconosciuti dal rapporto del campione e
+         * inviati senza spendere CPU sull'intero chunk.
+         */
+        private boolean deflate(Deflater deflater, ByteBuffer data, ByteBuffer compressed) {
+            ByteBuffer sample = data.duplicate();
+            sample.limit(Math.min(sample.limit(), COMPRESSION_SAMPLE));
+            int sampleSize = sample.remaining();
+            
+            deflater.reset();
+            deflater.setInput(sample);
+            deflater.finish();
+            compressed.clear();
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            if (!deflater.finished() || compressed.position() > sampleSize * MIN_COMPRESSION_GAIN) {
+                return false;
+            }
+            
+            // Il chunk compresso deve stare in meno byte dell'originale
+            deflater.reset();
+            deflater.setInput(data.duplicate());
+            deflater.finish();
+            compressed.clear().limit(data.remaining() - 1);
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            if (!deflater.finished()) {
+                return false;
+            }
+            compressed.flip();
+            return true;
+        }
+        
+        /**
+         * Sincronizza una directory su una sola connessione. Il manifest
+         * (percorso, dimensione, data) parte mentre si visita la directory;
+         * gli hash si calcolano in anticipo solo per i file che sul server
+         * hanno stessa dimensione e data, per tutti gli altri durante l'invio.
+         * I file richiesti partono uno dopo l'altro senza attendere conferme;
+         * gli esiti arrivano tutti alla fine.
+         */
+        public boolean syncDirectory(String directory) throws IOException {
+            Path root = Paths.get(directory).toAbsolutePath().normalize();
+            if (!Files.isDirectory(root)) {
+                throw new IOException("Percorso non valido (non è una directory): " + directory);
+            }
+            
+            List<Path> files = new ArrayList<>();
+            List<BatchEntry> entries = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(".part")) {
+                        files.add(file);
+                        entries.add(new BatchEntry(root.relativize(file).toString().replace(File.separatorChar, '/'),
+                                                   attrs.size(), attrs.lastModifiedTime().toMillis()));
                     }
+                    return FileVisitResult.CONTINUE;
                 }
+            });
+            
+            System.out.println("📂 Sincronizzazione: " + root + " (" + files.size() + " file)");
+            System.out.println("🎯 Destinazione: " + serverHost + ":" + serverPort);
+            long start = System.nanoTime();
+            
+            try (Socket socket = new Socket(serverHost, serverPort)) {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER));
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), BATCH_BUFFER));
                 
-                return bytesToHex(md5.digest());
+                // Manifest: il buffer si svuota sul socket man mano che si riempie
+                if (entries.size() > MAX_BATCH_FILES) {
+                    throw new IOException("Troppi file per un batch: " + entries.size() + 
+                                        ", massimo " + MAX_BATCH_FILES);
+                }
+                out.writeUTF(OP_BATCH);
+                out.writeUTF(integrity.id);
+                out.writeInt(entries.size());
+                for (BatchEntry entry : entries) {
+                    entry.write(out);
+                }
+                out.flush();
                 
-            } catch (NoSuchAlgorithmException e) {
-                throw new IOException("Algoritmo MD5 non disponibile", e);
+                // Hash dei soli file che sul server hanno stessa dimensione e data
+                BitSet candidates = readIndexes(in);
+                for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                    out.writeUTF(checksumFile(integrity, files.get(i), entries.get(i).size));
+                }
+                out.flush();
+                
+                BitSet wanted = readIndexes(in);
+                long wantedBytes = 0;
+                for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+                    wantedBytes += entries.get(i).size;
+                }
+                System.out.println("📋 Da inviare: " + wanted.cardinality() + " file (" + 
+                                 formatFileSize(wantedBytes) + "), già aggiornati " + 
+                                 (entries.size() - wanted.cardinality()));
+                
+                // Dati dei file richiesti, ciascuno seguito dal suo hash, senza attendere conferme
+                byte[] buffer = new byte[BATCH_BUFFER];
+                for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+                    BatchEntry entry = entries.get(i);
+                    TreeChecksum checksum = new TreeChecksum(integrity);
+                    out.writeInt(i);
+                    try (InputStream file = Files.newInputStream(files.get(i))) {
+                        long remaining = entry.size;
+                        while (remaining > 0) {
+                            int bytesRead = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead == -1) {
+                                throw new IOException("File modificato durante la sincronizzazione: " + entry.path);
+                            }
+                            out.write(buffer, 0, bytesRead);
+                            checksum.update(buffer, 0, bytesRead);
+                            remaining -= bytesRead;
+                        }
+                    }
+                    out.writeUTF(checksum.finish());
+                }
+                out.writeInt(-1);
+                out.flush();
+                
+                BitSet failed = readIndexes(in);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                for (int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+                    System.out.println("❌ Non sincronizzato: " + entries.get(i).path);
+                }
+                System.out.printf("✅ Sincronizzazione completata in %.2f s: %d file inviati, %d falliti, " +
+                                  "%.0f file/s, %s/s%n", seconds, wanted.cardinality() - failed.cardinality(),
+                                  failed.cardinality(), wanted.cardinality() / seconds, 
+                                  formatFileSize((long) (wantedBytes / seconds)));
+                return failed.isEmpty();
+                
+            } catch (ConnectException e) {
+                throw new ConnectException("Impossibile connettersi al server " + 
+                                         serverHost + ":" + serverPort);
+            }
+        }
+        
+        private String calculateChecksum(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return checksumHex(integrity, channel, 0, channel.size());
+            }
+        }
+    }
+    
+    /**
+     * Checksum di una regione del file letta tramite finestre mappate in
+     * memoria: nessuna copia in un buffer intermedio
+     */
+    static String checksumHex(Integrity integrity, FileChannel channel, long position, long size) 
+            throws IOException {
+        TreeChecksum checksum = new TreeChecksum(integrity);
+        checksumRegion(checksum, channel, position, size);
+        return checksum.finish();
+    }
+    
+    static void checksumRegion(TreeChecksum checksum, FileChannel channel, long position, long size) 
+            throws IOException {
+        long end = position + size;
+        for (long offset = position; offset < end; offset += HASH_WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, 
+                                                  Math.min(HASH_WINDOW, end - offset));
+            checksum.update(window);
+        }
+    }
+    
+    /**
+     * Benchmark in locale (loopback): stesso file inviato con lo stream
+     * bufferizzato da 8 KB e con transferTo, verso server nello stesso processo
+     * che ricevono con lo stream o con transferFrom
+     */
+    static void runBenchmark(long sizeMB, String directory) throws IOException, InterruptedException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        Path source = dir.resolve("benchmark-" + sizeMB + "MB.bin");
+        
+        if (!Files.exists(source) || Files.size(source) != sizeMB * 1024 * 1024) {
+            System.out.println("🛠️ Creazione file di test: " + source);
+            byte[] block = new byte[1024 * 1024];
+            new java.util.Random(42).nextBytes(block);
+            try (OutputStream os = Files.newOutputStream(source)) {
+                for (long i = 0; i < sizeMB; i++) {
+                    block[(int) (i % block.length)] ^= 1; // Blocchi diversi tra loro
+                    os.write(block);
+                }
             }
         }
+        
+        // Un server per modalità di ricezione
+        int streamPort = startBenchmarkServer(dir.resolve("received-stream"), false);
+        int transferFromPort = startBenchmarkServer(dir.resolve("received-transferfrom"), true);
+        Thread.sleep(500);
+        
+        String[] labels = {"stream -> stream", "transferTo -> stream", "transferTo -> transferFrom"};
+        boolean[] clientZeroCopy = {false, true, true};
+        int[] ports = {streamPort, streamPort, transferFromPort};
+        double[] seconds = new double[labels.length];
+        
+        for (int i = 0; i < labels.length; i++) {
+            long start = System.nanoTime();
+            boolean ok = new Client("localhost", ports[i], clientZeroCopy[i]).sendFile(source.toString());
+            seconds[i] = (System.nanoTime() - start) / 1e9;
+            if (!ok) {
+                System.err.println("❌ Trasferimento " + labels[i] + " fallito");
+            }
+        }
+        
+        System.out.println("\n📊 Benchmark loopback, file da " + formatFileSize(sizeMB * 1024 * 1024) +
+                         ", integrità " + Integrity.configured().id);
+        for (int i = 0; i < labels.length; i++) {
+            System.out.printf("   %-28s %8.2f s  %8.1f MB/s%n", labels[i], seconds[i], sizeMB / seconds[i]);
+        }
+        // Solo l'invio è zero-copy: transferFrom da un socket copia comunque in un buffer
+        System.out.println("   (transferTo: zero-copy verso il socket; transferFrom: copia dal socket " +
+                         "con buffer da 8 KB e verifica in parallelo)");
+        
+        // Costo del solo checksum sul file già in page cache
+        System.out.println("\n🔐 Calcolo checksum sullo stesso file");
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (Integrity integrity : Integrity.values()) {
+                long start = System.nanoTime();
+                checksumHex(integrity, channel, 0, channel.size());
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("   %-28s %8.2f s  %8.1f MB/s%n", integrity.id, elapsed, sizeMB / elapsed);
+            }
+        }
+    }
+    
+    private static int startBenchmarkServer(Path directory, boolean zeroCopy) throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        
+        Server server = new Server(port, directory.toString(), zeroCopy);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("💥 Errore server: " + e.getMessage());
+            }
+        }, "BenchmarkServer-" + port);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return port;
     }
     
     // Utility methods
+    
+    // Liste di indici di chunk nel protocollo: numero, poi gli indici
+    static void writeIndexes(DataOutputStream out, List<Integer> indexes) throws IOException {
+        out.writeInt(indexes.size());
+        for (int index : indexes) {
+            out.writeInt(index);
+        }
+    }
+    
+    static BitSet readIndexes(DataInputStream in) throws IOException {
+        BitSet indexes = new BitSet();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            indexes.set(in.readInt());
+        }
+        return indexes;
+    }
+    
     private static String formatFileSize(long bytes) {
         if (bytes < 1024) return bytes + " B";
         if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
@@ -267,10 +2808,32 @@ public class FileTransfer {
             System.out.println("Utilizzo:");
             System.out.println("  java FileTransfer server <porta> [directory]");
             System.out.println("  java FileTransfer client <host> <porta> <file-path>");
+            System.out.println("  java FileTransfer sync <host> <porta> <directory>");
+            System.out.println("  java FileTransfer benchmark [dimensione-MB] [directory]");
             System.out.println();
             System.out.println("Esempi:");
             System.out.println("  java FileTransfer server 9999 ./uploads");
             System.out.println("  java FileTransfer client localhost 9999 ./document.pdf");
+            System.out.println("  java -Dtransfer.zeroCopy=true FileTransfer client localhost 9999 ./dataset.bin");
+            System.out.println("  java FileTransfer sync localhost 9999 ./progetto");
+            System.out.println("  java FileTransfer benchmark 2048 /tmp/ft-bench");
+            System.out.println();
+            System.out.println("Opzioni (system property):");
+            System.out.println("  -Dtransfer.zeroCopy=false   Client: invio con transferTo e checksum in coda ai dati");
+            System.out.println("                              Server: ricezione con transferFrom e verifica in parallelo");
+            System.out.println("  -Dtransfer.streams=1        Client: connessioni parallele (> 1 = protocollo a chunk)");
+            System.out.println("  -Dtransfer.chunkSize=8388608  Client: dimensione dei chunk");
+            System.out.println("  -Dtransfer.checksum=xxh64   Client: integrità (xxh64, crc32c, md5)");
+            System.out.println("  -Dtransfer.compress=false   Client: chunk compressi con Deflater (salta i dati incomprimibili)");
+            System.out.println("  -Dtransfer.compressLevel=1  Client: livello di compressione (1-9)");
+            System.out.println("  -Dtransfer.resume=false     Client: protocollo a chunk con ripresa anche su 1 connessione");
+            System.out.println("  -Dtransfer.retries=3        Client: riprese automatiche dopo un'interruzione");
+            System.out.println("  -Dtransfer.maxActive=1      Server: trasferimenti contemporanei (1 = seriale)");
+            System.out.println("  -Dtransfer.maxPending=64    Server: trasferimenti in attesa prima del rifiuto");
+            System.out.println("  -Dtransfer.diskMBps=0       Server: banda massima di scrittura su disco (0 = illimitata)");
+            System.out.println("  -Dtransfer.chunkMemoryMB=512  Server: memoria diretta per i chunk in ricezione");
+            System.out.println("  -Dtransfer.statsInterval=10 Server: secondi tra i report dei trasferimenti attivi");
+            System.out.println("  -Dtransfer.sampleMillis=500 Intervallo di campionamento di avanzamento e throughput");
             return;
         }
         
@@ -319,6 +2882,42 @@ public class FileTransfer {
                 System.exit(1);
             }
             
+        } else if ("sync".equals(mode)) {
+            if (args.length < 4) {
+                System.err.println("❌ Host, porta e directory richiesti per la sincronizzazione");
+                return;
+            }
+            
+            try {
+                Client client = new Client(args[1], Integer.parseInt(args[2]));
+                boolean success = client.syncDirectory(args[3]);
+                
+                System.out.println(success ? "🎉 Directory sincronizzata!" : "💥 Sincronizzazione incompleta");
+                System.exit(success ? 0 : 1);
+                
+            } catch (NumberFormatException e) {
+                System.err.println("❌ Porta non valida: " + args[2]);
+            } catch (IOException e) {
+                System.err.println("💥 Errore sincronizzazione: " + e.getMessage());
+                System.exit(1);
+            }
+            
+        } else if ("benchmark".equals(mode)) {
+            try {
+                long sizeMB = args.length >= 2 ? Long.parseLong(args[1]) : 2048;
+                String directory = args.length >= 3 ? args[2] : 
+                    Paths.get(System.getProperty("java.io.tmpdir"), "filetransfer-benchmark").toString();
+                
+                runBenchmark(sizeMB, directory);
+                
+            } catch (NumberFormatException e) {
+                System.err.println("❌ Dimensione non valida: " + args[1]);
+            } catch (IOException e) {
+                System.err.println("💥 Errore benchmark: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
         } else {
             System.err.println("❌ Modalità non riconosciuta: " + mode);
         }
@@ -1,26 +1,98 @@
-// Client per inviare file  
+// Client per inviare file
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class FileClient {
     public static void sendFile(Socket socket, String fileName) {
         try (FileInputStream fis = new FileInputStream(fileName);
              OutputStream out = socket.getOutputStream()) {
-            
+
             byte[] buffer = new byte[4096];
             int bytesRead;
-            
+
             while ((bytesRead = fis.read(buffer)) != -1) {
                 out.write(buffer, 0, bytesRead);
             }
-            
+
             out.flush();
             System.out.println("File inviato: " + fileName);
         } catch (IOException e) {
             System.err.println("Errore invio file: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // PUT con framing (vedi FileServer): la connessione resta aperta per altri file
+    public static void putFile(Socket socket, Path file) throws IOException {
+        // Header in un solo segmento, senza attesa di Nagle prima dei dati;
+        // l'ingresso resta non bufferizzato per il canale
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        WritableByteChannel sink = socket.getChannel() != null
+            ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            out.writeUTF(FileServer.PUT);
+            out.writeUTF(file.getFileName().toString());
+            out.writeLong(size);
+            out.flush();
+
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, sink);
+            }
+        }
+
+        if (!in.readBoolean()) {
+            throw new IOException(in.readUTF());
+        }
+        in.readUTF();
+    }
+
+    // GET con framing: il file ricevuto viene scritto con transferFrom
+    public static void getFile(Socket socket, String name, Path destination) throws IOException {
+        // Header in un solo segmento, senza attesa di Nagle prima dei dati;
+        // l'ingresso resta non bufferizzato per il canale
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        ReadableByteChannel source = socket.getChannel() != null
+            ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+
+        out.writeUTF(FileServer.GET);
+        out.writeUTF(name);
+        out.flush();
+
+        long size = in.readLong();
+        if (size < 0) {
+            throw new FileNotFoundException("File non presente sul server: " + name);
+        }
+
+        try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferFrom(source, position, size - position);
+                if (transferred <= 0) {
+                    throw new EOFException("Connessione chiusa durante la ricezione di " + name);
+                }
+                position += transferred;
+            }
+        }
+    }
+}
@@ -1,25 +1,186 @@
 // Server per ricevere file
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class FileServer {
+    // Comandi del protocollo con framing: ogni richiesta indica la lunghezza
+    // dei dati, quindi una connessione può trasportare più file
+    //   PUT nome, dimensione, dati  -> esito, messaggio
+    //   GET nome                    -> dimensione (-1 se il file non esiste), dati
+    public static final String PUT = "PUT";
+    public static final String GET = "GET";
+
+    // Porzione del file mappata in memoria per volta durante un PUT
+    private static final long MAP_REGION = 256L * 1024 * 1024;
+
     public static void receiveFile(Socket socket, String fileName) {
         try (FileOutputStream fos = new FileOutputStream(fileName);
              InputStream in = socket.getInputStream()) {
-            
+
             byte[] buffer = new byte[4096];
             int bytesRead;
-            
+
             while ((bytesRead = in.read(buffer)) != -1) {
                 fos.write(buffer, 0, bytesRead);
             }
-            
+
             System.out.println("File ricevuto: " + fileName);
         } catch (IOException e) {
             System.err.println("Errore ricezione file: " + e.getMessage());
         }
     }
+
+    // Serve richieste PUT e GET sulla stessa connessione finché il client non la chiude
+    public static void serve(Socket socket, Path directory) {
+        try (Socket connection = socket) {
+            // Richieste e risposte sono piccole: niente attesa di Nagle tra un file e l'altro
+            connection.setTcpNoDelay(true);
+
+            // Ingresso non bufferizzato: dopo l'header i dati vengono letti dal canale
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            ReadableByteChannel source = connection.getChannel() != null
+                ? connection.getChannel() : Channels.newChannel(connection.getInputStream());
+            WritableByteChannel sink = connection.getChannel() != null
+                ? connection.getChannel() : Channels.newChannel(connection.getOutputStream());
+
+            while (true) {
+                String command;
+                try {
+                    command = in.readUTF();
+                } catch (EOFException e) {
+                    break; // Connessione chiusa dal client
+                }
+
+                String requested = in.readUTF();
+                String name = fileName(requested);
+                Path file = name == null ? null : directory.resolve(name);
+
+                if (PUT.equals(command)) {
+                    long size = in.readLong();
+                    if (size < 0) {
+                        // Senza la lunghezza dei dati non si ritrova l'inizio della richiesta successiva
+                        out.writeBoolean(false);
+                        out.writeUTF("Dimensione non valida: " + size);
+                        out.flush();
+                        break;
+                    }
+
+                    // In caso di errore i dati vengono comunque consumati: la
+                    // risposta negativa lascia la connessione utilizzabile
+                    String error = null;
+                    if (file == null) {
+                        discard(source, size);
+                        error = "Nome file non valido: " + requested;
+                    } else {
+                        try {
+                            receiveMapped(source, file, size);
+                        } catch (EOFException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            error = "Errore scrittura " + name + ": " + e.getMessage();
+                        }
+                    }
+                    out.writeBoolean(error == null);
+                    out.writeUTF(error == null ? "File ricevuto: " + name : error);
+                    out.flush();
+                } else if (GET.equals(command)) {
+                    sendFile(sink, out, file);
+                } else {
+                    throw new IOException("Comando sconosciuto: " + command);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Errore connessione: " + e.getMessage());
+        }
+    }
+
+    // Solo il nome: il client non può scrivere fuori dalla directory (null se non valido)
+    private static String fileName(String requested) {
+        try {
+            Path name = Paths.get(requested).getFileName();
+            String value = name == null ? "" : name.toString();
+            return value.isEmpty() || value.equals(".") || value.equals("..") ? null : value;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // PUT: il file viene dimensionato dall'header e riempito direttamente dal
+    // socket attraverso regioni mappate in memoria, senza buffer intermedi
+    private static void receiveMapped(ReadableByteChannel source, Path file, long size) throws IOException {
+        long received = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (received < size) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, received,
+                                                      Math.min(MAP_REGION, size - received));
+                while (region.hasRemaining()) {
+                    int read = source.read(region);
+                    if (read < 0) {
+                        throw new EOFException("Connessione chiusa durante la ricezione di " + file.getFileName());
+                    }
+                    received += read;
+                }
+            }
+        } catch (EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            // Errore sul file: il resto dei dati viene scartato
+            discard(source, size - received);
+            throw e;
+        }
+    }
+
+    // Legge e scarta count byte dal socket
+    private static void discard(ReadableByteChannel source, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        while (count > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+            int read = source.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Connessione chiusa durante la ricezione dei dati");
+            }
+            count -= read;
+        }
+    }
+
+    // GET: dimensione nell'header, poi i dati dalla page cache al socket con transferTo
+    private static void sendFile(WritableByteChannel sink, DataOutputStream out, Path file) throws IOException {
+        if (file == null || !Files.isRegularFile(file)) {
+            out.writeLong(-1);
+            out.flush();
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            out.writeLong(size);
+            out.flush();
+
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, sink);
+            }
+        }
+    }
 }
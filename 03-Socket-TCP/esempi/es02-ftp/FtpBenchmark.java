@@ -0,0 +1,155 @@
+// Confronto di throughput: copia a stream con buffer da 4 KB (una connessione
+// per file) contro il protocollo con framing (PUT mappato, GET con transferTo)
+//
+// Uso: java FtpBenchmark [directory] [dimensione-max-MB]
+//   directory          dove creare i file di prova (default: directory temporanea)
+//   dimensione-max-MB  file più grande del confronto (default: 4096 = 4 GB)
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+public class FtpBenchmark {
+    private static final long[] SIZES = {
+        1024L, 64L * 1024, 1024L * 1024, 64L * 1024 * 1024,
+        1024L * 1024 * 1024, 4096L * 1024 * 1024
+    };
+
+    // I file piccoli vengono ripetuti finché non si trasferiscono almeno 64 MB
+    private static final long MIN_TOTAL_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_REPETITIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("ftp-bench");
+        long maxSize = (args.length > 1 ? Long.parseLong(args[1]) : 4096) * 1024 * 1024;
+
+        Path sources = Files.createDirectories(directory.resolve("sorgenti"));
+        Path received = Files.createDirectories(directory.resolve("ricevuti"));
+
+        System.out.println("📊 Confronto throughput in " + directory);
+        System.out.printf("%-10s %6s %16s %16s %16s%n",
+                          "Dimensione", "Rip.", "Stream 4KB", "PUT mappato", "GET transferTo");
+
+        for (long size : SIZES) {
+            if (size > maxSize) {
+                break;
+            }
+
+            Path source = sources.resolve("file-" + size);
+            createFile(source, size);
+            int repetitions = (int) Math.max(1, Math.min(MAX_REPETITIONS, MIN_TOTAL_BYTES / size));
+            long total = size * repetitions;
+
+            double legacy = mbPerSecond(total, legacyCopy(source, received.resolve(source.getFileName()), repetitions));
+            double put = mbPerSecond(total, framedPut(source, received, repetitions));
+            double get = mbPerSecond(total, framedGet(source, received.resolve("get-" + size), repetitions));
+
+            System.out.printf("%-10s %6d %11.1f MB/s %11.1f MB/s %11.1f MB/s%n",
+                              formatSize(size), repetitions, legacy, put, get);
+
+            Files.deleteIfExists(received.resolve(source.getFileName()));
+            Files.deleteIfExists(received.resolve("get-" + size));
+            Files.deleteIfExists(source);
+        }
+    }
+
+    // Stream 4 KB: il server riceve fino a EOF, quindi serve una connessione per file
+    private static long legacyCopy(Path source, Path destination, int repetitions) throws Exception {
+        // sendFile e receiveFile stampano un messaggio per file: li silenziamo durante la misura
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try (ServerSocket server = new ServerSocket(0)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < repetitions; i++) {
+                Thread client = new Thread(() -> {
+                    try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+                        FileClient.sendFile(socket, source.toString());
+                    } catch (IOException e) {
+                        System.err.println("Errore client: " + e.getMessage());
+                    }
+                });
+                client.start();
+                FileServer.receiveFile(server.accept(), destination.toString());
+                client.join();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    // PUT con framing: tutte le ripetizioni sulla stessa connessione
+    private static long framedPut(Path source, Path directory, int repetitions) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            Thread serverThread = serveOne(server, directory);
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                long start = System.nanoTime();
+                for (int i = 0; i < repetitions; i++) {
+                    FileClient.putFile(channel.socket(), source);
+                }
+                long elapsed = System.nanoTime() - start;
+                channel.shutdownOutput();
+                serverThread.join();
+                return elapsed;
+            }
+        }
+    }
+
+    // GET con framing: il server invia con transferTo, il client scrive con transferFrom
+    private static long framedGet(Path source, Path destination, int repetitions) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            Thread serverThread = serveOne(server, source.getParent());
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                long start = System.nanoTime();
+                for (int i = 0; i < repetitions; i++) {
+                    FileClient.getFile(channel.socket(), source.getFileName().toString(), destination);
+                }
+                long elapsed = System.nanoTime() - start;
+                channel.shutdownOutput();
+                serverThread.join();
+                return elapsed;
+            }
+        }
+    }
+
+    private static Thread serveOne(ServerSocketChannel server, Path directory) {
+        Thread thread = new Thread(() -> {
+            try {
+                FileServer.serve(server.accept().socket(), directory);
+            } catch (IOException e) {
+                System.err.println("Errore server: " + e.getMessage());
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void createFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(size).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static String formatSize(long size) {
+        if (size >= 1024L * 1024 * 1024) return (size >> 30) + " GB";
+        if (size >= 1024L * 1024) return (size >> 20) + " MB";
+        return (size >> 10) + " KB";
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.*;
 import java.security.*;
 import java.security.cert.*;
+import java.security.cert.Certificate;
 import java.util.*;
 
 /**
@@ -10,7 +11,9 @@ import java.util.*;
  * - Genera certificati self-signed per testing
  * - Crea keystore server e client
  * - Configura truststore per validazione reciproca
- * - Usa keytool per generazione certificati
+ * - Chiavi e certificati generati nel processo (SelfSignedCertificates),
+ *   senza lanciare keytool (una JVM in più per ogni comando)
+ * - Chiavi EC P-256 (default) o RSA 2048 con -Dssl.keyAlgorithm=RSA
  * - Fornisce istruzioni per uso
  * 
  * USO:
@@ -37,6 +40,12 @@ public class CertificateGenerator {
     private static final String CLIENT_STORE_PASS = "clientpass";
     private static final String TRUST_STORE_PASS = "trustpass";
     
+    // EC: handshake più veloci a parità di sicurezza (vedi TlsBenchmark)
+    private static final String KEY_ALGORITHM = System.getProperty("ssl.keyAlgorithm", "EC");
+    
+    private X509Certificate serverCertificate;
+    private X509Certificate clientCertificate;
+    
     public static void main(String[] args) {
         
         System.out.println("=== CERTIFICATE GENERATOR ===");
@@ -70,67 +79,43 @@ public class CertificateGenerator {
         
         System.out.println("\n1. Generazione certificato server...");
         
-        // Comando keytool per certificato server
-        String[] serverCommand = {
-            "keytool", "-genkeypair",
-            "-alias", SERVER_ALIAS,
-            "-keyalg", "RSA",
-            "-keysize", "2048",
-            "-validity", "365",
-            "-keystore", SERVER_KEYSTORE,
-            "-storepass", SERVER_STORE_PASS,
-            "-keypass", SERVER_STORE_PASS,
-            "-dname", "CN=localhost,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT",
-            "-ext", "SAN=dns:localhost,dns:127.0.0.1,ip:127.0.0.1"
-        };
-        
-        executeCommand(serverCommand, "Certificato server");
+        // Coppia di chiavi e certificato self-signed nel processo (niente keytool)
+        long start = System.nanoTime();
+        KeyPair keyPair = SelfSignedCertificates.generateKeyPair(KEY_ALGORITHM, 2048);
+        serverCertificate = SelfSignedCertificates.create(keyPair,
+            "CN=localhost,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT", 365,
+            List.of("dns:localhost", "dns:127.0.0.1", "ip:127.0.0.1"));
         
-        // Esporta certificato pubblico server
-        String[] exportServerCommand = {
-            "keytool", "-exportcert",
-            "-alias", SERVER_ALIAS,
-            "-keystore", SERVER_KEYSTORE,
-            "-storepass", SERVER_STORE_PASS,
-            "-file", "server.crt"
-        };
+        KeyStore keyStore = SelfSignedCertificates.createKeyStore(
+            SERVER_ALIAS, SERVER_STORE_PASS.toCharArray(), keyPair, serverCertificate);
+        SelfSignedCertificates.save(keyStore, new File(SERVER_KEYSTORE), SERVER_STORE_PASS.toCharArray());
         
-        executeCommand(exportServerCommand, "Export certificato server");
+        // Esporta certificato pubblico server (DER, come keytool -exportcert)
+        exportCertificate(serverCertificate, "server.crt");
         
-        System.out.println("✓ Certificato server generato: " + SERVER_KEYSTORE);
+        System.out.printf("✓ Certificato server generato: %s (%s, %.1f ms)%n",
+            SERVER_KEYSTORE, KEY_ALGORITHM, (System.nanoTime() - start) / 1e6);
     }
     
     public void generateClientCertificate() throws Exception {
         
         System.out.println("\n2. Generazione certificato client...");
         
-        // Comando keytool per certificato client
-        String[] clientCommand = {
-            "keytool", "-genkeypair",
-            "-alias", CLIENT_ALIAS,
-            "-keyalg", "RSA",
-            "-keysize", "2048",
-            "-validity", "365",
-            "-keystore", CLIENT_KEYSTORE,
-            "-storepass", CLIENT_STORE_PASS,
-            "-keypass", CLIENT_STORE_PASS,
-            "-dname", "CN=SSL Client,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT"
-        };
+        long start = System.nanoTime();
+        KeyPair keyPair = SelfSignedCertificates.generateKeyPair(KEY_ALGORITHM, 2048);
+        clientCertificate = SelfSignedCertificates.create(keyPair,
+            "CN=SSL Client,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT", 365,
+            List.of("dns:localhost"));
         
-        executeCommand(clientCommand, "Certificato client");
+        KeyStore keyStore = SelfSignedCertificates.createKeyStore(
+            CLIENT_ALIAS, CLIENT_STORE_PASS.toCharArray(), keyPair, clientCertificate);
+        SelfSignedCertificates.save(keyStore, new File(CLIENT_KEYSTORE), CLIENT_STORE_PASS.toCharArray());
         
         // Esporta certificato pubblico client
-        String[] exportClientCommand = {
-            "keytool", "-exportcert",
-            "-alias", CLIENT_ALIAS,
-            "-keystore", CLIENT_KEYSTORE,
-            "-storepass", CLIENT_STORE_PASS,
-            "-file", "client.crt"
-        };
-        
-        executeCommand(exportClientCommand, "Export certificato client");
+        exportCertificate(clientCertificate, "client.crt");
         
-        System.out.println("✓ Certificato client generato: " + CLIENT_KEYSTORE);
+        System.out.printf("✓ Certificato client generato: %s (%s, %.1f ms)%n",
+            CLIENT_KEYSTORE, KEY_ALGORITHM, (System.nanoTime() - start) / 1e6);
     }
     
     public void createTrustStores() throws Exception {
@@ -138,58 +123,23 @@ public class CertificateGenerator {
         System.out.println("\n3. Creazione truststore...");
         
         // TrustStore per client (contiene certificato server fidato)
-        String[] clientTrustCommand = {
-            "keytool", "-importcert",
-            "-alias", SERVER_ALIAS,
-            "-file", "server.crt",
-            "-keystore", CLIENT_TRUSTSTORE,
-            "-storepass", TRUST_STORE_PASS,
-            "-noprompt"
-        };
-        
-        executeCommand(clientTrustCommand, "Client truststore");
+        KeyStore clientTrust = SelfSignedCertificates.createTrustStore(SERVER_ALIAS, serverCertificate);
+        SelfSignedCertificates.save(clientTrust, new File(CLIENT_TRUSTSTORE), TRUST_STORE_PASS.toCharArray());
+        System.out.println("  ✓ Client truststore completato");
         
         // TrustStore per server (contiene certificato client fidato)
-        String[] serverTrustCommand = {
-            "keytool", "-importcert",
-            "-alias", CLIENT_ALIAS,
-            "-file", "client.crt",
-            "-keystore", SERVER_TRUSTSTORE,
-            "-storepass", TRUST_STORE_PASS,
-            "-noprompt"
-        };
-        
-        executeCommand(serverTrustCommand, "Server truststore");
+        KeyStore serverTrust = SelfSignedCertificates.createTrustStore(CLIENT_ALIAS, clientCertificate);
+        SelfSignedCertificates.save(serverTrust, new File(SERVER_TRUSTSTORE), TRUST_STORE_PASS.toCharArray());
+        System.out.println("  ✓ Server truststore completato");
         
         System.out.println("✓ TrustStore creati per autenticazione mutua");
     }
     
-    private void executeCommand(String[] command, String description) throws Exception {
-        
-        System.out.println("  Esecuzione: " + description);
-        
-        ProcessBuilder pb = new ProcessBuilder(command);
-        pb.redirectErrorStream(true);
-        
-        Process process = pb.start();
-        
-        // Leggi output del comando
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()))) {
-            
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("    " + line);
-            }
+    private void exportCertificate(X509Certificate certificate, String fileName) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(fileName)) {
+            out.write(certificate.getEncoded());
         }
-        
-        int exitCode = process.waitFor();
-        
-        if (exitCode != 0) {
-            throw new RuntimeException(description + " fallito con exit code: " + exitCode);
-        }
-        
-        System.out.println("  ✓ " + description + " completato");
+        System.out.println("  ✓ Export " + fileName + " completato");
     }
     
     public void verifyGeneratedFiles() throws Exception {
@@ -0,0 +1,141 @@
+import javax.net.ssl.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistiche degli handshake TLS per i server di esempio.
+ *
+ * CARATTERISTICHE:
+ * - Distingue handshake completi e ripresi (session cache o session ticket)
+ * - Latenza media separata per i due tipi
+ * - Percentuale di ripresa (hit rate della cache)
+ * - Attesa in coda prima dell'handshake, fallimenti, timeout e rifiuti,
+ *   separati dal traffico applicativo
+ * - Contatori atomici: aggiornabili da più thread senza lock
+ *
+ * Una sessione ripresa conserva la data di creazione della sessione
+ * originale, sia con la cache lato server (TLS 1.2) sia con i ticket
+ * (TLS 1.3): basta confrontarla con l'inizio dell'handshake.
+ */
+public class HandshakeStats {
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong fullNanos = new AtomicLong();
+    private final AtomicLong resumedNanos = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // true se la sessione non è stata creata da questo handshake
+    public static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+        return session.getCreationTime() < handshakeStartMillis;
+    }
+
+    /**
+     * Cache delle sessioni lato server: numero massimo di sessioni e durata
+     * in secondi (-Dssl.sessionCacheSize, -Dssl.sessionTimeout)
+     */
+    public static void configureServerSessions(SSLContext sslContext) {
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(Integer.getInteger("ssl.sessionCacheSize", 20480));
+        sessions.setSessionTimeout(Integer.getInteger("ssl.sessionTimeout", 3600));
+    }
+
+    /**
+     * Session ticket (ripresa stateless, RFC 5077 / TLS 1.3): lo stato della
+     * sessione viaggia cifrato nel ticket e il server non deve conservarlo.
+     * La proprietà di JSSE va impostata prima di creare il primo SSLContext.
+     */
+    public static void configureSessionTickets() {
+        boolean tickets = Boolean.parseBoolean(System.getProperty("ssl.sessionTickets", "true"));
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(tickets));
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", String.valueOf(tickets));
+    }
+
+    public void record(boolean resumed, long handshakeNanos) {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedNanos.addAndGet(handshakeNanos);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullNanos.addAndGet(handshakeNanos);
+        }
+    }
+
+    // Dalla accept all'inizio dell'handshake
+    public void recordQueueWait(long nanos) {
+        queued.incrementAndGet();
+        queueWaitNanos.addAndGet(nanos);
+    }
+
+    public void recordFailure(boolean timedOut) {
+        failures.incrementAndGet();
+        if (timedOut) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    // Connessione chiusa senza handshake: coda piena
+    public void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    public double getResumptionRate() {
+        long total = fullHandshakes.get() + resumedHandshakes.get();
+        return total == 0 ? 0 : resumedHandshakes.get() * 100.0 / total;
+    }
+
+    public double getAverageFullMillis() {
+        return average(fullNanos.get(), fullHandshakes.get());
+    }
+
+    public double getAverageResumedMillis() {
+        return average(resumedNanos.get(), resumedHandshakes.get());
+    }
+
+    public double getAverageQueueWaitMillis() {
+        return average(queueWaitNanos.get(), queued.get());
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private static double average(long nanos, long count) {
+        return count == 0 ? 0 : nanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        String summary = String.format("%d completi (media %.1f ms), %d ripresi (media %.1f ms), ripresa %.1f%%",
+            getFullHandshakes(), getAverageFullMillis(),
+            getResumedHandshakes(), getAverageResumedMillis(), getResumptionRate());
+        if (queued.get() > 0) {
+            summary += String.format(", attesa in coda %.1f ms", getAverageQueueWaitMillis());
+        }
+        if (failures.get() > 0 || rejected.get() > 0) {
+            summary += String.format(", falliti %d (timeout %d), rifiutati %d",
+                getFailures(), getTimeouts(), getRejected());
+        }
+        return summary;
+    }
+}
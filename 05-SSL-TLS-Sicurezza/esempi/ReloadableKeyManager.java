@@ -0,0 +1,322 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.Socket;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KeyManager che ricarica il keystore quando il file cambia, senza
+ * riavviare il server.
+ *
+ * CARATTERISTICHE:
+ * - Controllo periodico di data di modifica e dimensione del file
+ *   (funziona anche con sostituzioni atomiche, rename e link simbolici)
+ * - Le nuove credenziali valgono solo per i nuovi handshake: le connessioni
+ *   aperte continuano con la chiave già negoziata
+ * - Keystore illeggibile, senza chiave privata o con certificato scaduto:
+ *   la rotazione viene scartata e restano attive le credenziali precedenti
+ * - Metriche: rotazioni, errori, durata dell'ultima rotazione, scadenza del
+ *   certificato attivo
+ *
+ * Ogni versione del keystore è una "generazione" e l'alias restituito a
+ * JSSE la contiene (es. "g2:0.0.server"): certificato e chiave privata di
+ * uno stesso handshake vengono dalla stessa generazione anche se la
+ * rotazione avviene a metà handshake.
+ *
+ * Le sessioni nella cache restano riprendibili dopo la rotazione e
+ * conservano il certificato con cui sono state create.
+ *
+ * OPZIONI (system property):
+ * - ssl.keystoreReloadMillis  intervallo di controllo del file in ms
+ *                             (default 2000, 0 = nessuna ricarica)
+ */
+public class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+    public static final long RELOAD_MILLIS = Long.getLong("ssl.keystoreReloadMillis", 2000);
+
+    // Generazioni precedenti ancora risolvibili dagli handshake in corso
+    private static final int KEPT_GENERATIONS = 4;
+
+    private final File file;
+    private final char[] password;
+    private final Map<Integer, Credentials> generations = new ConcurrentHashMap<>();
+    private volatile Credentials current;
+
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRotationMillis;
+    private volatile long lastRotationNanos;
+    private long failedModified;
+    private long failedSize;
+    private ScheduledExecutorService watcher;
+
+    // Credenziali di una versione del keystore
+    private static class Credentials {
+        final int generation;
+        final X509ExtendedKeyManager manager;
+        final X509Certificate certificate;
+        final long modified;
+        final long size;
+
+        Credentials(int generation, X509ExtendedKeyManager manager, X509Certificate certificate,
+                    long modified, long size) {
+            this.generation = generation;
+            this.manager = manager;
+            this.certificate = certificate;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    public ReloadableKeyManager(File file, char[] password, KeyStore keyStore) throws GeneralSecurityException {
+        this.file = file;
+        this.password = password.clone();
+        activate(credentials(1, keyStore, file.lastModified(), file.length()));
+    }
+
+    // Avvia il controllo periodico del file (thread daemon)
+    public synchronized void startWatching(long intervalMillis) {
+        if (watcher != null || intervalMillis <= 0) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "keystore-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::checkForChanges, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    private synchronized void checkForChanges() {
+        long modified = file.lastModified();
+        long size = file.length();
+        Credentials active = current;
+
+        // File assente (sostituzione in corso) o invariato
+        if (modified == 0 || (modified == active.modified && size == active.size)) {
+            return;
+        }
+        // Versione già scartata: si riprova solo quando cambia di nuovo
+        if (modified == failedModified && size == failedSize) {
+            return;
+        }
+        try {
+            reload();
+        } catch (GeneralSecurityException | IOException e) {
+            failedModified = modified;
+            failedSize = size;
+        }
+    }
+
+    /**
+     * Rilegge subito il keystore e, se valido, lo rende attivo per i nuovi
+     * handshake. In caso di errore restano le credenziali precedenti.
+     */
+    public synchronized void reload() throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        long modified = file.lastModified();
+        long size = file.length();
+        try {
+            KeyStore keyStore = load();
+            Credentials next = credentials(current.generation + 1, keyStore, modified, size);
+            next.certificate.checkValidity();
+            activate(next);
+
+            lastRotationNanos = System.nanoTime() - start;
+            lastRotationMillis = System.currentTimeMillis();
+            rotations.incrementAndGet();
+            System.out.printf("🔄 Keystore ricaricato: %s (generazione %d, %.1f ms)%n",
+                file, next.generation, lastRotationNanos / 1e6);
+            System.out.println("  Certificato: " + this);
+        } catch (GeneralSecurityException | IOException e) {
+            failures.incrementAndGet();
+            System.err.println("⚠ Ricarica keystore fallita (" + file + "): " + e.getMessage() +
+                " - restano attive le credenziali precedenti");
+            throw e;
+        }
+    }
+
+    private KeyStore load() throws GeneralSecurityException, IOException {
+        try {
+            return KeyStore.getInstance(file, password);
+        } catch (IllegalArgumentException e) {
+            // File rimosso tra il controllo e la lettura
+            throw new FileNotFoundException(file.toString());
+        }
+    }
+
+    private void activate(Credentials next) {
+        generations.put(next.generation, next);
+        generations.remove(next.generation - KEPT_GENERATIONS);
+        current = next;
+    }
+
+    private Credentials credentials(int generation, KeyStore keyStore, long modified, long size)
+            throws GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+
+        X509ExtendedKeyManager manager = null;
+        for (KeyManager km : kmf.getKeyManagers()) {
+            if (km instanceof X509ExtendedKeyManager) {
+                manager = (X509ExtendedKeyManager) km;
+            }
+        }
+
+        X509Certificate certificate = null;
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (keyStore.isKeyEntry(alias) && keyStore.getCertificate(alias) instanceof X509Certificate) {
+                certificate = (X509Certificate) keyStore.getCertificate(alias);
+                break;
+            }
+        }
+
+        if (manager == null || certificate == null) {
+            throw new KeyStoreException("Nessuna chiave privata con certificato X.509 in " + file);
+        }
+        return new Credentials(generation, manager, certificate, modified, size);
+    }
+
+    // Metriche
+
+    public X509Certificate getCertificate() {
+        return current.certificate;
+    }
+
+    public long getDaysToExpiry() {
+        long millis = current.certificate.getNotAfter().getTime() - System.currentTimeMillis();
+        return TimeUnit.MILLISECONDS.toDays(millis);
+    }
+
+    public int getGeneration() {
+        return current.generation;
+    }
+
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // Istante dell'ultima rotazione riuscita (0 se mai ruotato)
+    public long getLastRotationMillis() {
+        return lastRotationMillis;
+    }
+
+    public double getLastRotationDurationMillis() {
+        return lastRotationNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        X509Certificate certificate = getCertificate();
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+        String summary = String.format("%s, scade il %s (tra %d giorni), rotazioni %d",
+            certificate.getSubjectX500Principal().getName(), date.format(certificate.getNotAfter()),
+            getDaysToExpiry(), getRotations());
+        if (lastRotationMillis > 0) {
+            summary += String.format(" (ultima %s, %.1f ms)",
+                new SimpleDateFormat("HH:mm:ss").format(new Date(lastRotationMillis)),
+                getLastRotationDurationMillis());
+        }
+        if (failures.get() > 0) {
+            summary += ", errori " + getFailures();
+        }
+        return summary;
+    }
+
+    // Alias con la generazione: "g<n>:<alias del KeyManager>"
+
+    private String tag(Credentials credentials, String alias) {
+        return alias == null ? null : "g" + credentials.generation + ":" + alias;
+    }
+
+    private String[] tag(Credentials credentials, String[] aliases) {
+        if (aliases == null) {
+            return null;
+        }
+        String[] tagged = new String[aliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+            tagged[i] = tag(credentials, aliases[i]);
+        }
+        return tagged;
+    }
+
+    // Credenziali della generazione indicata nell'alias (null se sconosciuta)
+    private Credentials resolve(String alias) {
+        int colon = alias == null ? -1 : alias.indexOf(':');
+        if (colon < 2 || alias.charAt(0) != 'g') {
+            return null;
+        }
+        try {
+            return generations.get(Integer.parseInt(alias.substring(1, colon)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.getServerAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.getClientAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.chooseClientAlias(keyTypes, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        Credentials credentials = current;
+        return tag(credentials, credentials.manager.chooseEngineClientAlias(keyTypes, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        Credentials credentials = resolve(alias);
+        return credentials == null ? null : credentials.manager.getCertificateChain(untag(alias));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        Credentials credentials = resolve(alias);
+        return credentials == null ? null : credentials.manager.getPrivateKey(untag(alias));
+    }
+
+    private static String untag(String alias) {
+        return alias.substring(alias.indexOf(':') + 1);
+    }
+}
@@ -0,0 +1,154 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * SSLContext condivisi dagli esempi SSL (SimpleSSLServer, SecureChatServer,
+ * SimpleSSLClient, SecureChatClient).
+ *
+ * CARATTERISTICHE:
+ * - Ogni keystore viene letto una sola volta: KeyManager e
+ *   TrustManagerFactory inizializzati restano in cache
+ * - Keystore server ricaricato se il file cambia (ReloadableKeyManager):
+ *   rotazione del certificato senza riavvio e senza chiudere le connessioni
+ * - Un solo SSLContext per keystore (server) e per modalità di fiducia
+ *   (client): server e client nello stesso processo condividono anche la
+ *   cache delle sessioni
+ * - Keystore demo mancante: coppia di chiavi e certificato self-signed
+ *   generati nel processo (SelfSignedCertificates), senza keytool
+ * - Client: validazione bypassata per localhost o con -Dssl.trust.all
+ *
+ * OPZIONI (system property):
+ * - ssl.keyAlgorithm  chiave del keystore demo: EC (P-256, default) o RSA
+ *                     (2048 bit); EC ha più handshake/s, vedi TlsBenchmark
+ * - ssl.trust.all     client: accetta qualsiasi certificato (solo demo!)
+ * - ssl.keystoreReloadMillis  controllo del keystore server (default 2000,
+ *                     0 = nessuna ricarica)
+ */
+public final class SSLContextFactory {
+
+    private static final Map<String, ReloadableKeyManager> keyManagers = new HashMap<>();
+    private static final Map<String, SSLContext> contexts = new HashMap<>();
+    private static TrustManagerFactory defaultTrustManagers;
+
+    private SSLContextFactory() {
+    }
+
+    /**
+     * Contesto server per il keystore indicato, con la cache delle sessioni
+     * configurata (HandshakeStats.configureServerSessions)
+     */
+    public static synchronized SSLContext server(String keystorePath, String password)
+            throws GeneralSecurityException, IOException {
+        String key = "server:" + new File(keystorePath).getAbsolutePath();
+        SSLContext context = contexts.get(key);
+        if (context == null) {
+            long start = System.nanoTime();
+            context = SSLContext.getInstance("TLS");
+            ReloadableKeyManager keyManager = keyManager(keystorePath, password);
+            context.init(new KeyManager[]{keyManager},
+                         defaultTrustManagers().getTrustManagers(), new SecureRandom());
+            HandshakeStats.configureServerSessions(context);
+            contexts.put(key, context);
+            System.out.printf("✓ SSL Context server pronto in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            System.out.println("✓ Certificato: " + keyManager);
+        }
+        return context;
+    }
+
+    // Contesto client: fiducia totale per localhost (demo), validazione standard altrimenti
+    public static synchronized SSLContext client(String hostname) throws GeneralSecurityException {
+        boolean trustAll = isTrustAll(hostname);
+        String key = trustAll ? "client:trust-all" : "client:default";
+        SSLContext context = contexts.get(key);
+        if (context == null) {
+            context = SSLContext.getInstance("TLS");
+            context.init(null, trustAll ? createTrustAllManagers() : defaultTrustManagers().getTrustManagers(),
+                         new SecureRandom());
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    public static boolean isTrustAll(String hostname) {
+        return Boolean.getBoolean("ssl.trust.all") ||
+               hostname.equals("localhost") ||
+               hostname.equals("127.0.0.1");
+    }
+
+    /**
+     * KeyManager del keystore, caricato (o generato) alla prima richiesta e
+     * poi ricaricato quando il file cambia; espone anche le metriche di
+     * rotazione e scadenza del certificato
+     */
+    public static synchronized ReloadableKeyManager keyManager(String keystorePath, String password)
+            throws GeneralSecurityException, IOException {
+        File file = new File(keystorePath).getAbsoluteFile();
+        ReloadableKeyManager keyManager = keyManagers.get(file.getPath());
+        if (keyManager == null) {
+            KeyStore keyStore = loadOrCreateKeyStore(file, password.toCharArray());
+            keyManager = new ReloadableKeyManager(file, password.toCharArray(), keyStore);
+            keyManager.startWatching(ReloadableKeyManager.RELOAD_MILLIS);
+            keyManagers.put(file.getPath(), keyManager);
+        }
+        return keyManager;
+    }
+
+    // CA di sistema (cacerts), caricate una volta sola
+    public static synchronized TrustManagerFactory defaultTrustManagers() throws GeneralSecurityException {
+        if (defaultTrustManagers == null) {
+            defaultTrustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            defaultTrustManagers.init((KeyStore) null);
+        }
+        return defaultTrustManagers;
+    }
+
+    private static KeyStore loadOrCreateKeyStore(File file, char[] password)
+            throws GeneralSecurityException, IOException {
+        if (file.exists()) {
+            // Riconosce da solo JKS e PKCS12 (formato predefinito di keytool)
+            KeyStore keyStore = KeyStore.getInstance(file, password);
+            System.out.println("✓ Keystore caricato: " + file);
+            return keyStore;
+        }
+
+        System.out.println("Keystore non trovato: " + file);
+        System.out.println("ATTENZIONE: Creazione certificato self-signed per DEMO!");
+        System.out.println("In produzione usa certificati firmati da CA riconosciute!");
+
+        long start = System.nanoTime();
+        String algorithm = System.getProperty("ssl.keyAlgorithm", "EC");
+        KeyPair keyPair = SelfSignedCertificates.generateKeyPair(algorithm, 2048);
+        X509Certificate certificate = SelfSignedCertificates.create(keyPair,
+            "CN=localhost,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT", 365,
+            List.of("dns:localhost", "ip:127.0.0.1"));
+        KeyStore keyStore = SelfSignedCertificates.createKeyStore("server", password, keyPair, certificate);
+        SelfSignedCertificates.save(keyStore, file, password);
+
+        System.out.printf("✓ Keystore demo creato (%s) in %.1f ms%n", algorithm, (System.nanoTime() - start) / 1e6);
+        return keyStore;
+    }
+
+    private static TrustManager[] createTrustAllManagers() {
+        return new TrustManager[] {
+            new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+
+                @Override
+                public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                    // Accetta tutti i certificati client
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                    // Accetta tutti i certificati server (INSICURO!)
+                }
+            }
+        };
+    }
+}
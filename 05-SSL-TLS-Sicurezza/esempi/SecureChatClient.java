@@ -1,7 +1,6 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
-import java.security.*;
 import java.util.Scanner;
 
 /**
@@ -21,12 +20,16 @@ import java.util.Scanner;
  * - Thread separato per ricezione messaggi
  * - Gestione disconnessioni graceful
  * - Timestamping locale messaggi
+ * - Ripresa della sessione TLS alle riconnessioni (SSLContext condiviso)
  * 
  * USO:
  * 1. Avvia SecureChatServer
  * 2. Compila: javac SecureChatClient.java
  * 3. Esegui: java SecureChatClient [hostname] [port]
  * 4. Interagisci con la chat
+ * 
+ * Test riconnessioni (handshake completi vs ripresi):
+ *    java SecureChatClient [hostname] [port] --reconnect-test 20
  */
 public class SecureChatClient {
     
@@ -40,6 +43,10 @@ public class SecureChatClient {
     private String hostname;
     private int port;
     
+    // Avviso DEMO MODE stampato una sola volta per processo
+    private static volatile boolean demoModeShown = false;
+    private static final HandshakeStats handshakeStats = new HandshakeStats();
+    
     public SecureChatClient(String hostname, int port) {
         this.hostname = hostname;
         this.port = port;
@@ -63,6 +70,13 @@ public class SecureChatClient {
             }
         }
         
+        HandshakeStats.configureSessionTickets();
+        
+        if (args.length >= 4 && args[2].equals("--reconnect-test")) {
+            runReconnectTest(hostname, port, Integer.parseInt(args[3]));
+            return;
+        }
+        
         System.out.println("=== SECURE CHAT CLIENT ===");
         System.out.println("Connessione a chat server: " + hostname + ":" + port);
         
@@ -96,8 +110,8 @@ public class SecureChatClient {
         
         System.out.println("Connessione al server...");
         
-        // Configura SSL context
-        SSLContext sslContext = createSSLContext();
+        // SSL context condiviso (creato alla prima connessione)
+        SSLContext sslContext = getSSLContext(hostname);
         
         // Connetti
         SSLSocketFactory factory = sslContext.getSocketFactory();
@@ -107,7 +121,13 @@ public class SecureChatClient {
         configureSSLSocket(socket);
         
         // Handshake SSL
+        long handshakeStartMillis = System.currentTimeMillis();
+        long handshakeStart = System.nanoTime();
         socket.startHandshake();
+        long handshakeNanos = System.nanoTime() - handshakeStart;
+        boolean resumed = HandshakeStats.isResumed(socket.getSession(), handshakeStartMillis);
+        handshakeStats.record(resumed, handshakeNanos);
+        System.out.printf("Handshake %s in %.1f ms%n", resumed ? "ripreso" : "completo", handshakeNanos / 1e6);
         
         // Inizializza stream
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -121,34 +141,17 @@ public class SecureChatClient {
         System.out.println("Digita messaggi per chattare, /help per comandi, /quit per uscire\n");
     }
     
-    private SSLContext createSSLContext() throws Exception {
-        
-        SSLContext sslContext = SSLContext.getInstance("TLS");
+    // SSLContext condiviso da tutte le connessioni del processo: la cache
+    // delle sessioni lato client è nel contesto, quindi le riconnessioni
+    // possono riprendere la sessione invece di rifare l'handshake completo
+    private static SSLContext getSSLContext(String hostname) throws Exception {
         
         // Per localhost/demo, bypassa validazione certificati
-        if (hostname.equals("localhost") || hostname.equals("127.0.0.1")) {
+        if (SSLContextFactory.isTrustAll(hostname) && !demoModeShown) {
             System.out.println("DEMO MODE: Bypassando validazione certificati per localhost");
-            sslContext.init(null, createTrustAllManagers(), new SecureRandom());
-        } else {
-            // Usa validazione standard per server remoti
-            sslContext.init(null, null, new SecureRandom());
+            demoModeShown = true;
         }
-        
-        return sslContext;
-    }
-    
-    private TrustManager[] createTrustAllManagers() {
-        return new TrustManager[] {
-            new X509TrustManager() {
-                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                    return new java.security.cert.X509Certificate[0];
-                }
-                public void checkClientTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {}
-                public void checkServerTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {}
-            }
-        };
+        return SSLContextFactory.client(hostname);
     }
     
     private void configureSSLSocket(SSLSocket socket) {
@@ -156,23 +159,10 @@ public class SecureChatClient {
         // Protocolli sicuri
         socket.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
         
-        // Cipher suites sicure
-        String[] supportedCiphers = socket.getSupportedCipherSuites();
-        String[] preferredCiphers = {
-            "TLS_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
-        };
-        
-        java.util.List<String> enabledCiphers = new java.util.ArrayList<>();
-        for (String cipher : preferredCiphers) {
-            if (java.util.Arrays.asList(supportedCiphers).contains(cipher)) {
-                enabledCiphers.add(cipher);
-            }
-        }
-        
-        if (!enabledCiphers.isEmpty()) {
-            socket.setEnabledCipherSuites(enabledCiphers.toArray(new String[0]));
+        // Cipher suites sicure (anche ECDSA: il keystore demo usa chiavi EC)
+        String[] enabledCiphers = CipherSuites.select(socket.getSupportedCipherSuites());
+        if (enabledCiphers.length > 0) {
+            socket.setEnabledCipherSuites(enabledCiphers);
         }
     }
     
@@ -430,4 +420,27 @@ public class SecureChatClient {
         
         System.out.println("Test multi-client avviato");
     }
+    
+    // Riconnessioni in sequenza: la prima fa l'handshake completo, le altre
+    // riprendono la sessione (cache del server o session ticket)
+    public static void runReconnectTest(String hostname, int port, int connections) {
+        
+        System.out.println("=== TEST RICONNESSIONI ===");
+        
+        for (int i = 1; i <= connections; i++) {
+            SecureChatClient client = new SecureChatClient(hostname, port);
+            try {
+                client.connect();
+                // Con TLS 1.3 il ticket arriva dopo l'handshake: si legge il benvenuto
+                client.in.readLine();
+                client.out.println("/quit");
+            } catch (Exception e) {
+                System.err.println("Connessione " + i + " fallita: " + e.getMessage());
+            } finally {
+                client.disconnect();
+            }
+        }
+        
+        System.out.println("Handshake: " + handshakeStats);
+    }
 }
\ No newline at end of file
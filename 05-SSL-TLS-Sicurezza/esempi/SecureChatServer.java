@@ -1,10 +1,14 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
-import java.security.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Chat Server SSL per comunicazioni sicure multi-client.
@@ -20,12 +24,33 @@ import java.util.concurrent.*;
  * FUNZIONALITÀ:
  * - Messaggi broadcast in tempo reale
  * - Lista utenti connessi
- * - Comandi chat (/users, /quit, /help)
+ * - Comandi chat (/users, /quit, /help, /metrics)
  * - Timestamping messaggi
  * - Rate limiting per prevenire spam
+ * - Ripresa delle sessioni TLS (session cache e session ticket)
+ * - Rotazione del certificato a caldo: server.jks ricaricato quando cambia,
+ *   i client connessi restano collegati
+ * - Metriche TLS (TlsMetrics) con il comando /metrics: durata handshake per
+ *   protocollo e cipher, fallimenti per alert, byte e payload per record
+ * 
+ * OPZIONI (system property):
+ * - ssl.sessionCacheSize  sessioni conservate dal server (default 20480)
+ * - ssl.sessionTimeout    durata delle sessioni in secondi (default 3600)
+ * - ssl.sessionTickets    ripresa stateless con session ticket (default true)
+ * - ssl.handshakeThreads  thread dedicati agli handshake (default 4)
+ * - ssl.handshakeQueue    handshake in attesa prima del rifiuto (default 64)
+ * - ssl.handshakeTimeout  durata massima di un handshake in ms (default 10000)
+ * - ssl.maxClients        client connessi al massimo (default 50)
+ * - ssl.transport         blocking (SSLSocket, un thread per client) oppure
+ *                         nio (SSLEngine su Selector, pochi thread di I/O)
+ * - ssl.io.threads        thread di I/O del trasporto nio (default: n. CPU)
+ * - ssl.delegatedThreads  thread per i task delegati dell'SSLEngine (default: n. CPU)
+ * - ssl.keystoreReloadMillis  controllo del keystore per la rotazione del
+ *                         certificato senza riavvio (default 2000, 0 = spento)
  * 
  * USO:
- * 1. Genera certificati con CertificateGenerator
+ * 1. Genera certificati con CertificateGenerator (se manca, il keystore
+ *    demo viene creato all'avvio da SSLContextFactory)
  * 2. Compila: javac SecureChatServer.java
  * 3. Avvia: java SecureChatServer [port]
  * 4. Connetti client con SecureChatClient
@@ -35,22 +60,56 @@ public class SecureChatServer {
     private static final int DEFAULT_PORT = 8443;
     private static final String KEYSTORE_PATH = "server.jks";
     private static final String KEYSTORE_PASSWORD = "serverpass";
-    private static final int MAX_CLIENTS = 50;
+    private static final int MAX_CLIENTS = Integer.getInteger("ssl.maxClients", 50);
+    private static final String TRANSPORT = System.getProperty("ssl.transport", "blocking");
+    
+    // Massimo testo in chiaro di un record TLS (2^14 byte): le righe in coda
+    // vengono raggruppate fino a questa dimensione prima di essere cifrate
+    private static final int MAX_RECORD_PLAINTEXT = 16384;
+    
+    // Gli handshake non girano sul thread di accept: un client lento o
+    // malevolo occupa al più un thread del pool, per al più il timeout
+    private static final int HANDSHAKE_THREADS = Integer.getInteger("ssl.handshakeThreads", 4);
+    private static final int HANDSHAKE_QUEUE = Integer.getInteger("ssl.handshakeQueue", 64);
+    private static final long HANDSHAKE_TIMEOUT_MS = Long.getLong("ssl.handshakeTimeout", 10000);
     
     private final int port;
     private SSLServerSocket serverSocket;
     private volatile boolean running = false;
     
     // Gestione client connessi
-    private final Map<String, ClientHandler> connectedClients;
+    private final Map<String, ChatConnection> connectedClients;
     private final ExecutorService clientThreadPool;
     private final AtomicInteger clientCounter;
+    private final ThreadPoolExecutor handshakeExecutor;
+    private final ScheduledExecutorService handshakeDeadlines;
+    private NioTransport nioTransport;
+    private ReloadableKeyManager keyManager;
+    
+    // Handshake completi e ripresi, attese e fallimenti
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+    
+    // Istogrammi e contatori TLS interrogabili con /metrics
+    private final TlsMetrics tlsMetrics = new TlsMetrics();
     
     public SecureChatServer(int port) {
         this.port = port;
         this.connectedClients = new ConcurrentHashMap<>();
         this.clientThreadPool = Executors.newFixedThreadPool(MAX_CLIENTS);
         this.clientCounter = new AtomicInteger(0);
+        this.handshakeExecutor = new ThreadPoolExecutor(
+            HANDSHAKE_THREADS, HANDSHAKE_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, HANDSHAKE_QUEUE)), daemonThreads("Handshake"));
+        this.handshakeDeadlines = Executors.newSingleThreadScheduledExecutor(daemonThreads("HandshakeTimeout"));
+    }
+    
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
     }
     
     public static void main(String[] args) {
@@ -68,6 +127,9 @@ public class SecureChatServer {
         System.out.println("=== SECURE CHAT SERVER SSL ===");
         System.out.println("Avvio chat server sicuro sulla porta " + port);
         
+        // Prima di creare l'SSLContext
+        HandshakeStats.configureSessionTickets();
+        
         SecureChatServer server = new SecureChatServer(port);
         
         // Shutdown hook per pulizia
@@ -81,9 +143,19 @@ public class SecureChatServer {
     
     public void start() {
         try {
-            // Inizializza SSL context
+            // Inizializza SSL context (con la cache sessioni: le riconnessioni
+            // evitano l'handshake completo)
             SSLContext sslContext = createSSLContext();
             
+            if ("nio".equals(TRANSPORT)) {
+                int cpus = Runtime.getRuntime().availableProcessors();
+                nioTransport = new NioTransport(sslContext, 
+                    Integer.getInteger("ssl.io.threads", cpus), Integer.getInteger("ssl.delegatedThreads", cpus));
+                running = true;
+                nioTransport.run(port);
+                return;
+            }
+            
             // Crea server socket SSL
             SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
             serverSocket = (SSLServerSocket) factory.createServerSocket(port);
@@ -94,6 +166,11 @@ public class SecureChatServer {
             System.out.println("✓ Chat server SSL avviato su porta " + port);
             System.out.println("✓ Protocolli: " + Arrays.toString(serverSocket.getEnabledProtocols()));
             System.out.println("✓ Max client: " + MAX_CLIENTS);
+            System.out.println("✓ Handshake: " + HANDSHAKE_THREADS + " thread, max " + HANDSHAKE_QUEUE + 
+                " in coda, timeout " + HANDSHAKE_TIMEOUT_MS + " ms");
+            System.out.println("✓ Cache sessioni: " + sslContext.getServerSessionContext().getSessionCacheSize() +
+                " sessioni, " + sslContext.getServerSessionContext().getSessionTimeout() + " s, ticket " +
+                System.getProperty("jdk.tls.server.enableSessionTicketExtension"));
             System.out.println("\nIn attesa di connessioni...");
             
             running = true;
@@ -102,7 +179,17 @@ public class SecureChatServer {
             while (running) {
                 try {
                     SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                    handleNewClient(clientSocket);
+                    long acceptedAt = System.nanoTime();
+                    
+                    // L'handshake passa al pool dedicato; con la coda piena si rifiuta subito
+                    try {
+                        handshakeExecutor.execute(() -> handleNewClient(clientSocket, acceptedAt));
+                    } catch (RejectedExecutionException e) {
+                        handshakeStats.recordRejected();
+                        System.out.println("Connessione rifiutata (troppi handshake in attesa): " + 
+                            clientSocket.getRemoteSocketAddress());
+                        closeQuietly(clientSocket);
+                    }
                     
                 } catch (SocketException e) {
                     if (running) {
@@ -117,9 +204,19 @@ public class SecureChatServer {
         }
     }
     
-    private void handleNewClient(SSLSocket clientSocket) {
+    // Eseguito da un thread del pool degli handshake
+    private void handleNewClient(SSLSocket clientSocket, long acceptedAt) {
         
         String clientAddress = clientSocket.getRemoteSocketAddress().toString();
+        handshakeStats.recordQueueWait(System.nanoTime() - acceptedAt);
+        
+        // Scadenza: allo scadere il socket viene chiuso e l'handshake (o
+        // l'invio del messaggio di rifiuto) termina con un'eccezione
+        AtomicBoolean expired = new AtomicBoolean(false);
+        ScheduledFuture<?> deadline = handshakeDeadlines.schedule(() -> {
+            expired.set(true);
+            closeQuietly(clientSocket);
+        }, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         
         try {
             // Controlla limite client
@@ -134,7 +231,21 @@ public class SecureChatServer {
             configureSSLClientSocket(clientSocket);
             
             // Esegui handshake SSL
-            clientSocket.startHandshake();
+            long handshakeStartMillis = System.currentTimeMillis();
+            long handshakeStart = System.nanoTime();
+            try {
+                clientSocket.startHandshake();
+            } catch (IOException e) {
+                handshakeStats.recordFailure(expired.get());
+                tlsMetrics.recordFailure(e, expired.get());
+                throw expired.get() ? new SocketTimeoutException("Handshake oltre " + HANDSHAKE_TIMEOUT_MS + " ms") : e;
+            } finally {
+                deadline.cancel(false);
+            }
+            long handshakeNanos = System.nanoTime() - handshakeStart;
+            boolean resumed = HandshakeStats.isResumed(clientSocket.getSession(), handshakeStartMillis);
+            handshakeStats.record(resumed, handshakeNanos);
+            tlsMetrics.recordHandshake(clientSocket.getSession(), resumed, handshakeNanos);
             
             // Crea handler client
             String clientId = "Client-" + clientCounter.incrementAndGet();
@@ -147,6 +258,8 @@ public class SecureChatServer {
             clientThreadPool.submit(handler);
             
             System.out.println("✓ Nuovo client connesso: " + clientId + " da " + clientAddress);
+            System.out.printf("  Handshake %s in %.1f ms%n", resumed ? "ripreso" : "completo", handshakeNanos / 1e6);
+            System.out.println("  Handshake: " + handshakeStats);
             System.out.println("  Client totali: " + connectedClients.size());
             
             // Notifica agli altri client
@@ -154,11 +267,17 @@ public class SecureChatServer {
             
         } catch (Exception e) {
             System.err.println("Errore configurazione client " + clientAddress + ": " + e.getMessage());
-            try {
-                clientSocket.close();
-            } catch (IOException ex) {
-                // Ignora errori chiusura
-            }
+            closeQuietly(clientSocket);
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignora errori chiusura
         }
     }
     
@@ -167,12 +286,17 @@ public class SecureChatServer {
         
         // Disconnetti tutti i client
         System.out.println("Disconnessione client...");
-        for (ClientHandler client : connectedClients.values()) {
+        for (ChatConnection client : connectedClients.values()) {
             client.disconnect();
         }
         connectedClients.clear();
+        if (nioTransport != null) {
+            nioTransport.stop();
+        }
         
         // Shutdown thread pool
+        handshakeExecutor.shutdownNow();
+        handshakeDeadlines.shutdownNow();
         clientThreadPool.shutdown();
         try {
             if (!clientThreadPool.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -191,32 +315,20 @@ public class SecureChatServer {
             }
         }
         
+        System.out.println("Handshake: " + handshakeStats);
+        if (keyManager != null) {
+            System.out.println("Certificato: " + keyManager);
+        }
+        System.out.println("TLS: " + tlsMetrics);
         System.out.println("Chat server fermato");
     }
     
+    // Keystore letto (o generato) una sola volta, contesto condiviso con gli altri esempi
+    // e ricaricato quando il file cambia (solo per i nuovi handshake)
     private SSLContext createSSLContext() throws Exception {
-        
-        // Carica keystore server
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        try (FileInputStream fis = new FileInputStream(KEYSTORE_PATH)) {
-            keyStore.load(fis, KEYSTORE_PASSWORD.toCharArray());
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("Keystore non trovato: " + KEYSTORE_PATH + 
-                "\nEsegui CertificateGenerator per creare i certificati.");
-        }
-        
-        // Inizializza KeyManager
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-        kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
-        
-        // Usa default TrustManager
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-        tmf.init((KeyStore) null);
-        
-        // Crea SSL context
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
-        
+        SSLContext sslContext = SSLContextFactory.server(KEYSTORE_PATH, KEYSTORE_PASSWORD);
+        keyManager = SSLContextFactory.keyManager(KEYSTORE_PATH, KEYSTORE_PASSWORD);
+        tlsMetrics.setKeyManager(keyManager);
         return sslContext;
     }
     
@@ -239,23 +351,13 @@ public class SecureChatServer {
         socket.setEnabledCipherSuites(secureCiphers);
     }
     
+    // Ordine di preferenza misurato con TlsBenchmark (vedi CipherSuites)
     private String[] getSecureCipherSuites(String[] supportedCiphers) {
-        String[] preferredCiphers = {
-            "TLS_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
-        };
+        String[] enabledCiphers = CipherSuites.select(supportedCiphers);
         
-        List<String> enabledCiphers = new ArrayList<>();
-        for (String cipher : preferredCiphers) {
-            if (Arrays.asList(supportedCiphers).contains(cipher)) {
-                enabledCiphers.add(cipher);
-            }
-        }
-        
-        return enabledCiphers.isEmpty() ? 
+        return enabledCiphers.length == 0 ? 
             new String[]{supportedCiphers[0]} : 
-            enabledCiphers.toArray(new String[0]);
+            enabledCiphers;
     }
     
     // Broadcast messaggio a tutti i client (tranne sender)
@@ -266,15 +368,17 @@ public class SecureChatServer {
         
         System.out.println("BROADCAST: " + fullMessage);
         
+        // Codificata una sola volta: lo stesso array va in coda a tutti i destinatari
+        byte[] line = encodeLine(fullMessage);
         List<String> disconnectedClients = new ArrayList<>();
         
-        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
+        for (Map.Entry<String, ChatConnection> entry : connectedClients.entrySet()) {
             String clientId = entry.getKey();
-            ClientHandler client = entry.getValue();
+            ChatConnection client = entry.getValue();
             
             // Non inviare al sender
             if (!clientId.equals(excludeClientId)) {
-                if (!client.sendMessage(fullMessage)) {
+                if (!client.sendLine(line)) {
                     disconnectedClients.add(clientId);
                 }
             }
@@ -289,7 +393,7 @@ public class SecureChatServer {
     // Invia messaggio privato a client specifico
     public boolean sendPrivateMessage(String targetClientId, String sender, String message) {
         
-        ClientHandler target = connectedClients.get(targetClientId);
+        ChatConnection target = connectedClients.get(targetClientId);
         if (target != null) {
             String timestamp = LocalTime.now().toString().substring(0, 8);
             String privateMsg = String.format("[%s] PRIVATE %s: %s", timestamp, sender, message);
@@ -301,7 +405,7 @@ public class SecureChatServer {
     
     // Rimuovi client dalla lista
     public void removeClient(String clientId) {
-        ClientHandler client = connectedClients.remove(clientId);
+        ChatConnection client = connectedClients.remove(clientId);
         if (client != null) {
             client.disconnect();
             System.out.println("✗ Client disconnesso: " + clientId);
@@ -312,6 +416,14 @@ public class SecureChatServer {
         }
     }
     
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+    
+    public TlsMetrics getTlsMetrics() {
+        return tlsMetrics;
+    }
+    
     // Ottieni lista client connessi
     public String getClientList() {
         if (connectedClients.isEmpty()) {
@@ -326,73 +438,97 @@ public class SecureChatServer {
         return sb.toString();
     }
     
+    // Riga terminata da '\n' in UTF-8, il formato letto dai client con readLine
+    private static byte[] encodeLine(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
     private static void sendMessage(SSLSocket socket, String message) {
         try {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(message);
+            OutputStream out = socket.getOutputStream();
+            out.write(encodeLine(message));
+            out.flush();
         } catch (IOException e) {
             // Ignora errori invio
         }
     }
     
-    // Handler per ogni client connesso
-    private class ClientHandler implements Runnable {
+    /**
+     * Client registrato nella chat, indipendente dal trasporto: comandi,
+     * rate limiting e messaggi di benvenuto sono comuni ai due server.
+     */
+    private abstract class ChatConnection {
         
-        private final SSLSocket socket;
-        private final String clientId;
-        private BufferedReader in;
-        private PrintWriter out;
-        private volatile boolean connected = false;
+        protected String clientId;
         
         // Rate limiting
         private final Map<Long, Integer> messageCount = new ConcurrentHashMap<>();
         private static final int MAX_MESSAGES_PER_MINUTE = 30;
         
-        public ClientHandler(SSLSocket socket, String clientId) {
-            this.socket = socket;
-            this.clientId = clientId;
+        // Righe in attesa di essere cifrate e inviate, limitate in byte: una
+        // raffica in una stanza affollata accoda migliaia di righe brevi
+        private static final int MAX_PENDING_BYTES = 1 << 20;
+        private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingBytes = new AtomicInteger(0);
+        
+        boolean sendMessage(String message) {
+            return sendLine(encodeLine(message));
         }
         
-        @Override
-        public void run() {
-            try {
-                // Inizializza stream
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                connected = true;
-                
-                // Messaggio benvenuto
-                sendMessage("=== SECURE CHAT SERVER ===");
-                sendMessage("Benvenuto " + clientId + "!");
-                sendMessage("Connessione SSL stabilita: " + socket.getSession().getProtocol());
-                sendMessage("Digita /help per comandi disponibili");
-                sendMessage("========================");
-                
-                // Loop messaggi client
-                String message;
-                while (connected && (message = in.readLine()) != null) {
-                    
-                    message = message.trim();
-                    if (message.isEmpty()) continue;
-                    
-                    // Rate limiting
-                    if (!checkRateLimit()) {
-                        sendMessage("SERVER: Troppi messaggi! Rallenta.");
-                        continue;
-                    }
-                    
-                    // Processa messaggio
-                    processMessage(message);
-                }
-                
-            } catch (IOException e) {
-                if (connected) {
-                    System.err.println("Errore comunicazione " + clientId + ": " + e.getMessage());
-                }
-            } finally {
-                disconnect();
-                removeClient(clientId);
+        // Riga già codificata con encodeLine; l'array non va modificato
+        abstract boolean sendLine(byte[] line);
+        
+        // Accoda una riga; false se il client non legge da troppo tempo
+        protected boolean enqueue(byte[] line) {
+            if (pendingBytes.addAndGet(line.length) > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-line.length);
+                return false;
             }
+            outbound.add(line);
+            return true;
+        }
+        
+        protected byte[] peekLine() {
+            return outbound.peek();
+        }
+        
+        protected byte[] pollLine() {
+            byte[] line = outbound.poll();
+            if (line != null) {
+                pendingBytes.addAndGet(-line.length);
+            }
+            return line;
+        }
+        
+        protected boolean hasPendingLines() {
+            return !outbound.isEmpty();
+        }
+        
+        abstract void disconnect();
+        
+        abstract String getProtocol();
+        
+        protected void sendWelcome() {
+            sendMessage("=== SECURE CHAT SERVER ===");
+            sendMessage("Benvenuto " + clientId + "!");
+            sendMessage("Connessione SSL stabilita: " + getProtocol());
+            sendMessage("Digita /help per comandi disponibili");
+            sendMessage("========================");
+        }
+        
+        // Una riga ricevuta dal client
+        protected void onLine(String message) {
+            message = message.trim();
+            if (message.isEmpty()) return;
+            
+            // Rate limiting
+            if (!checkRateLimit()) {
+                sendMessage("SERVER: Troppi messaggi! Rallenta.");
+                return;
+            }
+            
+            // Processa messaggio
+            processMessage(message);
         }
         
         private void processMessage(String message) {
@@ -417,6 +553,7 @@ public class SecureChatServer {
                     sendMessage("  /help - Mostra questo aiuto");
                     sendMessage("  /users - Lista utenti connessi");
                     sendMessage("  /private <id> <msg> - Messaggio privato");
+                    sendMessage("  /metrics - Metriche TLS del server");
                     sendMessage("  /quit - Disconnetti");
                     break;
                     
@@ -444,6 +581,12 @@ public class SecureChatServer {
                     }
                     break;
                     
+                case "/metrics":
+                    for (String line : tlsMetrics.render().split("\n")) {
+                        sendMessage(line);
+                    }
+                    break;
+                    
                 case "/quit":
                     sendMessage("Arrivederci!");
                     disconnect();
@@ -466,19 +609,84 @@ public class SecureChatServer {
             
             return count <= MAX_MESSAGES_PER_MINUTE;
         }
+    }
+    
+    // Handler per ogni client connesso (trasporto bloccante, un thread per client)
+    private class ClientHandler extends ChatConnection implements Runnable {
         
-        public boolean sendMessage(String message) {
-            if (connected && out != null) {
+        private final SSLSocket socket;
+        private BufferedReader in;
+        private OutputStream out;
+        private volatile boolean connected = false;
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+        
+        public ClientHandler(SSLSocket socket, String clientId) {
+            this.socket = socket;
+            this.clientId = clientId;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                // Inizializza stream
+                in = new BufferedReader(new InputStreamReader(
+                    tlsMetrics.countInput(socket.getInputStream()), StandardCharsets.UTF_8));
+                // Un buffer grande quanto un record: ogni flush produce il minimo di record
+                out = new BufferedOutputStream(tlsMetrics.countOutput(socket.getOutputStream()), MAX_RECORD_PLAINTEXT);
+                connected = true;
+                
+                // Messaggio benvenuto
+                sendWelcome();
+                
+                // Loop messaggi client
+                String message;
+                while (connected && (message = in.readLine()) != null) {
+                    onLine(message);
+                }
+                
+            } catch (IOException e) {
+                if (connected) {
+                    System.err.println("Errore comunicazione " + clientId + ": " + e.getMessage());
+                }
+            } finally {
+                disconnect();
+                removeClient(clientId);
+            }
+        }
+        
+        @Override
+        String getProtocol() {
+            return socket.getSession().getProtocol();
+        }
+        
+        /**
+         * Il thread che trova il writer libero scrive anche le righe accodate
+         * nel frattempo dagli altri thread, con un solo flush: sotto carico
+         * più messaggi finiscono nello stesso record TLS
+         */
+        @Override
+        public boolean sendLine(byte[] line) {
+            if (!connected || out == null || !enqueue(line)) {
+                return false;
+            }
+            
+            while (hasPendingLines() && writing.compareAndSet(false, true)) {
                 try {
-                    out.println(message);
-                    return !out.checkError();
-                } catch (Exception e) {
+                    byte[] next;
+                    while ((next = pollLine()) != null) {
+                        out.write(next);
+                    }
+                    out.flush();
+                } catch (IOException e) {
                     return false;
+                } finally {
+                    writing.set(false);
                 }
             }
-            return false;
+            return true;
         }
         
+        @Override
         public void disconnect() {
             connected = false;
             
@@ -491,4 +699,637 @@ public class SecureChatServer {
             }
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Buffer diretti riutilizzabili, tutti della stessa dimensione. Le
+     * connessioni li prendono solo mentre hanno dati in transito: migliaia
+     * di client inattivi non occupano buffer.
+     */
+    private static class BufferPool {
+        private final int bufferSize;
+        private final int maxIdle;
+        private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger(0);
+        private final AtomicInteger allocated = new AtomicInteger(0);
+        
+        BufferPool(int bufferSize, int maxIdle) {
+            this.bufferSize = bufferSize;
+            this.maxIdle = maxIdle;
+        }
+        
+        ByteBuffer acquire() {
+            ByteBuffer buffer = idle.poll();
+            if (buffer != null) {
+                idleCount.decrementAndGet();
+                return buffer;
+            }
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.add(buffer);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d da %d byte (%d liberi)", allocated.get(), bufferSize, idleCount.get());
+        }
+    }
+    
+    /**
+     * Trasporto non bloccante: SSLEngine su SocketChannel. Un Selector per
+     * ciascuno dei pochi thread di I/O; il primo loop accetta anche le
+     * connessioni e le distribuisce round-robin. I task delegati
+     * dell'SSLEngine (verifiche di firma, calcoli delle chiavi) girano su un
+     * pool separato per non fermare le altre connessioni del loop.
+     */
+    private class NioTransport {
+        private final SSLContext sslContext;
+        private final IoLoop[] loops;
+        private final AtomicInteger nextLoop = new AtomicInteger(0);
+        private final ExecutorService delegatedTasks;
+        private final BufferPool packetBuffers;
+        private final BufferPool applicationBuffers;
+        private ServerSocketChannel serverChannel;
+        
+        NioTransport(SSLContext sslContext, int ioThreads, int delegatedThreads) {
+            this.sslContext = sslContext;
+            this.loops = new IoLoop[Math.max(1, ioThreads)];
+            this.delegatedTasks = Executors.newFixedThreadPool(Math.max(1, delegatedThreads), daemonThreads("SSLTask"));
+            
+            // Dimensioni dalla sessione: record cifrato più grande e testo in chiaro corrispondente
+            SSLSession probe = sslContext.createSSLEngine().getSession();
+            int maxIdle = Math.max(64, MAX_CLIENTS / 4);
+            this.packetBuffers = new BufferPool(probe.getPacketBufferSize(), maxIdle);
+            this.applicationBuffers = new BufferPool(probe.getApplicationBufferSize(), maxIdle);
+        }
+        
+        void run(int port) throws IOException {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop("SecureChatIO-" + i);
+            }
+            
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            loops[0].execute(() -> {
+                try {
+                    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                } catch (ClosedChannelException e) {
+                    // Server già fermato
+                }
+            });
+            
+            System.out.println("✓ Chat server SSL (SSLEngine + NIO) avviato su porta " + port);
+            System.out.println("✓ Max client: " + MAX_CLIENTS);
+            System.out.println("✓ Thread: " + loops.length + " di I/O, " + 
+                ((ThreadPoolExecutor) delegatedTasks).getCorePoolSize() + " per i task delegati");
+            System.out.println("✓ Handshake: timeout " + HANDSHAKE_TIMEOUT_MS + " ms");
+            System.out.println("✓ Cache sessioni: " + sslContext.getServerSessionContext().getSessionCacheSize() +
+                " sessioni, " + sslContext.getServerSessionContext().getSessionTimeout() + " s, ticket " +
+                System.getProperty("jdk.tls.server.enableSessionTicketExtension"));
+            System.out.println("\nIn attesa di connessioni...");
+            
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], loops[i].name);
+                thread.start();
+            }
+            loops[0].run(); // Il thread chiamante diventa il primo loop
+        }
+        
+        void stop() {
+            for (IoLoop loop : loops) {
+                if (loop != null) {
+                    loop.stop();
+                }
+            }
+            delegatedTasks.shutdownNow();
+            try {
+                if (serverChannel != null) serverChannel.close();
+            } catch (IOException e) {
+                // Ignora
+            }
+            System.out.println("Buffer diretti: rete " + packetBuffers + ", applicazione " + applicationBuffers);
+        }
+        
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                long acceptedAt = System.nanoTime();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+                engine.setEnabledCipherSuites(getSecureCipherSuites(engine.getSupportedCipherSuites()));
+                engine.setWantClientAuth(false);
+                
+                IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                TlsConnection connection = new TlsConnection(channel, engine, loop, acceptedAt);
+                loop.execute(connection::register);
+            }
+        }
+        
+        private class IoLoop implements Runnable {
+            private final String name;
+            private final Selector selector;
+            private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+            private volatile boolean active = true;
+            
+            IoLoop(String name) throws IOException {
+                this.name = name;
+                this.selector = Selector.open();
+            }
+            
+            // Esegue un task nel thread del loop (l'unico che tocca canali ed engine)
+            void execute(Runnable task) {
+                tasks.add(task);
+                selector.wakeup();
+            }
+            
+            void stop() {
+                active = false;
+                selector.wakeup();
+            }
+            
+            @Override
+            public void run() {
+                while (active) {
+                    try {
+                        selector.select();
+                        
+                        Runnable task;
+                        while ((task = tasks.poll()) != null) {
+                            task.run();
+                        }
+                        
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            handleKey(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Errore loop " + name + ": " + e.getMessage());
+                    }
+                }
+                
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof TlsConnection) {
+                        ((TlsConnection) key.attachment()).closeNow();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignora
+                }
+            }
+            
+            private void handleKey(SelectionKey key) throws IOException {
+                if (!key.isValid()) return;
+                
+                if (key.isAcceptable()) {
+                    accept();
+                    return;
+                }
+                
+                TlsConnection connection = (TlsConnection) key.attachment();
+                if (key.isReadable()) {
+                    connection.onReadable();
+                } else if (key.isWritable()) {
+                    connection.process();
+                }
+            }
+        }
+        
+        /**
+         * Una connessione TLS guidata dal Selector. I buffer sono in
+         * "modalità scrittura": netIn contiene i byte cifrati ricevuti e non
+         * ancora decifrati, netOut quelli cifrati non ancora inviati.
+         */
+        private class TlsConnection extends ChatConnection {
+            private static final int MAX_LINE_BYTES = 8192;
+            private static final int MAX_BATCH = 64;
+            
+            private final SocketChannel channel;
+            private final SSLEngine engine;
+            private final IoLoop loop;
+            private final long acceptedAt;
+            private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BATCH];
+            private int batchStart = 0;
+            private int batchEnd = 0;
+            private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+            private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+            private ByteBuffer netIn;
+            private ByteBuffer netOut;
+            private SelectionKey key;
+            private ScheduledFuture<?> deadline;
+            private long handshakeStartMillis;
+            private long handshakeStart;
+            private volatile boolean established = false;
+            private volatile boolean closed = false;
+            private boolean closeAfterFlush = false;
+            
+            TlsConnection(SocketChannel channel, SSLEngine engine, IoLoop loop, long acceptedAt) {
+                this.channel = channel;
+                this.engine = engine;
+                this.loop = loop;
+                this.acceptedAt = acceptedAt;
+            }
+            
+            void register() {
+                handshakeStats.recordQueueWait(System.nanoTime() - acceptedAt);
+                try {
+                    key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                    deadline = handshakeDeadlines.schedule(() -> loop.execute(this::handshakeExpired), 
+                        HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    handshakeStartMillis = System.currentTimeMillis();
+                    handshakeStart = System.nanoTime();
+                    engine.beginHandshake();
+                } catch (IOException e) {
+                    handshakeStats.recordFailure(false);
+                    tlsMetrics.recordFailure(e, false);
+                    closeNow();
+                }
+            }
+            
+            private void handshakeExpired() {
+                if (!established && !closed) {
+                    handshakeStats.recordFailure(true);
+                    tlsMetrics.recordFailure("timeout");
+                    System.err.println("Handshake oltre " + HANDSHAKE_TIMEOUT_MS + " ms: " + remoteAddress());
+                    closeNow();
+                }
+            }
+            
+            void onReadable() {
+                try {
+                    if (netIn == null) netIn = packetBuffers.acquire();
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        if (!established) {
+                            handshakeStats.recordFailure(false);
+                            tlsMetrics.recordFailure("connection_closed");
+                        }
+                        closeNow();
+                        return;
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                process();
+            }
+            
+            /**
+             * Fa avanzare l'engine finché non deve attendere la rete o un task
+             * delegato: handshake (anche post-handshake, come i ticket TLS 1.3),
+             * poi decifratura dei dati ricevuti e cifratura di quelli in uscita
+             */
+            void process() {
+                try {
+                    while (!closed) {
+                        switch (engine.getHandshakeStatus()) {
+                            case NEED_TASK:
+                                if (!flushNet()) return;
+                                runDelegatedTasks();
+                                return;
+                                
+                            case NEED_WRAP:
+                                if (!wrap(new ByteBuffer[]{ByteBuffer.allocate(0)}, 0, 1)) return;
+                                break;
+                                
+                            case NEED_UNWRAP:
+                            case NEED_UNWRAP_AGAIN:
+                                // Il volo precedente deve arrivare al client prima di attendere la risposta
+                                if (!flushNet() || !unwrap()) return;
+                                break;
+                                
+                            default:
+                                if (!established) {
+                                    onEstablished();
+                                    continue;
+                                }
+                                if (unwrap()) {
+                                    continue;
+                                }
+                                flushWrites();
+                                return;
+                        }
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            
+            // Decifra un record; false se servono altri byte dalla rete
+            private boolean unwrap() throws IOException {
+                if (netIn == null || netIn.position() == 0) return false;
+                
+                ByteBuffer appIn = applicationBuffers.acquire();
+                try {
+                    netIn.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = engine.unwrap(netIn, appIn);
+                    } finally {
+                        netIn.compact();
+                    }
+                    
+                    switch (result.getStatus()) {
+                        case BUFFER_UNDERFLOW:
+                            if (!netIn.hasRemaining()) {
+                                throw new SSLException("Record TLS più grande del buffer");
+                            }
+                            return false;
+                        case BUFFER_OVERFLOW:
+                            throw new SSLException("Buffer applicativo insufficiente");
+                        case CLOSED:
+                            // close_notify del client
+                            closeNow();
+                            return false;
+                        default:
+                            if (result.bytesProduced() > 0) {
+                                tlsMetrics.recordReceived(result.bytesProduced());
+                            }
+                            appIn.flip();
+                            deliverLines(appIn);
+                            return result.bytesConsumed() > 0;
+                    }
+                } finally {
+                    applicationBuffers.release(appIn);
+                    if (netIn != null && netIn.position() == 0) {
+                        packetBuffers.release(netIn);
+                        netIn = null;
+                    }
+                }
+            }
+            
+            // Righe terminate da '\n' (il '\r' finale viene scartato)
+            private void deliverLines(ByteBuffer data) throws IOException {
+                while (data.hasRemaining() && !closed) {
+                    byte b = data.get();
+                    if (b != '\n') {
+                        if (lineBuffer.size() >= MAX_LINE_BYTES) {
+                            throw new IOException("Riga più lunga di " + MAX_LINE_BYTES + " byte");
+                        }
+                        lineBuffer.write(b);
+                        continue;
+                    }
+                    
+                    String line = lineBuffer.toString(StandardCharsets.UTF_8);
+                    lineBuffer.reset();
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    if (established && clientId != null) {
+                        onLine(line);
+                    }
+                }
+            }
+            
+            // Cifra in netOut; false se netOut è pieno e il socket non accetta altri byte
+            private boolean wrap(ByteBuffer[] sources, int offset, int length) throws IOException {
+                while (true) {
+                    if (netOut == null) netOut = packetBuffers.acquire();
+                    SSLEngineResult result = engine.wrap(sources, offset, length, netOut);
+                    
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            if (netOut.position() == 0) {
+                                throw new SSLException("Buffer di rete insufficiente");
+                            }
+                            if (!flushNet()) return false;
+                            break;
+                        case CLOSED:
+                            throw new SSLException("Engine chiuso");
+                        default:
+                            // Handshake: nessun byte applicativo consumato
+                            if (result.bytesConsumed() > 0) {
+                                tlsMetrics.recordSent(result.bytesConsumed());
+                            }
+                            return true;
+                    }
+                }
+            }
+            
+            // Invia netOut; se il socket è pieno attende OP_WRITE
+            private boolean flushNet() throws IOException {
+                if (netOut == null) return true;
+                
+                netOut.flip();
+                try {
+                    channel.write(netOut);
+                } finally {
+                    netOut.compact();
+                }
+                
+                if (netOut.position() > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return false;
+                }
+                packetBuffers.release(netOut);
+                netOut = null;
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            }
+            
+            private void runDelegatedTasks() {
+                // Nessun evento finché i task non sono terminati
+                key.interestOps(0);
+                try {
+                    delegatedTasks.execute(() -> {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        loop.execute(() -> {
+                            if (!closed) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                process();
+                            }
+                        });
+                    });
+                } catch (RejectedExecutionException e) {
+                    closeNow();
+                }
+            }
+            
+            private void onEstablished() {
+                established = true;
+                deadline.cancel(false);
+                
+                long handshakeNanos = System.nanoTime() - handshakeStart;
+                boolean resumed = HandshakeStats.isResumed(engine.getSession(), handshakeStartMillis);
+                handshakeStats.record(resumed, handshakeNanos);
+                tlsMetrics.recordHandshake(engine.getSession(), resumed, handshakeNanos);
+                
+                // Controlla limite client
+                if (connectedClients.size() >= MAX_CLIENTS) {
+                    System.out.println("Connessione rifiutata (limite raggiunto): " + remoteAddress());
+                    closeAfterFlush = true;
+                    sendMessage("SERVER: Limite client raggiunto. Riprova più tardi.");
+                    return;
+                }
+                
+                clientId = "Client-" + clientCounter.incrementAndGet();
+                connectedClients.put(clientId, this);
+                
+                System.out.println("✓ Nuovo client connesso: " + clientId + " da " + remoteAddress());
+                System.out.printf("  Handshake %s in %.1f ms%n", resumed ? "ripreso" : "completo", handshakeNanos / 1e6);
+                System.out.println("  Handshake: " + handshakeStats);
+                System.out.println("  Client totali: " + connectedClients.size());
+                
+                sendWelcome();
+                
+                // Notifica agli altri client
+                broadcastMessage("SERVER", clientId + " si è unito alla chat", clientId);
+            }
+            
+            /**
+             * Cifra le righe in coda e le invia; chiamato solo dal thread del
+             * loop, fuori dall'handshake. Le righe sono raggruppate fino a un
+             * record pieno, così una wrap cifra più messaggi; i record si
+             * accumulano in netOut e partono con una sola write.
+             */
+            private void flushWrites() throws IOException {
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = 0;
+                        batchEnd = 0;
+                        int bytes = 0;
+                        byte[] line;
+                        while (batchEnd < MAX_BATCH && (line = peekLine()) != null) {
+                            if (batchEnd > 0 && bytes + line.length > MAX_RECORD_PLAINTEXT) break;
+                            pollLine();
+                            writeBatch[batchEnd++] = ByteBuffer.wrap(line);
+                            bytes += line.length;
+                        }
+                        if (batchEnd == 0) break;
+                    }
+                    
+                    // Una riga lunga può richiedere più record
+                    if (!wrap(writeBatch, batchStart, batchEnd - batchStart)) return;
+                    while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                        writeBatch[batchStart++] = null;
+                    }
+                }
+                
+                if (!flushNet()) return;
+                if (closeAfterFlush) {
+                    closeNow();
+                    return;
+                }
+                
+                writeScheduled.set(false);
+                // Righe accodate tra l'ultimo poll e il reset del flag
+                if (hasPendingLines()) {
+                    scheduleFlush();
+                }
+            }
+            
+            private void scheduleFlush() {
+                // Un solo wakeup del selector per raffica di messaggi
+                if (writeScheduled.compareAndSet(false, true)) {
+                    loop.execute(this::process);
+                }
+            }
+            
+            @Override
+            boolean sendLine(byte[] line) {
+                if (closed) return false;
+                
+                // Client che non legge: lo si chiude invece di accumulare memoria
+                if (!enqueue(line)) {
+                    loop.execute(this::closeNow);
+                    return false;
+                }
+                scheduleFlush();
+                return true;
+            }
+            
+            @Override
+            void disconnect() {
+                // Invia le righe ancora in coda (es. "Arrivederci!") poi chiude
+                loop.execute(() -> {
+                    closeAfterFlush = true;
+                    process();
+                });
+            }
+            
+            @Override
+            String getProtocol() {
+                return engine.getSession().getProtocol();
+            }
+            
+            private String remoteAddress() {
+                try {
+                    return String.valueOf(channel.getRemoteAddress());
+                } catch (IOException e) {
+                    return "?";
+                }
+            }
+            
+            private void fail(IOException e) {
+                if (closed) return;
+                if (!established) {
+                    handshakeStats.recordFailure(false);
+                    tlsMetrics.recordFailure(e, false);
+                }
+                System.err.println("Errore comunicazione " + (clientId != null ? clientId : remoteAddress()) + 
+                    ": " + e.getMessage());
+                closeNow();
+            }
+            
+            void closeNow() {
+                if (closed) return;
+                closed = true;
+                
+                if (deadline != null) deadline.cancel(false);
+                
+                // close_notify al meglio, senza attendere il socket
+                try {
+                    engine.closeOutbound();
+                    if (netOut == null) netOut = packetBuffers.acquire();
+                    if (netOut.position() == 0) {
+                        engine.wrap(ByteBuffer.allocate(0), netOut);
+                        netOut.flip();
+                        channel.write(netOut);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Ignora
+                }
+                
+                if (key != null) key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignora
+                }
+                if (netIn != null) packetBuffers.release(netIn);
+                if (netOut != null) packetBuffers.release(netOut);
+                netIn = null;
+                netOut = null;
+                Arrays.fill(writeBatch, null);
+                batchStart = 0;
+                batchEnd = 0;
+                while (pollLine() != null) {
+                    // Scarta le righe non inviate
+                }
+                
+                if (clientId != null) {
+                    removeClient(clientId);
+                }
+            }
+        }
+    }
+}
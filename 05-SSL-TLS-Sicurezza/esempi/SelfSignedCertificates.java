@@ -0,0 +1,226 @@
+import javax.security.auth.x500.X500Principal;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Coppie di chiavi e certificati self-signed generati nel processo, senza
+ * lanciare keytool.
+ *
+ * CARATTERISTICHE:
+ * - Chiavi RSA (dimensione a scelta) o EC P-256
+ * - Certificato X.509 v3 con Subject Alternative Name (dns: e ip:,
+ *   stessa sintassi di "keytool -ext SAN=...")
+ * - Codifica DER minima scritta a mano: solo i tipi ASN.1 che servono al
+ *   certificato; il risultato viene riletto con CertificateFactory
+ * - KeyStore PKCS12 in memoria, lo stesso formato predefinito di keytool
+ *
+ * Una chiave EC si genera in pochi millisecondi, contro i secondi di un
+ * processo keytool (una JVM in più per ogni comando).
+ *
+ * NOTA: Certificati self-signed solo per demo e test!
+ */
+public final class SelfSignedCertificates {
+
+    // Tag ASN.1 usati nel certificato
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int OCTET_STRING = 0x04;
+    private static final int NULL = 0x05;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int UTC_TIME = 0x17;
+    private static final int GENERALIZED_TIME = 0x18;
+    private static final int SEQUENCE = 0x30;
+    private static final int VERSION = 0xA0;     // [0] EXPLICIT
+    private static final int EXTENSIONS = 0xA3;  // [3] EXPLICIT
+    private static final int DNS_NAME = 0x82;    // GeneralName [2]
+    private static final int IP_ADDRESS = 0x87;  // GeneralName [7]
+
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String SHA256_WITH_ECDSA = "1.2.840.10045.4.3.2";
+    private static final String BASIC_CONSTRAINTS = "2.5.29.19";
+    private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SelfSignedCertificates() {
+    }
+
+    // "EC" per P-256, "RSA" con la dimensione indicata
+    public static KeyPair generateKeyPair(String algorithm, int keySize) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        if (algorithm.equals("EC")) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"), RANDOM);
+        } else {
+            generator.initialize(keySize, RANDOM);
+        }
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Certificato self-signed: subject e issuer coincidono e la firma è
+     * fatta con la chiave privata della coppia stessa
+     */
+    public static X509Certificate create(KeyPair keyPair, String distinguishedName, int validityDays,
+                                         List<String> subjectAltNames) throws GeneralSecurityException {
+        boolean ec = keyPair.getPrivate().getAlgorithm().equals("EC");
+        byte[] signatureAlgorithm = ec
+            ? der(SEQUENCE, oid(SHA256_WITH_ECDSA))
+            : der(SEQUENCE, oid(SHA256_WITH_RSA), der(NULL));
+        byte[] name = new X500Principal(distinguishedName).getEncoded();
+        ZonedDateTime notBefore = ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(5);
+
+        byte[] tbsCertificate = der(SEQUENCE,
+            der(VERSION, der(INTEGER, BigInteger.valueOf(2).toByteArray())),  // v3
+            der(INTEGER, new BigInteger(63, RANDOM).add(BigInteger.ONE).toByteArray()),
+            signatureAlgorithm,
+            name,
+            der(SEQUENCE, time(notBefore), time(notBefore.plusDays(validityDays))),
+            name,
+            keyPair.getPublic().getEncoded(),  // SubjectPublicKeyInfo, già in DER
+            der(EXTENSIONS, der(SEQUENCE,
+                extension(BASIC_CONSTRAINTS, der(SEQUENCE)),  // non è una CA
+                extension(SUBJECT_ALT_NAME, generalNames(subjectAltNames)))));
+
+        Signature signer = Signature.getInstance(ec ? "SHA256withECDSA" : "SHA256withRSA");
+        signer.initSign(keyPair.getPrivate(), RANDOM);
+        signer.update(tbsCertificate);
+        byte[] signature = signer.sign();
+
+        byte[] encoded = der(SEQUENCE, tbsCertificate, signatureAlgorithm, bitString(signature));
+
+        // Rilettura: verifica che la codifica sia valida e che la firma torni
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+            .generateCertificate(new ByteArrayInputStream(encoded));
+        certificate.verify(keyPair.getPublic());
+        return certificate;
+    }
+
+    // KeyStore PKCS12 con la sola coppia chiave/certificato
+    public static KeyStore createKeyStore(String alias, char[] password, KeyPair keyPair,
+                                          X509Certificate certificate) throws GeneralSecurityException {
+        try {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(alias, keyPair.getPrivate(), password, new Certificate[]{certificate});
+            return keyStore;
+        } catch (IOException e) {
+            throw new KeyStoreException(e);  // load(null) non legge nulla
+        }
+    }
+
+    // TrustStore PKCS12 con un certificato fidato
+    public static KeyStore createTrustStore(String alias, Certificate certificate) throws GeneralSecurityException {
+        try {
+            KeyStore trustStore = KeyStore.getInstance("PKCS12");
+            trustStore.load(null, null);
+            trustStore.setCertificateEntry(alias, certificate);
+            return trustStore;
+        } catch (IOException e) {
+            throw new KeyStoreException(e);
+        }
+    }
+
+    public static void save(KeyStore keyStore, File file, char[] password) throws GeneralSecurityException, IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            keyStore.store(out, password);
+        }
+    }
+
+    private static byte[] extension(String id, byte[] value) {
+        return der(SEQUENCE, oid(id), der(OCTET_STRING, value));
+    }
+
+    private static byte[] generalNames(List<String> subjectAltNames) throws GeneralSecurityException {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        for (String entry : subjectAltNames) {
+            int colon = entry.indexOf(':');
+            String type = entry.substring(0, colon).toLowerCase();
+            String value = entry.substring(colon + 1);
+
+            if (type.equals("dns")) {
+                names.writeBytes(der(DNS_NAME, value.getBytes(StandardCharsets.US_ASCII)));
+            } else if (type.equals("ip")) {
+                try {
+                    // Indirizzo letterale: getByName non interroga il DNS
+                    names.writeBytes(der(IP_ADDRESS, InetAddress.getByName(value).getAddress()));
+                } catch (IOException e) {
+                    throw new GeneralSecurityException("Indirizzo IP non valido nel SAN: " + value);
+                }
+            } else {
+                throw new GeneralSecurityException("Tipo SAN non supportato: " + entry);
+            }
+        }
+        return der(SEQUENCE, names.toByteArray());
+    }
+
+    // UTCTime fino al 2049, GeneralizedTime dopo (RFC 5280)
+    private static byte[] time(ZonedDateTime time) {
+        if (time.getYear() < 2050) {
+            return der(UTC_TIME, time.format(DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'")).getBytes(StandardCharsets.US_ASCII));
+        }
+        return der(GENERALIZED_TIME, time.format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'")).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] bitString(byte[] bytes) {
+        byte[] value = new byte[bytes.length + 1];  // primo byte: bit inutilizzati (0)
+        System.arraycopy(bytes, 0, value, 1, bytes.length);
+        return der(BIT_STRING, value);
+    }
+
+    // I primi due archi in un byte (40 * a + b), gli altri in base 128
+    private static byte[] oid(String dotted) {
+        String[] arcs = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+
+        for (int i = 2; i < arcs.length; i++) {
+            long arc = Long.parseLong(arcs[i]);
+            int groups = 1;
+            for (long rest = arc >> 7; rest > 0; rest >>= 7) {
+                groups++;
+            }
+            for (int g = groups - 1; g >= 0; g--) {
+                int bits = (int) (arc >> (7 * g)) & 0x7F;
+                out.write(g > 0 ? bits | 0x80 : bits);
+            }
+        }
+        return der(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    // Tag, lunghezza (forma breve sotto 128 byte, altrimenti lunga) e contenuto
+    private static byte[] der(int tag, byte[]... contents) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] content : contents) {
+            value.writeBytes(content);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = value.size();
+        if (length < 128) {
+            out.write(length);
+        } else {
+            byte[] bytes = BigInteger.valueOf(length).toByteArray();
+            int skip = bytes[0] == 0 ? 1 : 0;
+            out.write(0x80 | (bytes.length - skip));
+            out.write(bytes, skip, bytes.length - skip);
+        }
+        out.writeBytes(value.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] der(int tag) {
+        return new byte[]{(byte) tag, 0};
+    }
+}
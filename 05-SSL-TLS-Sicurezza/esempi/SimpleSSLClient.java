@@ -1,7 +1,6 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
-import java.security.*;
 import java.security.cert.*;
 import java.util.Arrays;
 
@@ -102,44 +101,12 @@ public class SimpleSSLClient {
     
     private SSLContext createSSLContext(String hostname) throws Exception {
         
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        
-        // Controlla se bypassare validazione certificati (solo per demo!)
-        boolean trustAll = Boolean.getBoolean("ssl.trust.all") || 
-                          hostname.equals("localhost") || 
-                          hostname.equals("127.0.0.1");
-        
-        if (trustAll) {
+        // Bypass validazione certificati per localhost o -Dssl.trust.all (solo per demo!)
+        if (SSLContextFactory.isTrustAll(hostname)) {
             System.out.println("ATTENZIONE: Bypassando validazione certificati (solo per demo!)");
-            sslContext.init(null, createTrustAllManagers(), new SecureRandom());
-        } else {
-            // Usa validazione certificati standard
-            sslContext.init(null, null, new SecureRandom());
         }
         
-        return sslContext;
-    }
-    
-    private TrustManager[] createTrustAllManagers() {
-        return new TrustManager[] {
-            new X509TrustManager() {
-                @Override
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[0];
-                }
-                
-                @Override
-                public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                    // Accetta tutti i certificati client
-                }
-                
-                @Override
-                public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                    // Accetta tutti i certificati server (INSICURO!)
-                    System.out.println("Certificato server accettato senza validazione (DEMO)");
-                }
-            }
-        };
+        return SSLContextFactory.client(hostname);
     }
     
     private void configureSSLSocket(SSLSocket socket) {
@@ -147,29 +114,15 @@ public class SimpleSSLClient {
         // Abilita solo protocolli sicuri
         socket.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
         
-        // Configura cipher suites preferite
-        String[] supportedCiphers = socket.getSupportedCipherSuites();
-        String[] preferredCiphers = {
-            "TLS_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_CHACHA20_POLY1305_SHA256"
-        };
-        
-        java.util.List<String> enabledCiphers = new java.util.ArrayList<>();
-        for (String cipher : preferredCiphers) {
-            if (Arrays.asList(supportedCiphers).contains(cipher)) {
-                enabledCiphers.add(cipher);
-            }
-        }
-        
-        if (!enabledCiphers.isEmpty()) {
-            socket.setEnabledCipherSuites(enabledCiphers.toArray(new String[0]));
+        // Configura cipher suites preferite (ordine misurato con TlsBenchmark)
+        String[] enabledCiphers = CipherSuites.select(socket.getSupportedCipherSuites());
+        if (enabledCiphers.length > 0) {
+            socket.setEnabledCipherSuites(enabledCiphers);
         }
         
         System.out.println("✓ Socket configurato:");
         System.out.println("  Protocolli: " + Arrays.toString(socket.getEnabledProtocols()));
-        System.out.println("  Cipher suites: " + enabledCiphers.size() + " abilitate");
+        System.out.println("  Cipher suites: " + enabledCiphers.length + " abilitate");
     }
     
     private void performHandshake(SSLSocket socket) throws Exception {
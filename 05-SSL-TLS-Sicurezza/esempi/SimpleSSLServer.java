@@ -1,7 +1,6 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
-import java.security.*;
 import java.util.Arrays;
 
 /**
@@ -13,9 +12,16 @@ import java.util.Arrays;
  * - Cipher suites sicure
  * - Gestione client multipli
  * - Logging dettagliato connessioni
+ * - Ripresa sessioni TLS (-Dssl.sessionCacheSize, -Dssl.sessionTimeout,
+ *   -Dssl.sessionTickets) con statistiche handshake completi/ripresi
+ * - Rotazione del certificato senza riavvio: server.jks ricaricato quando
+ *   cambia (-Dssl.keystoreReloadMillis), le connessioni aperte proseguono
+ * - Metriche TLS (TlsMetrics) su https://localhost:8443/metrics: durata
+ *   handshake per protocollo e cipher, fallimenti per alert, byte e record
  * 
  * USO:
- * 1. Esegui CreateKeyStore.java per generare certificati
+ * 1. Esegui CertificateGenerator per generare certificati (se manca,
+ *    il keystore demo viene creato all'avvio da SSLContextFactory)
  * 2. Compila: javac SimpleSSLServer.java
  * 3. Avvia: java SimpleSSLServer
  * 4. Connetti con SimpleSSLClient o browser su https://localhost:8443
@@ -30,8 +36,14 @@ public class SimpleSSLServer {
     
     private SSLServerSocket serverSocket;
     private volatile boolean running = false;
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+    private ReloadableKeyManager keyManager;
+    private final TlsMetrics tlsMetrics = new TlsMetrics();
     
     public static void main(String[] args) {
+        // Prima di creare l'SSLContext
+        HandshakeStats.configureSessionTickets();
+        
         SimpleSSLServer server = new SimpleSSLServer();
         
         // Gestione shutdown graceful
@@ -97,6 +109,11 @@ public class SimpleSSLServer {
     
     public void stop() {
         running = false;
+        System.out.println("Handshake: " + handshakeStats);
+        if (keyManager != null) {
+            System.out.println("Certificato: " + keyManager);
+        }
+        System.out.println("TLS: " + tlsMetrics);
         
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
@@ -112,76 +129,18 @@ public class SimpleSSLServer {
         
         System.out.println("Inizializzazione SSL Context...");
         
-        // Carica keystore con certificato server
-        KeyStore keyStore = loadKeyStore();
-        
-        // Inizializza KeyManager per certificato server
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-        kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        // Keystore letto (o generato) una sola volta, contesto condiviso con
+        // gli altri esempi; include la cache sessioni per la ripresa
+        SSLContext sslContext = SSLContextFactory.server(KEYSTORE_PATH, KEYSTORE_PASSWORD);
         
-        // Usa default TrustManager (accetta CA standard)
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-        tmf.init((KeyStore) null);
-        
-        // Crea SSL Context
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), 
-                       new SecureRandom());
+        // Rotazione a caldo: il file viene ricontrollato e ricaricato per i nuovi handshake
+        keyManager = SSLContextFactory.keyManager(KEYSTORE_PATH, KEYSTORE_PASSWORD);
+        tlsMetrics.setKeyManager(keyManager);
         
         System.out.println("✓ SSL Context inizializzato");
         return sslContext;
     }
     
-    private KeyStore loadKeyStore() throws Exception {
-        
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        File keystoreFile = new File(KEYSTORE_PATH);
-        
-        if (!keystoreFile.exists()) {
-            System.out.println("Keystore non trovato: " + KEYSTORE_PATH);
-            System.out.println("Creazione keystore demo...");
-            createDemoKeyStore();
-        }
-        
-        try (FileInputStream fis = new FileInputStream(KEYSTORE_PATH)) {
-            keyStore.load(fis, KEYSTORE_PASSWORD.toCharArray());
-        }
-        
-        System.out.println("✓ Keystore caricato: " + KEYSTORE_PATH);
-        return keyStore;
-    }
-    
-    private void createDemoKeyStore() throws Exception {
-        
-        System.out.println("ATTENZIONE: Creazione certificato self-signed per DEMO!");
-        System.out.println("In produzione usa certificati firmati da CA riconosciute!");
-        
-        // Usa keytool per creare keystore demo
-        String command = String.format(
-            "keytool -genkeypair -alias server -keyalg RSA -keysize 2048 " +
-            "-validity 365 -keystore %s -storepass %s -keypass %s " +
-            "-dname \"CN=localhost,OU=Demo,O=SSLDemo,L=City,ST=State,C=IT\"",
-            KEYSTORE_PATH, KEYSTORE_PASSWORD, KEYSTORE_PASSWORD
-        );
-        
-        try {
-            Process process = Runtime.getRuntime().exec(command.split(" "));
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0) {
-                System.out.println("✓ Keystore demo creato con successo");
-            } else {
-                throw new RuntimeException("Errore creazione keystore (exit code: " + exitCode + ")");
-            }
-            
-        } catch (Exception e) {
-            System.err.println("Errore esecuzione keytool: " + e.getMessage());
-            System.out.println("\nEsegui manualmente:");
-            System.out.println(command);
-            throw e;
-        }
-    }
-    
     private void configureServerSocket(SSLServerSocket serverSocket) {
         
         // Abilita solo protocolli sicuri
@@ -196,29 +155,10 @@ public class SimpleSSLServer {
         
         serverSocket.setEnabledProtocols(enabledProtocols.toArray(new String[0]));
         
-        // Configura cipher suites sicure
-        String[] supportedCiphers = serverSocket.getSupportedCipherSuites();
-        String[] preferredCiphers = {
-            // TLS 1.3
-            "TLS_AES_256_GCM_SHA384",
-            "TLS_CHACHA20_POLY1305_SHA256",
-            "TLS_AES_128_GCM_SHA256",
-            
-            // TLS 1.2 con PFS
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384"
-        };
-        
-        java.util.List<String> enabledCiphers = new java.util.ArrayList<>();
-        for (String cipher : preferredCiphers) {
-            if (Arrays.asList(supportedCiphers).contains(cipher)) {
-                enabledCiphers.add(cipher);
-            }
-        }
-        
-        if (!enabledCiphers.isEmpty()) {
-            serverSocket.setEnabledCipherSuites(enabledCiphers.toArray(new String[0]));
+        // Configura cipher suites sicure (ordine misurato con TlsBenchmark)
+        String[] enabledCiphers = CipherSuites.select(serverSocket.getSupportedCipherSuites());
+        if (enabledCiphers.length > 0) {
+            serverSocket.setEnabledCipherSuites(enabledCiphers);
         }
         
         // Non richiedere autenticazione client (per semplicità)
@@ -237,11 +177,22 @@ public class SimpleSSLServer {
             
             // Avvia handshake SSL
             long handshakeStart = System.currentTimeMillis();
-            clientSocket.startHandshake();
-            long handshakeTime = System.currentTimeMillis() - handshakeStart;
+            long handshakeStartNanos = System.nanoTime();
+            try {
+                clientSocket.startHandshake();
+            } catch (IOException e) {
+                handshakeStats.recordFailure(false);
+                tlsMetrics.recordFailure(e, false);
+                throw e;
+            }
+            long handshakeNanos = System.nanoTime() - handshakeStartNanos;
+            long handshakeTime = handshakeNanos / 1_000_000;
+            boolean resumed = HandshakeStats.isResumed(clientSocket.getSession(), handshakeStart);
+            handshakeStats.record(resumed, handshakeNanos);
+            tlsMetrics.recordHandshake(clientSocket.getSession(), resumed, handshakeNanos);
             
             // Mostra informazioni sessione SSL
-            printSessionInfo(clientSocket, handshakeTime);
+            printSessionInfo(clientSocket, handshakeTime, resumed);
             
             // Gestisci comunicazione HTTP-like
             handleHTTPCommunication(clientSocket);
@@ -260,14 +211,15 @@ public class SimpleSSLServer {
         }
     }
     
-    private void printSessionInfo(SSLSocket socket, long handshakeTime) throws Exception {
+    private void printSessionInfo(SSLSocket socket, long handshakeTime, boolean resumed) throws Exception {
         
         SSLSession session = socket.getSession();
         
         System.out.println("=== SESSIONE SSL STABILITA ===");
         System.out.println("Protocollo: " + session.getProtocol());
         System.out.println("Cipher Suite: " + session.getCipherSuite());
-        System.out.println("Handshake time: " + handshakeTime + " ms");
+        System.out.println("Handshake time: " + handshakeTime + " ms" + (resumed ? " (sessione ripresa)" : ""));
+        System.out.println("Handshake totali: " + handshakeStats);
         System.out.println("Session ID: " + bytesToHex(session.getId()));
         
         // Informazioni certificato se presente
@@ -283,10 +235,11 @@ public class SimpleSSLServer {
     
     private void handleHTTPCommunication(SSLSocket socket) throws IOException {
         
+        // Stream contati: byte cifrati/decifrati e payload per record
         BufferedReader in = new BufferedReader(
-            new InputStreamReader(socket.getInputStream())
+            new InputStreamReader(tlsMetrics.countInput(socket.getInputStream()))
         );
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        PrintWriter out = new PrintWriter(tlsMetrics.countOutput(socket.getOutputStream()), true);
         
         // Leggi richiesta HTTP
         String requestLine = in.readLine();
@@ -315,6 +268,11 @@ public class SimpleSSLServer {
             }
         }
         
+        if (path.equals("/metrics")) {
+            sendMetrics(out);
+            return;
+        }
+        
         // Headers HTTP
         out.println("HTTP/1.1 200 OK");
         out.println("Content-Type: text/html; charset=UTF-8");
@@ -369,6 +327,7 @@ public class SimpleSSLServer {
         out.println("            <li><a href=\"/\">Home</a></li>");
         out.println("            <li><a href=\"/test\">Pagina Test</a></li>");
         out.println("            <li><a href=\"/info\">Info Server</a></li>");
+        out.println("            <li><a href=\"/metrics\">Metriche TLS</a></li>");
         out.println("        </ul>");
         out.println("    </div>");
         
@@ -382,6 +341,18 @@ public class SimpleSSLServer {
         System.out.println("✓ Risposta HTTP inviata per path: " + path);
     }
     
+    // Metriche TLS in formato testo di Prometheus
+    private void sendMetrics(PrintWriter out) {
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: text/plain; version=0.0.4; charset=UTF-8");
+        out.println("Connection: close");
+        out.println("Server: SimpleSSLServer/1.0");
+        out.println();
+        out.print(tlsMetrics.render());
+        out.flush();
+        System.out.println("✓ Metriche TLS inviate");
+    }
+    
     private static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -0,0 +1,368 @@
+import javax.net.ssl.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Benchmark di cipher suite, versioni del protocollo e tipi di chiave.
+ *
+ * CARATTERISTICHE:
+ * - Handshake completi al secondo (senza ripresa della sessione)
+ * - Throughput di cifratura + decifratura con record pieni (16 KB)
+ * - AES-GCM contro ChaCha20-Poly1305, TLS 1.2 contro TLS 1.3
+ * - Chiavi RSA 2048/4096 ed EC P-256, generate nel processo con
+ *   SelfSignedCertificates come fa CertificateGenerator
+ * - Coppie di SSLEngine in memoria: si misura il costo crittografico,
+ *   senza rumore di rete
+ * - Riscaldamento e iterazioni ripetute (media ± deviazione standard),
+ *   come un benchmark JMH
+ * - Stampa l'ordine di preferenza ricavato dalle misure, da confrontare
+ *   con CipherSuites.PREFERRED
+ *
+ * OPZIONI (system property):
+ * - bench.warmup      iterazioni di riscaldamento (default 2)
+ * - bench.iterations  iterazioni misurate (default 3)
+ * - bench.millis      durata di ogni iterazione in ms (default 1000)
+ *
+ * USO:
+ * 1. Compila: javac TlsBenchmark.java
+ * 2. Avvia: java TlsBenchmark [handshake|bulk|all]
+ */
+public class TlsBenchmark {
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 2);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 3);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.millis", 1000);
+
+    private static final String STORE_PASS = "benchpass";
+    private static final int RECORD_SIZE = 16384;
+
+    private static final String[] KEY_TYPES = {"RSA 2048", "RSA 4096", "EC P-256"};
+    // In caso di parità (differenza sotto NOISE) vale quest'ordine: chiave più lunga prima
+    private static final String[] CIPHERS = {"AES_256_GCM", "AES_128_GCM", "CHACHA20_POLY1305"};
+    private static final double NOISE = 0.10;
+
+    // Una combinazione misurata
+    private static class Result {
+        final String keyType;
+        final String protocol;
+        final String suite;
+        double[] handshakes = new double[2];  // media, deviazione standard
+        double[] throughput = new double[2];
+
+        Result(String keyType, String protocol, String suite) {
+            this.keyType = keyType;
+            this.protocol = protocol;
+            this.suite = suite;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "all";
+        boolean handshake = !mode.equals("bulk");
+        boolean bulk = !mode.equals("handshake");
+
+        System.out.println("=== TLS BENCHMARK ===");
+        System.out.println("Java " + System.getProperty("java.version") + ", " +
+            Runtime.getRuntime().availableProcessors() + " CPU");
+        System.out.printf("Riscaldamento %d, iterazioni %d da %d ms%n%n", WARMUP, ITERATIONS, ITERATION_MILLIS);
+
+        List<Result> results = new ArrayList<>();
+
+        for (String keyType : KEY_TYPES) {
+            KeyStore keyStore = generateKeyStore(keyType);
+            SSLContext serverContext = serverContext(keyStore);
+            SSLContext clientContext = clientContext(keyStore);
+
+            for (String protocol : new String[]{"TLSv1.3", "TLSv1.2"}) {
+                for (String cipher : CIPHERS) {
+                    String suite = suiteName(protocol, cipher, keyType);
+                    Result result = new Result(keyType, protocol, suite);
+
+                    if (handshake) {
+                        result.handshakes = measure(() ->
+                            handshake(serverContext, clientContext, protocol, suite));
+                    }
+                    if (bulk) {
+                        result.throughput = measure(() ->
+                            bulk(serverContext, clientContext, protocol, suite));
+                    }
+
+                    System.out.printf("%-9s %-8s %-45s %s %s%n", keyType, protocol, suite,
+                        handshake ? String.format("%6.0f ± %-4.0f hs/s", result.handshakes[0], result.handshakes[1]) : "",
+                        bulk ? String.format("%8.1f ± %-6.1f MB/s", result.throughput[0], result.throughput[1]) : "");
+                    results.add(result);
+                }
+            }
+        }
+
+        printSummary(results, handshake, bulk);
+    }
+
+    // Nome IANA della suite: in TLS 1.3 non dipende dal tipo di chiave
+    private static String suiteName(String protocol, String cipher, String keyType) {
+        String hash = cipher.equals("AES_256_GCM") ? "SHA384" : "SHA256";
+        if (protocol.equals("TLSv1.3")) {
+            return "TLS_" + cipher + "_" + hash;
+        }
+        String auth = keyType.startsWith("EC") ? "ECDSA" : "RSA";
+        return "TLS_ECDHE_" + auth + "_WITH_" + cipher + "_" + hash;
+    }
+
+    private interface Iteration {
+        // Esegue il lavoro per ITERATION_MILLIS e restituisce le operazioni al secondo
+        double run() throws Exception;
+    }
+
+    private static double[] measure(Iteration iteration) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            iteration.run();
+        }
+
+        double[] samples = new double[Math.max(1, ITERATIONS)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = iteration.run();
+        }
+
+        double mean = Arrays.stream(samples).average().orElse(0);
+        double variance = Arrays.stream(samples).map(s -> (s - mean) * (s - mean)).sum() / samples.length;
+        return new double[]{mean, Math.sqrt(variance)};
+    }
+
+    // Handshake completi al secondo: engine nuovi a ogni giro, nessuna ripresa
+    private static double handshake(SSLContext serverContext, SSLContext clientContext,
+                                    String protocol, String suite) throws Exception {
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1_000_000;
+        long start = System.nanoTime();
+        int count = 0;
+
+        while (System.nanoTime() < deadline) {
+            EnginePair pair = new EnginePair(serverContext, clientContext, protocol, suite);
+            pair.handshake();
+            count++;
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // MB/s cifrati dal client e decifrati dal server, con record pieni
+    private static double bulk(SSLContext serverContext, SSLContext clientContext,
+                               String protocol, String suite) throws Exception {
+        EnginePair pair = new EnginePair(serverContext, clientContext, protocol, suite);
+        pair.handshake();
+
+        ByteBuffer plaintext = ByteBuffer.allocate(RECORD_SIZE);
+        new Random(42).nextBytes(plaintext.array());
+
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1_000_000;
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        while (System.nanoTime() < deadline) {
+            plaintext.clear();
+            bytes += pair.transfer(plaintext);
+        }
+        return bytes / (1024.0 * 1024.0) / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Client e server collegati da due buffer in memoria. I buffer di rete
+     * restano in "modalità scrittura": contengono i byte prodotti da un
+     * engine e non ancora consumati dall'altro.
+     */
+    private static class EnginePair {
+        final SSLEngine client;
+        final SSLEngine server;
+        final ByteBuffer clientToServer;
+        final ByteBuffer serverToClient;
+        final ByteBuffer application;
+
+        EnginePair(SSLContext serverContext, SSLContext clientContext, String protocol, String suite) {
+            server = serverContext.createSSLEngine();
+            server.setUseClientMode(false);
+            // Senza host e porta il client non riprende sessioni precedenti
+            client = clientContext.createSSLEngine();
+            client.setUseClientMode(true);
+
+            for (SSLEngine engine : new SSLEngine[]{client, server}) {
+                engine.setEnabledProtocols(new String[]{protocol});
+                engine.setEnabledCipherSuites(new String[]{suite});
+            }
+
+            int packetSize = server.getSession().getPacketBufferSize();
+            clientToServer = ByteBuffer.allocate(packetSize * 4);
+            serverToClient = ByteBuffer.allocate(packetSize * 4);
+            application = ByteBuffer.allocate(server.getSession().getApplicationBufferSize() * 2);
+        }
+
+        void handshake() throws SSLException {
+            client.beginHandshake();
+            server.beginHandshake();
+
+            while (handshaking(client) || handshaking(server)) {
+                boolean progress = step(client, serverToClient, clientToServer);
+                progress |= step(server, clientToServer, serverToClient);
+                if (!progress) {
+                    throw new SSLException("Handshake bloccato: " + client.getHandshakeStatus() +
+                        "/" + server.getHandshakeStatus());
+                }
+            }
+        }
+
+        private static boolean handshaking(SSLEngine engine) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                   status != SSLEngineResult.HandshakeStatus.FINISHED;
+        }
+
+        // Un passo dell'handshake; false se l'engine attende l'altro lato
+        private boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out) throws SSLException {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    return true;
+
+                case NEED_WRAP:
+                    return engine.wrap(ByteBuffer.allocate(0), out).bytesProduced() > 0;
+
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    in.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = engine.unwrap(in, application);
+                    } finally {
+                        in.compact();
+                        application.clear();
+                    }
+                    return result.bytesConsumed() > 0 ||
+                           result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK;
+
+                default:
+                    return false;
+            }
+        }
+
+        // Un record dal client al server; restituisce i byte in chiaro trasferiti
+        int transfer(ByteBuffer plaintext) throws SSLException {
+            clientToServer.clear();
+            SSLEngineResult wrapped = client.wrap(plaintext, clientToServer);
+
+            clientToServer.flip();
+            application.clear();
+            SSLEngineResult unwrapped = server.unwrap(clientToServer, application);
+            if (unwrapped.bytesProduced() != wrapped.bytesConsumed()) {
+                throw new SSLException("Record non decifrato: " + unwrapped);
+            }
+            return unwrapped.bytesProduced();
+        }
+    }
+
+    // Keystore PKCS12 con una coppia di chiavi self-signed, come CertificateGenerator
+    private static KeyStore generateKeyStore(String keyType) throws Exception {
+        KeyPair keyPair = keyType.startsWith("EC")
+            ? SelfSignedCertificates.generateKeyPair("EC", 256)
+            : SelfSignedCertificates.generateKeyPair("RSA", Integer.parseInt(keyType.substring(4)));
+        X509Certificate certificate = SelfSignedCertificates.create(keyPair,
+            "CN=localhost,OU=SSL Demo,O=Socket Course,L=Roma,ST=Lazio,C=IT", 1, List.of("dns:localhost"));
+        return SelfSignedCertificates.createKeyStore("bench", STORE_PASS.toCharArray(), keyPair, certificate);
+    }
+
+    private static SSLContext serverContext(KeyStore keyStore) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, STORE_PASS.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, new SecureRandom());
+        return context;
+    }
+
+    // Il client si fida del solo certificato generato: la verifica della catena fa parte del costo
+    private static SSLContext clientContext(KeyStore keyStore) throws Exception {
+        Certificate certificate = keyStore.getCertificate("bench");
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("bench", certificate);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), new SecureRandom());
+        return context;
+    }
+
+    private static void printSummary(List<Result> results, boolean handshake, boolean bulk) {
+        System.out.println("\n=== RIEPILOGO ===");
+
+        if (handshake) {
+            System.out.println("Handshake/s per tipo di chiave (media su protocolli e cipher):");
+            String fastestKey = null;
+            double fastestRate = 0;
+            for (String keyType : KEY_TYPES) {
+                double rate = results.stream().filter(r -> r.keyType.equals(keyType))
+                    .mapToDouble(r -> r.handshakes[0]).average().orElse(0);
+                System.out.printf("  %-9s %8.0f hs/s%n", keyType, rate);
+                if (rate > fastestRate) {
+                    fastestKey = keyType;
+                    fastestRate = rate;
+                }
+            }
+            System.out.println("  → chiave con più handshake al secondo: " + fastestKey);
+            System.out.println("Handshake/s per protocollo (media su chiavi e cipher):");
+            for (String protocol : new String[]{"TLSv1.3", "TLSv1.2"}) {
+                System.out.printf("  %-9s %8.0f hs/s%n", protocol,
+                    results.stream().filter(r -> r.protocol.equals(protocol))
+                        .mapToDouble(r -> r.handshakes[0]).average().orElse(0));
+            }
+        }
+
+        if (!bulk) {
+            return;
+        }
+
+        // Il throughput dipende dalla cipher, non dalla chiave: si ordina per
+        // media. Una cipher scavalca quelle che la precedono in CIPHERS solo
+        // se è più veloce di oltre NOISE, altrimenti decide il rumore della misura
+        Map<String, Double> byCipher = new HashMap<>();
+        for (String cipher : CIPHERS) {
+            byCipher.put(cipher, results.stream().filter(r -> r.suite.contains(cipher))
+                .mapToDouble(r -> r.throughput[0]).average().orElse(0));
+        }
+        List<String> ranked = new ArrayList<>();
+        for (String cipher : CIPHERS) {
+            int position = ranked.size();
+            while (position > 0 && byCipher.get(ranked.get(position - 1)) < byCipher.get(cipher) * (1 - NOISE)) {
+                position--;
+            }
+            ranked.add(position, cipher);
+        }
+
+        System.out.println("Throughput per cipher (media su chiavi e protocolli):");
+        for (String cipher : ranked) {
+            System.out.printf("  %-18s %8.1f MB/s%n", cipher, byCipher.get(cipher));
+        }
+
+        // Prima TLS 1.3, poi TLS 1.2 con ECDSA e RSA per ogni cipher
+        List<String> order = new ArrayList<>();
+        for (String cipher : ranked) {
+            order.add(suiteName("TLSv1.3", cipher, "EC"));
+        }
+        for (String cipher : ranked) {
+            order.add(suiteName("TLSv1.2", cipher, "EC"));
+            order.add(suiteName("TLSv1.2", cipher, "RSA"));
+        }
+
+        System.out.println("\nOrdine di preferenza ricavato dalle misure:");
+        for (String suite : order) {
+            System.out.println("    \"" + suite + "\",");
+        }
+        System.out.println(Arrays.asList(CipherSuites.PREFERRED).equals(order)
+            ? "✓ Coincide con CipherSuites.PREFERRED"
+            : "⚠ Diverso da CipherSuites.PREFERRED: " + Arrays.toString(CipherSuites.PREFERRED));
+    }
+}
@@ -0,0 +1,326 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Metriche TLS a livello di connessione per i server di esempio.
+ *
+ * CARATTERISTICHE:
+ * - Istogrammi della durata degli handshake per protocollo, cipher suite
+ *   e tipo (completo o ripreso), da cui il rapporto di ripresa
+ * - Handshake falliti per tipo di alert TLS (handshake_failure,
+ *   certificate_unknown, ...) o causa di rete (timeout, chiusura)
+ * - Byte cifrati e decifrati (dati applicativi)
+ * - Distribuzione dei byte di payload per record TLS: mostra se le
+ *   scritture riempiono i record da 16 KB o ne mandano tanti piccoli
+ * - Rotazioni e scadenza del certificato (ReloadableKeyManager)
+ * - Registrazione senza lock: bucket in AtomicLongArray, contatori
+ *   LongAdder (più thread di I/O non si contendono la stessa cella)
+ *
+ * render() produce il formato testo di Prometheus, leggibile anche a
+ * occhio: SimpleSSLServer lo serve su https://localhost:8443/metrics,
+ * SecureChatServer con il comando /metrics.
+ */
+public class TlsMetrics {
+
+    // Limiti superiori dei bucket: durata handshake (µs, da 1 ms a 5 s) e payload per record (byte)
+    private static final long[] HANDSHAKE_MICROS = {
+        1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000
+    };
+    private static final long[] RECORD_BYTES = {64, 256, 1024, 4096, 8192, 16384};
+
+    // Payload massimo di un record TLS
+    private static final int MAX_RECORD_PLAINTEXT = 16384;
+
+    private static final Pattern RECEIVED_ALERT = Pattern.compile("Received fatal alert: (\\w+)");
+
+    // Chiave: etichette già formattate (protocol, cipher, resumed)
+    private final Map<String, Histogram> handshakes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final LongAdder bytesEncrypted = new LongAdder();
+    private final LongAdder bytesDecrypted = new LongAdder();
+    private final Histogram recordsSent = new Histogram("direction=\"out\"", RECORD_BYTES);
+    private final Histogram recordsReceived = new Histogram("direction=\"in\"", RECORD_BYTES);
+    private volatile ReloadableKeyManager keyManager;
+
+    /**
+     * Istogramma a bucket fissi: il conteggio di ogni bucket è
+     * indipendente, la somma cumulativa si calcola solo in lettura
+     */
+    private static class Histogram {
+        final String labels;
+        final long[] bounds;
+        final AtomicLongArray counts;
+        final LongAdder sum = new LongAdder();
+
+        Histogram(String labels, long[] bounds) {
+            this.labels = labels;
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);  // ultimo: +Inf
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.add(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        // Bucket cumulativi, _sum e _count; scale converte l'unità interna
+        void render(StringBuilder out, String name, double scale) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                String le = i < bounds.length ? format(bounds[i] / scale) : "+Inf";
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                   .append(cumulative).append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(braces).append(' ').append(format(sum.sum() / scale)).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // Metriche del certificato attivo incluse in render()
+    public void setKeyManager(ReloadableKeyManager keyManager) {
+        this.keyManager = keyManager;
+    }
+
+    public void recordHandshake(SSLSession session, boolean resumed, long handshakeNanos) {
+        String labels = "protocol=\"" + session.getProtocol() + "\",cipher=\"" + session.getCipherSuite() +
+            "\",resumed=\"" + resumed + "\"";
+        Histogram histogram = handshakes.get(labels);
+        if (histogram == null) {
+            histogram = handshakes.computeIfAbsent(labels, l -> new Histogram(l, HANDSHAKE_MICROS));
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(handshakeNanos));
+    }
+
+    public void recordFailure(IOException e, boolean timedOut) {
+        recordFailure(alertOf(e, timedOut));
+    }
+
+    public void recordFailure(String alert) {
+        LongAdder counter = failures.get(alert);
+        if (counter == null) {
+            counter = failures.computeIfAbsent(alert, a -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Tipo di alert TLS di un handshake fallito: quello ricevuto dal client
+     * oppure quello che JSSE invia per l'errore locale. Le cause senza
+     * alert (connessione chiusa, timeout) hanno un nome proprio.
+     */
+    static String alertOf(IOException e, boolean timedOut) {
+        if (timedOut || e instanceof SocketTimeoutException) {
+            return "timeout";
+        }
+        String message = String.valueOf(e.getMessage());
+        Matcher received = RECEIVED_ALERT.matcher(message);
+        if (received.find()) {
+            return received.group(1);
+        }
+        if (message.contains("nrecognized SSL message")) {
+            return "unexpected_message";  // Non è TLS (es. HTTP in chiaro), SSLSocket e SSLEngine
+        }
+        if (message.contains("no cipher suites in common") || message.contains("No appropriate protocol")) {
+            return "handshake_failure";
+        }
+        if (message.contains("protocol") && message.contains("not enabled or supported")) {
+            return "protocol_version";
+        }
+        if (message.contains("PKIX") || message.contains("certificate")) {
+            return "certificate_unknown";
+        }
+        if (e instanceof EOFException || e.getCause() instanceof EOFException ||
+                message.contains("Remote host terminated") || message.contains("Broken pipe") ||
+                message.contains("Connection reset")) {
+            return "connection_closed";
+        }
+        return e instanceof SSLException ? "other" : "io_error";
+    }
+
+    // Un record cifrato e inviato con questo payload (plaintext)
+    public void recordSent(int payloadBytes) {
+        bytesEncrypted.add(payloadBytes);
+        recordsSent.record(payloadBytes);
+    }
+
+    // Un record ricevuto e decifrato con questo payload
+    public void recordReceived(int payloadBytes) {
+        bytesDecrypted.add(payloadBytes);
+        recordsReceived.record(payloadBytes);
+    }
+
+    /**
+     * Conta i byte scritti su un SSLSocket: ogni write diventa uno o più
+     * record da al massimo 16 KB di payload
+     */
+    public OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                recordSent(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                for (int remaining = len; remaining > 0; remaining -= MAX_RECORD_PLAINTEXT) {
+                    recordSent(Math.min(remaining, MAX_RECORD_PLAINTEXT));
+                }
+            }
+        };
+    }
+
+    /**
+     * Conta i byte letti da un SSLSocket; i confini dei record non sono
+     * visibili, quindi solo i byte decifrati (con SSLEngine anche i record)
+     */
+    public InputStream countInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesDecrypted.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytesDecrypted.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    public long getHandshakes(boolean resumed) {
+        long count = 0;
+        for (Histogram histogram : handshakes.values()) {
+            if (histogram.labels.endsWith("resumed=\"" + resumed + "\"")) {
+                count += histogram.count();
+            }
+        }
+        return count;
+    }
+
+    public double getResumptionRatio() {
+        long resumed = getHandshakes(true);
+        long total = resumed + getHandshakes(false);
+        return total == 0 ? 0 : resumed / (double) total;
+    }
+
+    public long getFailures() {
+        long count = 0;
+        for (LongAdder counter : failures.values()) {
+            count += counter.sum();
+        }
+        return count;
+    }
+
+    public long getBytesEncrypted() {
+        return bytesEncrypted.sum();
+    }
+
+    public long getBytesDecrypted() {
+        return bytesDecrypted.sum();
+    }
+
+    public double getAverageRecordBytes() {
+        long records = recordsSent.count();
+        return records == 0 ? 0 : recordsSent.sum.sum() / (double) records;
+    }
+
+    // Formato testo di Prometheus (text/plain; version=0.0.4)
+    public String render() {
+        StringBuilder out = new StringBuilder();
+
+        header(out, "tls_handshake_duration_seconds", "histogram", "Durata degli handshake riusciti");
+        for (Histogram histogram : new TreeMap<>(handshakes).values()) {
+            histogram.render(out, "tls_handshake_duration_seconds", 1e6);
+        }
+
+        header(out, "tls_handshake_failures_total", "counter", "Handshake falliti per alert TLS o causa");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(failures).entrySet()) {
+            out.append("tls_handshake_failures_total{alert=\"").append(entry.getKey()).append("\"} ")
+               .append(entry.getValue().sum()).append('\n');
+        }
+
+        header(out, "tls_resumption_ratio", "gauge", "Handshake ripresi sul totale");
+        out.append("tls_resumption_ratio ").append(format(getResumptionRatio())).append('\n');
+
+        header(out, "tls_bytes_encrypted_total", "counter", "Byte applicativi cifrati e inviati");
+        out.append("tls_bytes_encrypted_total ").append(getBytesEncrypted()).append('\n');
+        header(out, "tls_bytes_decrypted_total", "counter", "Byte applicativi ricevuti e decifrati");
+        out.append("tls_bytes_decrypted_total ").append(getBytesDecrypted()).append('\n');
+
+        header(out, "tls_record_payload_bytes", "histogram", "Byte di payload per record TLS");
+        recordsSent.render(out, "tls_record_payload_bytes", 1);
+        if (recordsReceived.count() > 0) {
+            recordsReceived.render(out, "tls_record_payload_bytes", 1);
+        }
+
+        ReloadableKeyManager keys = keyManager;
+        if (keys != null) {
+            header(out, "tls_certificate_expiry_timestamp_seconds", "gauge", "Scadenza del certificato attivo");
+            out.append("tls_certificate_expiry_timestamp_seconds ")
+               .append(keys.getCertificate().getNotAfter().getTime() / 1000).append('\n');
+            header(out, "tls_certificate_days_to_expiry", "gauge", "Giorni alla scadenza del certificato attivo");
+            out.append("tls_certificate_days_to_expiry ").append(keys.getDaysToExpiry()).append('\n');
+            header(out, "tls_keystore_rotations_total", "counter", "Keystore ricaricati senza riavvio");
+            out.append("tls_keystore_rotations_total ").append(keys.getRotations()).append('\n');
+            header(out, "tls_keystore_rotation_failures_total", "counter", "Ricariche del keystore scartate");
+            out.append("tls_keystore_rotation_failures_total ").append(keys.getFailures()).append('\n');
+            header(out, "tls_keystore_last_rotation_timestamp_seconds", "gauge", "Ultima rotazione riuscita (0 = mai)");
+            out.append("tls_keystore_last_rotation_timestamp_seconds ")
+               .append(keys.getLastRotationMillis() / 1000).append('\n');
+            header(out, "tls_keystore_last_rotation_duration_seconds", "gauge", "Durata dell'ultima rotazione");
+            out.append("tls_keystore_last_rotation_duration_seconds ")
+               .append(format(keys.getLastRotationDurationMillis() / 1000)).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("handshake %d (ripresa %.1f%%), falliti %d, cifrati %d byte, decifrati %d byte, " +
+            "payload medio per record %.0f byte",
+            getHandshakes(false) + getHandshakes(true), getResumptionRatio() * 100, getFailures(),
+            getBytesEncrypted(), getBytesDecrypted(), getAverageRecordBytes());
+    }
+}
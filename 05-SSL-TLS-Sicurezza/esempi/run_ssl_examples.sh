@@ -56,6 +56,7 @@ compile_all() {
         "CertificateGenerator.java"
         "SecureChatServer.java"
         "SecureChatClient.java"
+        "TlsBenchmark.java"
     )
     
     for file in "${java_files[@]}"; do